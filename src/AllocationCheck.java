@@ -0,0 +1,74 @@
+package csp_solver;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Allocation budget for the search.
+ *
+ * Assigning, propagating and undoing should allocate nothing once the JIT
+ * has warmed up. This solves Sudoku boards that take thousands of nodes and
+ * reads the JVM's per-thread allocation counter around each solve. What a
+ * solve costs regardless of its length (copying domains, building the
+ * engine, printing the stats) is measured on a board solved without a
+ * single backtrack and taken off, so what is left is the cost per node.
+ * Exits with status 1 if a board goes over the budget, so the property
+ * cannot quietly regress.
+ *
+ * Usage: java csp_solver.AllocationCheck [bytes per node]
+ */
+public class AllocationCheck {
+    // Allowed bytes per node when none is given
+    private static final double DEFAULT_BUDGET = 8;
+    // Solves of each board before measuring, so the JIT has compiled the
+    // hot path (and escape analysis has done its work)
+    private static final int WARMUP = 5;
+
+    // Solved by propagation alone: the cost of a solve's setup
+    private static final String BASELINE =
+        "518700030003509068090084501080630190035041600107005840600428009824000706300170082";
+    // The longest searches of the short test file
+    private static final String[] BOARDS = {
+        ".......21.6.5.........9....4....2....7....3.....6.....1.24.........3.64.8........",
+        ".......21.6.7..............4.2.........6..3..5.....7.....34..5..8....6..1....2...",
+    };
+
+    /**
+     * Bytes allocated and nodes explored by a cold solve of the board (a
+     * new solver, so no warm start), after warming up on it
+     */
+    private static long[] measure(String line) {
+      int[][] board = Sudoku.parse(line);
+      com.sun.management.ThreadMXBean threads =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long[] result = null;
+      for (int i = 0; i <= WARMUP; ++i) {
+        Sudoku sudoku = new Sudoku(board);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        int[][] solution = sudoku.solve();
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        if (! sudoku.verify(solution))
+          throw new IllegalStateException("Solution not found for " + line);
+        result = new long[] {allocated, sudoku.getNodeCount()};
+      }
+      return result;
+    }
+
+    public static final void main(String[] args) {
+      double budget = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_BUDGET;
+      long[] setup = measure(BASELINE);
+      boolean over = false;
+      StringBuilder report = new StringBuilder();
+      for (String line : BOARDS) {
+        long[] search = measure(line);
+        double perNode = (double) Math.max(0, search[0] - setup[0]) / Math.max(1, search[1] - setup[1]);
+        over |= perNode > budget;
+        report.append(String.format("%6d nodes, %8d bytes, %5.1f bytes per node%s%n", search[1], search[0],
+                                    perNode, perNode > budget ? " (over budget)" : ""));
+      }
+      System.out.println(String.format("Setup: %d nodes, %d bytes", setup[1], setup[0]));
+      System.out.print(report);
+      System.out.println(String.format("Budget: %.1f bytes per node", budget));
+      if (over)
+        System.exit(1);
+    }
+}
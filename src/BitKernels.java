@@ -0,0 +1,65 @@
+package csp_solver;
+
+/**
+ * Scans over the long[] rows of a bitset, for the loops that visit a
+ * whole row at a time (see CompactTable).
+ *
+ * When the JVM runs with --add-modules jdk.incubator.vector they compare
+ * a vector of words at once through VectorBitKernels, 256 or 512 bits
+ * per step on AVX2 or AVX-512. Otherwise, or with -Dcsp.vector=false,
+ * they go a word at a time. The answers are the same either way.
+ */
+final class BitKernels {
+    // Whether the scans use the Vector API
+    static final boolean VECTOR = vectorAvailable();
+
+    private BitKernels() {
+    }
+
+    private static boolean vectorAvailable() {
+      if (! Boolean.parseBoolean(System.getProperty("csp.vector", "true")))
+        return false;
+      if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+        return false;
+      try {
+        return VectorBitKernels.LANES > 1;
+      } catch (LinkageError e) {
+        return false;
+      }
+    }
+
+    /**
+     * How the scans run, eg for a benchmark's report
+     */
+    static String describe() {
+      return VECTOR ? VectorBitKernels.LANES * 64 + "-bit vectors" : "scalar";
+    }
+
+    /**
+     * The first word w in [from, to) where a[w] and b[w] share a bit, to
+     * if there is none
+     */
+    static int nextCommon(long[] a, long[] b, int from, int to) {
+      if (VECTOR)
+        return VectorBitKernels.nextCommon(a, b, from, to);
+      for (int w = from; w < to; w++) {
+        if ((a[w] & b[w]) != 0)
+          return w;
+      }
+      return to;
+    }
+
+    /**
+     * The first word w in [from, to) where a[w] has a bit b[w] lacks, to
+     * if there is none
+     */
+    static int nextOutside(long[] a, long[] b, int from, int to) {
+      if (VECTOR)
+        return VectorBitKernels.nextOutside(a, b, from, to);
+      for (int w = from; w < to; w++) {
+        if ((a[w] & ~b[w]) != 0)
+          return w;
+      }
+      return to;
+    }
+}
@@ -0,0 +1,72 @@
+package csp_solver;
+
+import java.util.Map;
+
+/**
+ * Long chains through the search.
+ *
+ * A path of not-equal constraints over three values always has a
+ * solution, and every decision in its middle splits it in two, so it is
+ * the worst case for splitting into components. This solves paths of
+ * growing length with decomposition on and off, checks every solution,
+ * and exits with status 1 if one is wrong or the solver fails on it. The
+ * longer paths go past what a search recursing once per decision could
+ * hold on a default thread stack.
+ *
+ * Usage: java csp_solver.ChainCheck [variables...]
+ */
+public class ChainCheck {
+    private static final int[] DEFAULT_LENGTHS = {1000, 6000, 20000};
+
+    /**
+     * A failure, or null if the path of that many variables was solved
+     */
+    private static String check(int variables, boolean decompose) {
+      SolverConfig config = SolverConfig.fromSystemProperty().toBuilder().decompose(decompose).stats(false).build();
+      ConstraintSatisfactionProblem csp = new ConstraintSatisfactionProblem(config);
+      for (int i = 0; i < variables; i++)
+        csp.addVariable(i, new RangeDomain(0, 2));
+      for (int i = 1; i < variables; i++)
+        csp.addConstraint(i - 1, i, Relation.notEqual());
+      long before = System.nanoTime();
+      Map<Integer, Integer> solution;
+      try {
+        solution = csp.solve();
+      } catch (StackOverflowError | OutOfMemoryError e) {
+        return e.getClass().getSimpleName();
+      }
+      double elapsed = (System.nanoTime() - before) / 1e6;
+      if (solution == null)
+        return "no solution found";
+      for (int i = 0; i < variables; i++) {
+        Integer value = solution.get(i);
+        if (value == null || value < 0 || value > 2 || (i > 0 && value.equals(solution.get(i - 1))))
+          return "wrong value " + value + " for variable " + i;
+      }
+      System.out.println(String.format("%8d variables, decompose=%-5s %8d nodes in %6.0f ms", variables,
+                                       decompose, csp.getNodeCount(), elapsed));
+      return null;
+    }
+
+    public static final void main(String[] args) {
+      int[] lengths = DEFAULT_LENGTHS;
+      if (args.length > 0) {
+        lengths = new int[args.length];
+        for (int i = 0; i < args.length; i++)
+          lengths[i] = Integer.parseInt(args[i]);
+      }
+      boolean failed = false;
+      for (int variables : lengths) {
+        for (boolean decompose : new boolean[] {true, false}) {
+          String failure = check(variables, decompose);
+          if (failure != null) {
+            System.out.println(String.format("%8d variables, decompose=%-5s FAILED: %s", variables, decompose,
+                                             failure));
+            failed = true;
+          }
+        }
+      }
+      if (failed)
+        System.exit(1);
+    }
+}
@@ -4,13 +4,14 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import javafx.util.Pair;
 
 public class Circuit {
-    private ConstraintSatisfactionProblem solver = new ConstraintSatisfactionProblem();
+    private ConstraintSatisfactionProblem solver;
     private int rows;
     private int cols;
     private CircuitPiece[] pieces;
+    // The variable for the width or height in use, when minimizing one
+    private Integer extent;
     
     public static class CircuitPiece {
       public int w;
@@ -30,18 +31,24 @@ public class Circuit {
     }
 
     public Circuit(int r, int c, CircuitPiece[] ps) {
+      this(r, c, ps, SolverConfig.fromSystemProperty());
+    }
+
+    /**
+     * A board solved with the given config. The domains and constraints
+     * are printed as they are made unless its stats are off.
+     */
+    public Circuit(int r, int c, CircuitPiece[] ps, SolverConfig config) {
+      solver = new ConstraintSatisfactionProblem(config);
       rows = r;
       cols = c;
       pieces = ps;
   
       // Generate domains of all of the pieces
       for (int p = 0; p < pieces.length; p++) {
-        Set<Integer> domain = new HashSet<Integer>();
-
-        for (int i = 0; i <= this.cols - pieces[p].w; i++)
-          for (int j = 0; j <= this.rows - pieces[p].h; j++)
-            domain.add((j * this.cols) + i);
-        System.out.println("Piece " + p + " Domain: " + domain);
+        RangeDomain domain = positions(pieces[p]);
+        if (config.isStats())
+          System.out.println("Piece " + p + " Domain: " + domain);
         solver.addVariable(p, domain);
       }
 
@@ -59,7 +66,8 @@ public class Circuit {
                   constraint.add(new hashPair(val1, val2));
             }
           }
-          System.out.println("(" + p1 + ", " + p2 + "): " + constraint);
+          if (config.isStats())
+            System.out.println("(" + p1 + ", " + p2 + "): " + constraint);
           // Add the resulting constraint to the solver
           solver.addConstraint(p1, p2, constraint);
         }
@@ -68,6 +76,34 @@ public class Circuit {
       
     }
 
+    /**
+     * Every legal top-left corner for a piece: each row of the board
+     * contributes one contiguous run of positions
+     */
+    private RangeDomain positions(CircuitPiece p) {
+      RangeDomain domain = new RangeDomain();
+      for (int j = 0; j <= this.rows - p.h; j++)
+        domain.addRange(j * this.cols, (j * this.cols) + this.cols - p.w);
+      return domain;
+    }
+
+    /**
+     * Fix a piece at a position (top-left corner y * cols + x). The next
+     * solve only re-propagates around the pinned piece.
+     */
+    public void pin(int piece, int position) {
+      RangeDomain domain = new RangeDomain();
+      domain.add(position);
+      solver.addVariable(piece, domain);
+    }
+
+    /**
+     * Let a pinned piece go anywhere on the board again
+     */
+    public void unpin(int piece) {
+      solver.addVariable(piece, positions(pieces[piece]));
+    }
+
     private boolean isConflict(CircuitPiece p1, int val1, CircuitPiece p2, int val2) {
       Set<Integer> p1Claimed = new HashSet<Integer>();
       Set<Integer> p2Claimed = new HashSet<Integer>();
@@ -93,8 +129,83 @@ public class Circuit {
       return (! p1Claimed.isEmpty());
     }
 
-    private char[] solve() {
-      Map<Integer, Integer> solution = solver.solve();
+    public char[] solve() {
+      return render(solver.solve());
+    }
+
+    /**
+     * Solve, giving up after the timeout in milliseconds (0: no limit)
+     * @return the layout, null if there is none or the deadline came first
+     */
+    public char[] solve(long timeout) {
+      return render(solver.solve(timeout));
+    }
+
+    /**
+     * Whether the last solve stopped at its deadline
+     */
+    public boolean hasTimedOut() {
+      return solver.hasTimedOut();
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    public int getCols() {
+      return cols;
+    }
+
+    /**
+     * The layout using the fewest columns, counted from the left, that
+     * branch and bound finds within the timeout (0: no limit)
+     * @return the layout, null if the pieces do not fit the board at all
+     */
+    public char[] minimizeWidth(long timeout) {
+      return minimize(true, timeout);
+    }
+
+    /**
+     * The layout using the fewest rows, counted from the top
+     * @see #minimizeWidth(long)
+     */
+    public char[] minimizeHeight(long timeout) {
+      return minimize(false, timeout);
+    }
+
+    private char[] minimize(boolean width, long timeout) {
+      // One more variable for the width (or height) in use: it can be no
+      // less than the far edge of any piece, so bounding it (which the
+      // solver does after each layout it finds) keeps every piece inside
+      if (extent != null)
+        solver.removeVariable(extent);
+      extent = pieces.length;
+      int least = 1;
+      for (CircuitPiece p : pieces)
+        least = Math.max(least, width ? p.w : p.h);
+      int most = width ? cols : rows;
+      solver.addVariable(extent, least, most);
+
+      for (int p = 0; p < pieces.length; p++) {
+        Set<hashPair> constraint = new HashSet<hashPair>();
+        for (Integer val : solver.Variables.get(p)) {
+          int edge = width ? val % this.cols + pieces[p].w : val / this.cols + pieces[p].h;
+          for (int e = Math.max(edge, least); e <= most; e++)
+            constraint.add(new hashPair(val, e));
+        }
+        solver.addConstraint(p, extent, constraint);
+      }
+      return render(solver.minimize(extent, timeout));
+    }
+
+    /**
+     * Whether the last minimize proved its layout the smallest
+     */
+    public boolean isOptimal() {
+      return solver.isOptimal();
+    }
+
+    private char[] render(Map<Integer, Integer> solution) {
       if (solution == null)
         return null;
 
@@ -106,6 +217,8 @@ public class Circuit {
         result[i] = '.';
 
       for (Integer var : solution.keySet()) {
+        if (var.equals(extent))
+          continue;
         int val = solution.get(var);
         CircuitPiece p = pieces[var];
         int xStart = val % this.cols;
@@ -128,10 +241,26 @@ public class Circuit {
       pArr[3] = new CircuitPiece(7, 1, 'e');
 
       System.out.println(pArr);
-      Circuit circ = new Circuit(3, 10, pArr);
-      char[] solution = circ.solve();
-      if (solution == null)
+      // With "width" or "height" (and a timeout in milliseconds), find the
+      // narrowest or lowest layout on a board with room to spare
+      String goal = args.length > 0 ? args[0] : "";
+      long timeout = args.length > 1 ? Long.parseLong(args[1]) : 0;
+      Circuit circ;
+      char[] solution;
+      if (goal.equals("width")) {
+        circ = new Circuit(3, 20, pArr);
+        solution = circ.minimizeWidth(timeout);
+      } else if (goal.equals("height")) {
+        circ = new Circuit(10, 10, pArr);
+        solution = circ.minimizeHeight(timeout);
+      } else {
+        circ = new Circuit(3, 10, pArr);
+        solution = circ.solve();
+      }
+      if (solution == null) {
         System.out.println("Did not find a solution");
+        return;
+      }
 
       int i = 0;
       for (int y = 0; y < circ.rows; y++) {
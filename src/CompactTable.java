@@ -0,0 +1,423 @@
+package csp_solver;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Compact-Table filtering for one table constraint: the state a
+ * PropagationEngine keeps for it, while the Relation.Table itself is only
+ * read.
+ *
+ * The table's pairs are numbered by their place in the table, and a
+ * reversible sparse bitset holds the ones still valid: both of their
+ * values are still in the domains. A run first takes out the pairs of the
+ * values that left either domain since the last run, then drops every
+ * value with no valid pair left. The pairs of one x value are numbered
+ * consecutively, so they go as a range. A value looks for a valid pair
+ * where it last found one (its residue) first.
+ *
+ * Only nonzero words of the bitset are visited. A word is saved the first
+ * time it changes after a trail mark, so undoing to the mark costs as
+ * much as the changes did. While most words are nonzero, taking pairs out
+ * scans the whole bitset against the mask instead, many words a step
+ * (see BitKernels), and only stops at the words that change.
+ */
+final class CompactTable {
+    private final Relation.Table table;
+    // The valid pairs, then a bit per x value and a bit per y value for
+    // the values the pairs were last brought up to date with
+    private final long[] words;
+    private final int xBase;
+    private final int yBase;
+    // words[index[0..limit)] are the nonzero words of the valid pairs, in
+    // no particular order, and position[w] is where w is in index
+    private final int[] index;
+    private final int[] position;
+    private int limit;
+    // Scratch: the pairs of the values that left a domain, or that are left
+    private final long[] mask;
+    // Where each x value last found a valid pair (a word), and each y value
+    // (a place in its list)
+    private final int[] residueX;
+    private final int[] residueY;
+    // The domain sizes at the last run, -1 before the first
+    private int sizeX;
+    private int sizeY;
+
+    // Words as they were before their first change under a mark, with the
+    // mark each word was last saved under
+    private final int[] savedAt;
+    private int[] logWord = new int[64];
+    private long[] logValue = new long[64];
+    private int[] logPrevious = new int[64];
+    private int logSize;
+    // The same for limit and the sizes, four ints an entry
+    private int headerSavedAt;
+    private int[] headerLog = new int[64];
+    private int headerSize;
+
+    CompactTable(Relation.Table table) {
+      this.table = table;
+      int pairs = wordsFor(table.size());
+      xBase = pairs;
+      yBase = xBase + wordsFor(table.xs.length);
+      words = new long[yBase + wordsFor(table.ys.length)];
+      index = new int[pairs];
+      position = new int[pairs];
+      mask = new long[pairs];
+      savedAt = new int[words.length];
+      residueX = new int[table.xs.length];
+      residueY = new int[table.ys.length];
+      for (int i = 0; i < residueX.length; i++)
+        residueX[i] = table.xStart[i] >>> 6;
+      for (int j = 0; j < residueY.length; j++)
+        residueY[j] = table.yStart[j];
+      reset();
+    }
+
+    private static int wordsFor(int bits) {
+      return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Every pair and value valid again, for new domains
+     */
+    void reset() {
+      fill(0, table.size());
+      fill(xBase, table.xs.length);
+      fill(yBase, table.ys.length);
+      for (int w = 0; w < index.length; w++) {
+        index[w] = w;
+        position[w] = w;
+      }
+      limit = index.length;
+      sizeX = -1;
+      sizeY = -1;
+      commit();
+    }
+
+    private void fill(int base, int bits) {
+      for (int w = 0; w < wordsFor(bits); w++)
+        words[base + w] = -1L;
+      if (bits % 64 != 0)
+        words[base + wordsFor(bits) - 1] = -1L >>> (64 - bits % 64);
+    }
+
+    /**
+     * Make the current state permanent: nothing is undone past here
+     */
+    void commit() {
+      Arrays.fill(savedAt, -1);
+      logSize = 0;
+      headerSavedAt = -1;
+      headerSize = 0;
+    }
+
+    /**
+     * Put back every word changed under this mark or a later one
+     */
+    void undo(int mark) {
+      while (logSize > 0 && savedAt[logWord[logSize - 1]] >= mark) {
+        logSize--;
+        int w = logWord[logSize];
+        words[w] = logValue[logSize];
+        savedAt[w] = logPrevious[logSize];
+      }
+      while (headerSize > 0 && headerSavedAt >= mark) {
+        headerSize -= 4;
+        headerSavedAt = headerLog[headerSize];
+        limit = headerLog[headerSize + 1];
+        sizeX = headerLog[headerSize + 2];
+        sizeY = headerLog[headerSize + 3];
+      }
+    }
+
+    /**
+     * Bring the valid pairs up to date with the domains and drop every
+     * value without one
+     * @param mark  the current trail mark, that changes are saved under
+     * @return false if a domain was wiped out
+     */
+    boolean filter(Set<Integer> domainX, Set<Integer> domainY,
+                   Relation.Removal removedX, Relation.Removal removedY, int mark) {
+      if (sizeX < 0)
+        dropUnknown(domainX, table.xs, removedX);
+      if (sizeY < 0)
+        dropUnknown(domainY, table.ys, removedY);
+      if (domainX.size() != sizeX)
+        update(domainX, true, sizeX, mark);
+      if (domainY.size() != sizeY)
+        update(domainY, false, sizeY, mark);
+      // Every pair left has both values in the domains, and a value of x
+      // without one has none of them: dropping it invalidates nothing
+      prune(domainX, true, removedX, mark);
+      prune(domainY, false, removedY, mark);
+      saveHeader(mark);
+      sizeX = domainX.size();
+      sizeY = domainY.size();
+      return ! domainX.isEmpty() && ! domainY.isEmpty();
+    }
+
+    /**
+     * Drop the values no pair has at all
+     */
+    private static void dropUnknown(Set<Integer> domain, int[] values, Relation.Removal removed) {
+      Iterator<Integer> it = domain.iterator();
+      while (it.hasNext()) {
+        int v = it.next();
+        if (Arrays.binarySearch(values, v) < 0) {
+          it.remove();
+          removed.accept(v);
+        }
+      }
+    }
+
+    /**
+     * Take out the pairs of every value that left the domain since the
+     * last run, when it had size values (or all of them, -1)
+     */
+    private void update(Set<Integer> domain, boolean isX, int size, int mark) {
+      int base = isX ? xBase : yBase;
+      int[] values = isX ? table.xs : table.ys;
+      for (int i = 0; i < limit; i++)
+        mask[index[i]] = 0;
+      if (size >= 0 && domain.size() < size - domain.size()) {
+        // Fewer values left than gone: keep the pairs of those left
+        for (int w = 0; w < wordsFor(values.length); w++) {
+          if (words[base + w] != 0) {
+            save(base + w, mark);
+            words[base + w] = 0;
+          }
+        }
+        if (domain instanceof RangeDomain) {
+          RangeDomain ranges = (RangeDomain) domain;
+          for (long v = ranges.ceiling(Integer.MIN_VALUE); v != RangeDomain.NONE; v = ranges.ceiling(v + 1))
+            keep(base, values, (int) v, isX);
+        } else {
+          for (Integer v : domain)
+            keep(base, values, v, isX);
+        }
+        removeMasked(false, mark);
+        return;
+      }
+      // The values are sorted, so a range domain is walked run by run
+      // alongside them rather than searched for each
+      RangeDomain ranges = domain instanceof RangeDomain ? (RangeDomain) domain : null;
+      long low = ranges == null ? RangeDomain.NONE : ranges.ceiling(Integer.MIN_VALUE);
+      long high = low == RangeDomain.NONE ? Long.MIN_VALUE : ranges.runEnd((int) low);
+      boolean gone = false;
+      for (int w = 0; w < wordsFor(values.length); w++) {
+        long out = 0;
+        for (long bits = words[base + w]; bits != 0; bits &= bits - 1) {
+          int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+          boolean in;
+          if (ranges != null) {
+            while (low != RangeDomain.NONE && values[i] > high) {
+              low = ranges.ceiling(high + 1);
+              high = low == RangeDomain.NONE ? Long.MIN_VALUE : ranges.runEnd((int) low);
+            }
+            in = low != RangeDomain.NONE && values[i] >= low;
+          } else {
+            in = domain.contains(values[i]);
+          }
+          if (! in) {
+            out |= 1L << i;
+            maskPairs(isX, i);
+          }
+        }
+        if (out != 0) {
+          save(base + w, mark);
+          words[base + w] &= ~out;
+          gone = true;
+        }
+      }
+      if (gone)
+        removeMasked(true, mark);
+    }
+
+    /**
+     * Mark a value as left, and its pairs as kept
+     */
+    private void keep(int base, int[] values, int value, boolean isX) {
+      int i = Arrays.binarySearch(values, value);
+      if (i < 0)
+        return;
+      words[base + (i >>> 6)] |= 1L << i;
+      maskPairs(isX, i);
+    }
+
+    private void maskPairs(boolean isX, int i) {
+      if (isX)
+        maskRange(table.xStart[i], table.xStart[i + 1]);
+      else
+        maskList(table.yStart[i], table.yStart[i + 1]);
+    }
+
+    /**
+     * Drop every value the valid pairs no longer support
+     */
+    private void prune(Set<Integer> domain, boolean isX, Relation.Removal removed, int mark) {
+      int base = isX ? xBase : yBase;
+      int[] values = isX ? table.xs : table.ys;
+      for (int w = 0; w < wordsFor(values.length); w++) {
+        for (long bits = words[base + w]; bits != 0; bits &= bits - 1) {
+          int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+          if (isX ? supportedX(i) : supportedY(i))
+            continue;
+          clearValue(base, i, mark);
+          if (domain instanceof RangeDomain)
+            ((RangeDomain) domain).remove(values[i]);
+          else
+            domain.remove(values[i]);
+          removed.accept(values[i]);
+        }
+      }
+    }
+
+    private void clearValue(int base, int i, int mark) {
+      int w = base + (i >>> 6);
+      save(w, mark);
+      words[w] &= ~(1L << i);
+    }
+
+    /**
+     * Add the pairs from up to (not including) to to the mask. Only the
+     * words in play are read, so only they were cleared.
+     */
+    private void maskRange(int from, int to) {
+      if (from >= to)
+        return;
+      int first = from >>> 6, last = (to - 1) >>> 6;
+      if (first == last) {
+        mask[first] |= bits(first, from, to);
+        return;
+      }
+      mask[first] |= -1L << from;
+      for (int w = first + 1; w < last; w++)
+        mask[w] = -1L;
+      mask[last] |= bits(last, from, to);
+    }
+
+    /**
+     * Add the pairs listed in yTuples from up to (not including) to
+     */
+    private void maskList(int from, int to) {
+      int[] tuples = table.yTuples;
+      for (int k = from; k < to; k++)
+        mask[tuples[k] >>> 6] |= 1L << tuples[k];
+    }
+
+    /**
+     * Take the masked pairs out of the valid ones, or keep only those
+     */
+    private void removeMasked(boolean masked, int mark) {
+      if (limit * 2 >= index.length) {
+        // Mostly nonzero: scan them all in order. A zero word stays zero,
+        // and every nonzero one had its mask word cleared.
+        int pairs = index.length;
+        for (int w = next(masked, 0); w < pairs; w = next(masked, w + 1))
+          removeMasked(w, masked ? words[w] & ~mask[w] : words[w] & mask[w], mark);
+        return;
+      }
+      for (int i = limit - 1; i >= 0; i--) {
+        int w = index[i];
+        long kept = masked ? words[w] & ~mask[w] : words[w] & mask[w];
+        if (kept != words[w])
+          removeMasked(w, kept, mark);
+      }
+    }
+
+    /**
+     * The first word from w on that removeMasked changes
+     */
+    private int next(boolean masked, int w) {
+      if (masked)
+        return BitKernels.nextCommon(words, mask, w, index.length);
+      return BitKernels.nextOutside(words, mask, w, index.length);
+    }
+
+    private void removeMasked(int w, long kept, int mark) {
+      save(w, mark);
+      words[w] = kept;
+      if (kept != 0)
+        return;
+      // Swap it with the last nonzero word, past which it then lies
+      saveHeader(mark);
+      limit--;
+      int i = position[w], last = index[limit];
+      index[i] = last;
+      position[last] = i;
+      index[limit] = w;
+      position[w] = limit;
+    }
+
+    private boolean supportedX(int i) {
+      int from = table.xStart[i], to = table.xStart[i + 1];
+      int r = residueX[i];
+      if ((words[r] & bits(r, from, to)) != 0)
+        return true;
+      for (int w = from >>> 6; w <= (to - 1) >>> 6; w++) {
+        if ((words[w] & bits(w, from, to)) != 0) {
+          residueX[i] = w;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean supportedY(int j) {
+      int[] tuples = table.yTuples;
+      int t = tuples[residueY[j]];
+      if ((words[t >>> 6] & (1L << t)) != 0)
+        return true;
+      for (int k = table.yStart[j]; k < table.yStart[j + 1]; k++) {
+        t = tuples[k];
+        if ((words[t >>> 6] & (1L << t)) != 0) {
+          residueY[j] = k;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * The bits of word w that are pairs from up to (not including) to
+     */
+    private static long bits(int w, int from, int to) {
+      long bits = -1L;
+      if (from > w << 6)
+        bits &= -1L << from;
+      if (to < (w + 1) << 6)
+        bits &= -1L >>> (64 - (to & 63));
+      return bits;
+    }
+
+    private void save(int w, int mark) {
+      if (savedAt[w] == mark)
+        return;
+      if (logSize == logWord.length) {
+        logWord = Arrays.copyOf(logWord, logSize * 2);
+        logValue = Arrays.copyOf(logValue, logSize * 2);
+        logPrevious = Arrays.copyOf(logPrevious, logSize * 2);
+      }
+      logWord[logSize] = w;
+      logValue[logSize] = words[w];
+      logPrevious[logSize] = savedAt[w];
+      logSize++;
+      savedAt[w] = mark;
+    }
+
+    private void saveHeader(int mark) {
+      if (headerSavedAt == mark)
+        return;
+      if (headerSize == headerLog.length)
+        headerLog = Arrays.copyOf(headerLog, headerSize * 2);
+      headerLog[headerSize] = headerSavedAt;
+      headerLog[headerSize + 1] = limit;
+      headerLog[headerSize + 2] = sizeX;
+      headerLog[headerSize + 3] = sizeY;
+      headerSize += 4;
+      headerSavedAt = mark;
+    }
+}
@@ -0,0 +1,68 @@
+package csp_solver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A model fixed for solving: the declared domains, the constraints, and
+ * the propagation network built over them, none of which ever changes
+ * again. Any number of solvers can share one, on any threads
+ * (new ConstraintSatisfactionProblem(model)): each keeps only its own
+ * working domains, trail, weights and counters, so another solver costs
+ * memory in proportion to that state rather than to the constraints.
+ *
+ * Variants are solved as assumptions (solve(Map)) or as edits: the first
+ * edit gives that solver private copies, and the model stays as it was.
+ */
+public final class CompiledModel {
+    // Never changed, nor are the domains in it; solvers copy them
+    private final Map<Integer, Set<Integer>> domains;
+    private final Map<hashPair, Relation> constraints;
+    final PropagationEngine.Network network;
+
+    /**
+     * A model over maps nothing else refers to, which it keeps rather than
+     * copies (eg just read back by ModelSnapshot); nothing may change them
+     * afterwards
+     */
+    CompiledModel(Map<Integer, Set<Integer>> domains, Map<hashPair, Relation> constraints) {
+      this.domains = Collections.unmodifiableMap(domains);
+      this.constraints = Collections.unmodifiableMap(constraints);
+      this.network = new PropagationEngine.Network(this.domains.keySet(), this.constraints);
+    }
+
+    /**
+     * A model over copies of a solver's domains and constraints
+     */
+    static CompiledModel copyOf(Map<Integer, Set<Integer>> declared, Map<hashPair, Relation> constraints) {
+      return new CompiledModel(copy(declared), new HashMap<hashPair, Relation>(constraints));
+    }
+
+    private static Map<Integer, Set<Integer>> copy(Map<Integer, Set<Integer>> declared) {
+      Map<Integer, Set<Integer>> domains = new HashMap<Integer, Set<Integer>>();
+      for (Map.Entry<Integer, Set<Integer>> e : declared.entrySet())
+        domains.put(e.getKey(), RangeDomain.copyOf(e.getValue()));
+      return domains;
+    }
+
+    /**
+     * The declared domains, by variable id. Read only, like the sets in it.
+     */
+    Map<Integer, Set<Integer>> domains() {
+      return domains;
+    }
+
+    Map<hashPair, Relation> constraints() {
+      return constraints;
+    }
+
+    public int getVariableCount() {
+      return domains.size();
+    }
+
+    public int getConstraintCount() {
+      return constraints.size();
+    }
+}
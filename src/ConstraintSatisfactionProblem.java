@@ -2,15 +2,18 @@ package csp_solver;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.Iterator;
-import javafx.util.Pair;
-import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.ToIntFunction;
 
 /**
  * Simple CSP solver
@@ -18,43 +21,191 @@ import java.util.LinkedList;
  */
 public class ConstraintSatisfactionProblem {
     public final int MAX_CAPACITY = 1000000;
+    // Skip the entailment test for constraints bigger than this (assume not entailed)
+    private static final long ENTAILMENT_CHECK_LIMIT = 1 << 16;
     private int nodesExplored;
     private int constraintsChecked;
+    private int restarts;
 
-    private boolean MRV;
-    private boolean LCV;
-    private boolean AC3;
-    private boolean MAC3;
+    // Restart strategies: cutoffs (in failures) growing by the Luby sequence
+    // 1, 1, 2, 1, 1, 2, 4, ... or geometrically
+    public enum Restarts { NONE, LUBY, GEOMETRIC }
 
+    // Where the working domains and the trail are kept: on the heap, or
+    // off it in MemorySegments (see DomainStore), which needs the JVM run
+    // with --enable-preview on Java 21
+    public enum Storage { HEAP, OFF_HEAP }
+
+    // The features to use as configured, and as used by the current solve
+    // (the same unless the config is in auto mode)
+    private SolverConfig config;
+    private SolverConfig active;
+    // Only shuffle value orders up to this many values
+    private static final int RANDOM_ORDER_LIMIT = 1 << 12;
+
+    // Failed assignments in the current run, and how many the run may have
+    private int failures;
+    private long failureLimit = Long.MAX_VALUE;
+    private Random random;
+
+    // The search trace, while a traced solve runs
+    private SearchTrace trace;
+
+    // Set when a sibling component failed, so this subproblem can give up
+    // early, or when the solve was cancelled from outside
+    private volatile boolean cancelled;
+    // The solver this is a component of, whose cancellation and deadline
+    // it shares
+    private ConstraintSatisfactionProblem owner;
+    // Decisions the current solve starts from (by variable id), or null
+    private Map<Integer, Integer> assumptions;
+
+    // Branch and bound: the objective to minimize (a variable, by id and
+    // by engine number, or a function of whole solutions), the largest
+    // value a solution may still have, and the best solution so far
+    private Integer objectiveId;
+    private int objectiveVar = -1;
+    private ToIntFunction<Map<Integer, Integer>> objectiveFunction;
+    private long objectiveLimit;
+    private Map<Integer, Integer> best;
+    private Integer bestValue;
+    // When the search must stop (System.nanoTime), and whether it did
+    private boolean hasDeadline;
+    private long deadline;
+    private boolean timedOut;
+
+    // The working domains, pruned and restored as the search goes
     protected Map<Integer, Set<Integer>> Variables;
+    // The domains as the user declared (or last edited) them
+    private Map<Integer, Set<Integer>> declared;
+
+    // Warm start: the domains right after the last AC-3 pass, the last
+    // solution, and which variables have been edited since then
+    private Map<Integer, Set<Integer>> propagated;
+    private Map<Integer, Integer> lastSolution;
+    private Set<Integer> tightened;
+    private Set<Integer> relaxed;
     
-    // Let's be real: This is one nasty-looking data structure.
-    //    Breakdown: We got a Pair of Variables
-    //    This maps to a set of acceptable values of these two variables.
-    protected Map<hashPair, Set<hashPair>> Constraints;
+    // Each scope (a Pair of Variables) maps to the Relation its two values
+    // must satisfy: either a set of acceptable pairs or a predicate.
+    protected Map<hashPair, Relation> Constraints;
+
+    // Built from Constraints on demand, dropped whenever they change
+    private PropagationEngine engine;
+    // The working domains off the heap, with OFF_HEAP storage
+    private DomainStore store;
+    // The compiled model this solver shares, until the first edit: while
+    // it is set, declared and Constraints are the model's, read only
+    private CompiledModel model;
 
-    private ArrayList<Map<Integer, Set<Integer>>> removedLogs;
-    private ArrayList<Map<Integer, Integer>> addLogs;
+    // The search state, by the engine's variable numbers: each variable's
+    // value if it is assigned, and the assigned ones in assignment order
+    private int[] assignedValue;
+    private boolean[] assigned;
+    private int[] assignedOrder;
+    private int assignedCount;
+    // Warm start: the value each variable had in the last solution, if any
+    private int[] hint;
+    private boolean[] hinted;
+    private final List<ValueOrder> valueOrders = new ArrayList<ValueOrder>();
+    // The search stack, by depth: the variable decided there, and the trail
+    // and assignment marks its values are undone back to
+    private int[] decisionVar = new int[16];
+    private int[] decisionTrail = new int[16];
+    private int[] decisionAssigned = new int[16];
+    // The union-find findComponents runs over the engine's constraints
+    private int[] parent;
 
+    /**
+     * A solver with the config in the csp.config system property, or the
+     * default one
+     */
     public ConstraintSatisfactionProblem() {
+      this(SolverConfig.fromSystemProperty());
+    }
+
+    public ConstraintSatisfactionProblem(SolverConfig config) {
       nodesExplored = 0;
       constraintsChecked = 0;
-
-      /* USE THIS SECTION TO MODIFY ACTIVE FEATURES */
-      this.MRV = false;
-      this.LCV = false;
-      this.AC3 = true;
-      this.MAC3 = true;
+      setConfig(config);
 
       Variables = new HashMap<Integer, Set<Integer>>();
-      Constraints = new HashMap<hashPair, Set<hashPair>>();
+      declared = new HashMap<Integer, Set<Integer>>();
+      Constraints = new HashMap<hashPair, Relation>();
+      tightened = new HashSet<Integer>();
+      relaxed = new HashSet<Integer>();
+    }
+
+    /**
+     * A solver for a compiled model, with the config in the csp.config
+     * system property, or the default one
+     */
+    public ConstraintSatisfactionProblem(CompiledModel model) {
+      this(model, SolverConfig.fromSystemProperty());
+    }
+
+    /**
+     * A solver for a compiled model, which it shares with every other
+     * solver for it: this one only holds its own search state
+     */
+    public ConstraintSatisfactionProblem(CompiledModel model, SolverConfig config) {
+      this(config);
+      this.model = model;
+      declared = model.domains();
+      Constraints = model.constraints();
+      for (Map.Entry<Integer, Set<Integer>> e : declared.entrySet())
+        this.Variables.put(e.getKey(), RangeDomain.copyOf(e.getValue()));
+    }
+
+    /**
+     * The model as it is now, fixed, for other solvers to share (from
+     * then on this one shares it too, until it is edited)
+     */
+    public CompiledModel compile() {
+      if (model == null) {
+        model = CompiledModel.copyOf(declared, Constraints);
+        declared = model.domains();
+        Constraints = model.constraints();
+        engine = null;
+      }
+      return model;
+    }
+
+    /**
+     * Edits go to private copies of the declared domains and constraints
+     * rather than to a compiled model others share
+     */
+    private void detach() {
+      if (model == null)
+        return;
+      Map<Integer, Set<Integer>> own = new HashMap<Integer, Set<Integer>>();
+      for (Map.Entry<Integer, Set<Integer>> e : declared.entrySet())
+        own.put(e.getKey(), RangeDomain.copyOf(e.getValue()));
+      declared = own;
+      Constraints = new HashMap<hashPair, Relation>(Constraints);
+      model = null;
+    }
+
+    public SolverConfig getConfig() {
+      return config;
+    }
+
+    /**
+     * Use a different config from the next solve on
+     */
+    public void setConfig(SolverConfig config) {
+      if (config == null)
+        throw new IllegalArgumentException("config must not be null");
+      this.config = config;
+      this.active = config;
+    }
 
-      removedLogs = new ArrayList<Map<Integer, Set<Integer>>>();
-      addLogs = new ArrayList<Map<Integer, Integer>>();
-      removedLogs.ensureCapacity(MAX_CAPACITY);
-      addLogs.ensureCapacity(MAX_CAPACITY);
-      removedLogs.add(new HashMap<Integer, Set<Integer>>());
-      addLogs.add(new HashMap<Integer, Integer>());
+    /**
+     * The config the last solve actually used (in auto mode, the one it
+     * picked)
+     */
+    public SolverConfig getActiveConfig() {
+      return active;
     }
 
     /**
@@ -62,20 +213,703 @@ public class ConstraintSatisfactionProblem {
      * @return the mapping from variables to values
      */
     public Map<Integer, Integer> solve() {
+      return solve(null);
+    }
+
+    /**
+     * Solve with some variables fixed up front, eg a cube from cubes().
+     * Only this solve sees them: the model and its warm start are kept.
+     * @param assumptions  values by variable id, null for none
+     * @return a solution that agrees with them, null if there is none
+     */
+    public Map<Integer, Integer> solve(Map<Integer, Integer> assumptions) {
+      this.assumptions = assumptions;
+      try {
+        return solveAssuming();
+      } finally {
+        this.assumptions = null;
+      }
+    }
+
+    /**
+     * Forget what earlier solves learnt about the search: the constraint
+     * weights dom/wdeg goes by and the last solution, whose values are
+     * tried first. For reusing the model on an unrelated instance, where
+     * they would only mislead; the domains' warm start is kept.
+     */
+    public void forget() {
+      lastSolution = null;
+      if (engine != null)
+        engine.resetWeights();
+    }
+
+    /**
+     * Solve, giving up at a deadline
+     * @param timeout  milliseconds to search for, 0 for no limit
+     * @return a solution, null if there is none or the deadline came first
+     *         (see hasTimedOut)
+     */
+    public Map<Integer, Integer> solve(long timeout) {
+      return solve(null, timeout);
+    }
+
+    /**
+     * Solve under assumptions, giving up at a deadline
+     * @see #solve(Map)
+     * @see #solve(long)
+     */
+    public Map<Integer, Integer> solve(Map<Integer, Integer> assumptions, long timeout) {
+      if (timeout < 0)
+        throw new IllegalArgumentException("timeout must not be negative");
+      timedOut = false;
+      hasDeadline = timeout > 0;
+      deadline = System.nanoTime() + timeout * 1000000;
+      try {
+        return solve(assumptions);
+      } finally {
+        hasDeadline = false;
+      }
+    }
+
+    /**
+     * Whether the last solve or minimize with a timeout stopped at its
+     * deadline
+     */
+    public boolean hasTimedOut() {
+      return timedOut;
+    }
+
+    private Map<Integer, Integer> solveAssuming() {
         resetStats();
+        cancelled = false;
         long before = System.currentTimeMillis();
-        if (!enforceConsistency(new HashMap<Integer, Set<Integer>>()))
+        active = config;
+        random = new Random(active.getSeed());
+
+        Collection<hashPair> arcs = prepareDomains();
+        engine().bind();
+        if (!enforceConsistency(arcs)) {
+            propagated = null;
+            return null;
+        }
+        engine().commit(); // Nothing the search does undoes AC-3's pruning
+        if (config.isAuto()) {
+          InstanceFeatures features = InstanceFeatures.measure(this.Variables, this.Constraints);
+          active = config.adaptTo(features);
+          random = new Random(active.getSeed());
+          if (active.isStats())
+            System.out.println("Auto configuration for " + features + ": " + active.strategy());
+        }
+
+        // PC tightens constraints for this solve only: the tighter relations
+        // depend on the current domains, so the model keeps the originals
+        Map<hashPair, Relation> original = this.Constraints;
+        Map<Integer, Integer> solution;
+        try {
+          if (!preprocess()) {
+            propagated = null;
             return null;
-        Map<Integer, Integer> solution = backtracking(new HashMap<>(), 0);
+          }
+          rememberPropagated();
+
+          if (active.getTrace() != null)
+            trace = new SearchTrace(active.getTrace(), active.getTraceCapacity());
+          solution = search();
+          if (optimizing())
+            solution = best;
+        } finally {
+          if (trace != null) {
+            trace.close();
+            trace = null;
+          }
+          if (this.Constraints != original) {
+            this.Constraints = original;
+            engine = null;
+          }
+        }
+        if (solution != null)
+          lastSolution = new HashMap<Integer, Integer>(solution);
         double duration = (System.currentTimeMillis() - before) / 1000.0;
-        printStats();
-        System.out.println(String.format("Search time is %.2f second", duration));
+        if (active.isStats()) {
+          printStats();
+          System.out.println(String.format("Search time is %.2f second", duration));
+        }
         return solution;
     }
+
+    /**
+     * Stop the current solve (from another thread): it returns null, or
+     * the best solution so far when minimizing
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    private boolean isCancelled() {
+      return cancelled || (owner != null && owner.isCancelled());
+    }
+
+    /**
+     * Split the search into cubes, for cube-and-conquer: the values of the
+     * first variables the search would branch on, up to depth of them,
+     * propagating after each. Branches propagation refutes are left out,
+     * so every solution agrees with exactly one cube, and solving under
+     * each cube (solve(cube)) covers the whole search.
+     * @return the cubes, by variable id; none if arc consistency already
+     *         shows there is no solution
+     */
+    public List<Map<Integer, Integer>> cubes(int depth) {
+      resetStats();
+      active = config;
+      random = new Random(active.getSeed());
+      List<Map<Integer, Integer>> cubes = new ArrayList<Map<Integer, Integer>>();
+      Collection<hashPair> arcs = prepareDomains();
+      engine().bind();
+      if (! enforceConsistency(arcs)) {
+        propagated = null;
+        return cubes;
+      }
+      engine().commit();
+      rememberPropagated();
+      resetAssignment();
+      split(0, depth, new int[depth], new int[depth], cubes);
+      return cubes;
+    }
+
+    private void split(int decided, int depth, int[] vars, int[] values, List<Map<Integer, Integer>> cubes) {
+      PropagationEngine propagation = engine();
+      int var = selectUnassignedVariable();
+      if (decided == depth || var == -1) {
+        Map<Integer, Integer> cube = new HashMap<Integer, Integer>();
+        for (int i = 0; i < decided; i++)
+          cube.put(propagation.idOf(vars[i]), values[i]);
+        cubes.add(cube);
+        return;
+      }
+      int trailMark = propagation.mark();
+      int assignedMark = assignedCount;
+      // The domain changes while its values are tried
+      for (Integer x : new ArrayList<Integer>(propagation.domain(var))) {
+        assign(var, x);
+        incrementNodeCount();
+        if (inference(var, x)) {
+          vars[decided] = var;
+          values[decided] = x;
+          split(decided + 1, depth, vars, values, cubes);
+        }
+        propagation.undo(trailMark);
+        unassign(assignedMark);
+      }
+    }
+
+    /**
+     * Assign and propagate the assumptions of the current solve
+     * @return false if they contradict each other or the constraints
+     */
+    private boolean assume() {
+      PropagationEngine propagation = engine();
+      for (Map.Entry<Integer, Integer> a : assumptions.entrySet()) {
+        int var = propagation.indexOf(a.getKey());
+        int value = a.getValue();
+        if (assigned[var]) {
+          // Propagating the ones before may have fixed it already
+          if (assignedValue[var] != value)
+            return false;
+          continue;
+        }
+        if (! contains(propagation.domain(var), value))
+          return false;
+        assign(var, value);
+        if (! inference(var, value))
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * Branch and bound: the solution with the smallest value of the given
+     * variable. Each solution found bounds the rest of the search: the
+     * variable loses every value that is not better, and that removal is
+     * propagated like any other, so the model is never rebuilt.
+     * @param variable  the identifier of the variable to minimize
+     * @param timeout   milliseconds to search for, 0 for no limit; the best
+     *                  solution found by then is returned
+     * @return the best solution found, null if there is none
+     */
+    public Map<Integer, Integer> minimize(Integer variable, long timeout) {
+      if (! this.Variables.containsKey(variable))
+        throw new IllegalArgumentException("No variable " + variable + " to minimize");
+      return optimize(variable, null, timeout);
+    }
+
+    /**
+     * Branch and bound on a function of whole solutions. A solution is only
+     * kept if it is better than the best so far, but nothing is pruned
+     * before an assignment is complete: an objective that can be written as
+     * a variable constrained by the others searches far less.
+     * @see #minimize(Integer, long)
+     */
+    public Map<Integer, Integer> minimize(ToIntFunction<Map<Integer, Integer>> objective, long timeout) {
+      if (objective == null)
+        throw new IllegalArgumentException("objective must not be null");
+      return optimize(null, objective, timeout);
+    }
+
+    private Map<Integer, Integer> optimize(Integer variable, ToIntFunction<Map<Integer, Integer>> function,
+                                           long timeout) {
+      if (timeout < 0)
+        throw new IllegalArgumentException("timeout must not be negative");
+      objectiveId = variable;
+      objectiveFunction = function;
+      objectiveLimit = Integer.MAX_VALUE;
+      best = null;
+      bestValue = null;
+      timedOut = false;
+      hasDeadline = timeout > 0;
+      deadline = System.nanoTime() + timeout * 1000000;
+      try {
+        return solve();
+      } finally {
+        objectiveId = null;
+        objectiveVar = -1;
+        objectiveFunction = null;
+        hasDeadline = false;
+        best = null;
+      }
+    }
+
+    /**
+     * The objective value of the last minimize's solution, null if it
+     * found none
+     */
+    public Integer getObjectiveValue() {
+      return bestValue;
+    }
+
+    /**
+     * Whether the last minimize searched to the end, so its solution is
+     * optimal (or there is none), rather than stopping at the deadline
+     */
+    public boolean isOptimal() {
+      return ! timedOut;
+    }
+
+    private boolean optimizing() {
+      return objectiveId != null || objectiveFunction != null;
+    }
+
+    /**
+     * A complete assignment while minimizing: keep it if it is better and
+     * let the bound exclude everything that is not
+     */
+    private void improve() {
+      int value = objectiveVar >= 0 ? assignedValue[objectiveVar] : objectiveFunction.applyAsInt(assignment());
+      if (value > objectiveLimit)
+        return;
+      best = assignment();
+      bestValue = value;
+      objectiveLimit = value - 1L;
+      if (active.isStats())
+        System.out.println("Objective " + value + " after " + nodesExplored + " nodes");
+    }
+
+    /**
+     * Whether the deadline of the current solve or minimize has passed
+     */
+    private boolean pastDeadline() {
+      if (! hasDeadline)
+        return false;
+      if (! timedOut && System.nanoTime() - deadline > 0)
+        timedOut = true;
+      return timedOut;
+    }
+
+    /**
+     * Keep the arc consistent domains for the next solve's warm start
+     */
+    private void rememberPropagated() {
+      propagated = new HashMap<Integer, Set<Integer>>();
+      for (Integer v : this.Variables.keySet()) {
+        Set<Integer> copy = store == null ? null : store.remember(v);
+        propagated.put(v, copy != null ? copy : RangeDomain.copyOf(this.Variables.get(v)));
+      }
+    }
+
+    /**
+     * Optional SAC and PC passes over the arc consistent domains
+     * @return false if they proved there is no solution
+     */
+    private boolean preprocess() {
+      if (! active.isSAC() && ! active.isPC())
+        return true;
+      if (active.isPC()) {
+        this.Constraints = new HashMap<hashPair, Relation>(this.Constraints);
+        engine = null;
+      }
+      Preprocessor pre = new Preprocessor(this.Variables, this.Constraints, active.getPreprocessBudget());
+      boolean consistent = (! active.isPC() || pre.pathConsistency())
+                           && (! active.isSAC() || pre.singletonArcConsistency());
+      if (active.isStats())
+        pre.printStats();
+      return consistent;
+    }
+
+    /**
+     * Set up the working domains for a solve.
+     * The first solve starts from the declared domains and checks every arc.
+     * Later solves start from the domains left by the last AC-3 pass:
+     * edits that only shrink the model (fewer values, more constraints) keep
+     * those domains and recheck the arcs around the edited variables. Edits
+     * that relax it reset the connected parts of the constraint graph they
+     * touch, since the old pruning there may no longer hold.
+     * @return the arcs AC-3 has to start from
+     */
+    private Collection<hashPair> prepareDomains() {
+      boolean offHeap = active.getStorage() == Storage.OFF_HEAP;
+      if (! offHeap)
+        store = null;
+      else if (store == null || ! store.fits(engine(), declared))
+        store = new DomainStore(engine(), declared, store);
+      engine().setOffHeapTrail(offHeap);
+
+      if (propagated == null) {
+        for (Integer v : declared.keySet())
+          this.Variables.put(v, workingDomain(v));
+        tightened.clear();
+        relaxed.clear();
+        return Constraints.keySet();
+      }
+
+      Set<Integer> touched = new HashSet<Integer>(tightened);
+      Set<Integer> reset = connectedTo(relaxed);
+      for (Integer v : declared.keySet()) {
+        Set<Integer> domain = workingDomain(v);
+        if (! reset.contains(v) && propagated.containsKey(v))
+          domain.retainAll(propagated.get(v));
+        this.Variables.put(v, domain);
+      }
+      touched.addAll(reset);
+      tightened.clear();
+      relaxed.clear();
+
+      List<hashPair> arcs = new ArrayList<hashPair>();
+      for (hashPair scope : Constraints.keySet()) {
+        if (touched.contains(scope.getX()) || touched.contains(scope.getY()))
+          arcs.add(scope);
+      }
+      return arcs;
+    }
+
+    /**
+     * A working domain holding a variable's declared values: its slot in
+     * the store, or a copy on the heap
+     */
+    private Set<Integer> workingDomain(Integer v) {
+      Set<Integer> domain = store == null ? null : store.load(v, declared.get(v));
+      return domain != null ? domain : RangeDomain.copyOf(declared.get(v));
+    }
+
+    /**
+     * Every variable linked to the given ones through some constraint
+     */
+    private Set<Integer> connectedTo(Set<Integer> start) {
+      Set<Integer> reached = new HashSet<Integer>();
+      if (start.isEmpty())
+        return reached;
+      Map<Integer, List<Integer>> neighbours = new HashMap<Integer, List<Integer>>();
+      for (hashPair scope : Constraints.keySet()) {
+        neighbours.computeIfAbsent(scope.getX(), k -> new ArrayList<Integer>()).add(scope.getY());
+        neighbours.computeIfAbsent(scope.getY(), k -> new ArrayList<Integer>()).add(scope.getX());
+      }
+      ArrayDeque<Integer> frontier = new ArrayDeque<Integer>();
+      for (Integer v : start) {
+        if (declared.containsKey(v) && reached.add(v))
+          frontier.add(v);
+      }
+      while (! frontier.isEmpty()) {
+        Integer v = frontier.remove();
+        for (Integer n : neighbours.getOrDefault(v, Collections.<Integer>emptyList())) {
+          if (reached.add(n))
+            frontier.add(n);
+        }
+      }
+      return reached;
+    }
+
+    /**
+     * Search from the current (already consistent) domains.
+     * If the constraint graph falls apart into independent components,
+     * each one is solved on its own and the solutions are merged.
+     */
+    private Map<Integer, Integer> search() {
+        resetAssignment();
+        if (assumptions != null && ! assume())
+          return null;
+        // Components are solved on their own, which loses the objective
+        if (active.isDecompose() && ! optimizing()) {
+          // Components leave out the variables down to one value, trusting
+          // their constraints to hold: AC-3 made sure of that, otherwise
+          // they are fixed and propagated first
+          if (! active.isAC3() && ! fixSingletons())
+            return null;
+          List<Set<Integer>> components = findComponents();
+          if (components.size() > 1)
+            return solveComponents(components, 0);
+        }
+        if (active.getRestarts() == Restarts.NONE)
+          return backtracking();
+
+        // Each run gives up after its cutoff in failures and starts over from
+        // the root; randomized ties and the constraint weights learnt so far
+        // send the next run down a different path. Cutoffs keep growing, so
+        // a run eventually finishes and the search stays complete.
+        for (int run = 0; ; run++) {
+          failures = 0;
+          failureLimit = cutoff(run);
+          Map<Integer, Integer> result = backtracking();
+          if (result != null || failures < failureLimit || isCancelled() || pastDeadline()) {
+            failureLimit = Long.MAX_VALUE;
+            return result;
+          }
+          restarts++;
+          if (trace != null)
+            trace.record(SearchTrace.RESTART, 0, -1, run + 1);
+        }
+    }
+
+    /**
+     * Assign every variable with a single value left and propagate it, as
+     * inference does for the values a decision forces
+     * @return false if a domain is empty or a wipe-out follows
+     */
+    private boolean fixSingletons() {
+      PropagationEngine propagation = engine();
+      for (int v = 0; v < assigned.length; v++) {
+        if (assigned[v])
+          continue;
+        Set<Integer> domain = propagation.domain(v);
+        if (domain.isEmpty())
+          return false;
+        if (domain.size() == 1) {
+          int value = Relation.only(domain);
+          assign(v, value);
+          if (! inference(v, value))
+            return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * How many failures the given run (counting from 0) may have
+     */
+    private long cutoff(int run) {
+      if (active.getRestarts() == Restarts.LUBY)
+        return active.getRestartBase() * luby(run + 1);
+      return (long) Math.ceil(active.getRestartBase() * Math.pow(active.getRestartGrowth(), run));
+    }
+
+    /**
+     * The i-th term (from 1) of the Luby sequence 1, 1, 2, 1, 1, 2, 4, ...
+     */
+    static long luby(int i) {
+      int k = 1;
+      while ((1L << k) - 1 < i)
+        k++;
+      if ((1L << k) - 1 == i)
+        return 1L << (k - 1);
+      return luby(i - (1 << (k - 1)) + 1);
+    }
+
+    /**
+     * Connected components of the constraint graph over the unassigned
+     * variables. Constraints that every remaining pair of values satisfies
+     * can no longer link two variables, so they are left out. Variables
+     * with a single value left are not part of any component.
+     * Works on the engine's variable numbers with a union-find, so that
+     * nothing is allocated unless the graph has actually come apart.
+     * @return the components, each a set of variables; empty if there
+     *         are fewer than two
+     */
+    private List<Set<Integer>> findComponents() {
+      PropagationEngine propagation = engine();
+      for (int v = 0; v < parent.length; v++)
+        parent[v] = v;
+      for (int c = 0; c < propagation.constraintCount(); c++) {
+        int x = propagation.scopeX(c), y = propagation.scopeY(c);
+        if (! isOpen(x) || ! isOpen(y) || isEntailed(c))
+          continue;
+        parent[root(x)] = root(y);
+      }
+
+      int roots = 0;
+      for (int v = 0; v < parent.length; v++) {
+        if (isOpen(v) && root(v) == v)
+          roots++;
+      }
+      if (roots < 2)
+        return Collections.emptyList();
+
+      Map<Integer, Set<Integer>> byRoot = new HashMap<Integer, Set<Integer>>();
+      for (int v = 0; v < parent.length; v++) {
+        if (isOpen(v))
+          byRoot.computeIfAbsent(root(v), k -> new HashSet<Integer>()).add(propagation.idOf(v));
+      }
+      return new ArrayList<Set<Integer>>(byRoot.values());
+    }
+
+    /**
+     * Whether a variable is still to be searched: unassigned, more than one
+     * value left
+     */
+    private boolean isOpen(int var) {
+      return ! assigned[var] && engine().domain(var).size() > 1;
+    }
+
+    private int root(int var) {
+      while (parent[var] != var) {
+        parent[var] = parent[parent[var]];
+        var = parent[var];
+      }
+      return var;
+    }
+
+    /**
+     * Check whether every pair of remaining values satisfies a constraint
+     */
+    private boolean isEntailed(int c) {
+      PropagationEngine propagation = engine();
+      Set<Integer> domainX = propagation.domain(propagation.scopeX(c));
+      Set<Integer> domainY = propagation.domain(propagation.scopeY(c));
+      if ((long) domainX.size() * domainY.size() > ENTAILMENT_CHECK_LIMIT)
+        return false;
+      Relation relation = propagation.relation(c);
+      if (domainX instanceof RangeDomain && domainY instanceof RangeDomain) {
+        // Walked with ceiling, as iterators would allocate for every x
+        RangeDomain rangesX = (RangeDomain) domainX, rangesY = (RangeDomain) domainY;
+        for (long x = rangesX.ceiling(Integer.MIN_VALUE); x != RangeDomain.NONE; x = rangesX.ceiling(x + 1)) {
+          for (long y = rangesY.ceiling(Integer.MIN_VALUE); y != RangeDomain.NONE; y = rangesY.ceiling(y + 1)) {
+            incrementConstraintCheck();
+            if (! relation.allows((int) x, (int) y))
+              return false;
+          }
+        }
+        return true;
+      }
+      for (Integer x : domainX) {
+        for (Integer y : domainY) {
+          incrementConstraintCheck();
+          if (! relation.allows(x, y))
+            return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Solve independent components concurrently and merge their solutions.
+     * Each component becomes its own CSP built from the current domains,
+     * so the subproblems share nothing mutable and can run on the
+     * fork/join pool. They split again themselves only as deep as this
+     * search had left, so decomposeDepth bounds the nesting.
+     * @param components  the components found by findComponents
+     * @param depth       the depth of the search they were found at
+     * @return the merged solution, null if any component has none
+     */
+    private Map<Integer, Integer> solveComponents(List<Set<Integer>> components, int depth) {
+      Map<Integer, Integer> merged = assignment();
+      // Whatever is not in a component is already down to one value
+      for (Integer v : this.Variables.keySet()) {
+        if (! merged.containsKey(v) && this.Variables.get(v).size() == 1)
+          merged.put(v, this.Variables.get(v).iterator().next());
+      }
+
+      List<ConstraintSatisfactionProblem> subproblems = new ArrayList<ConstraintSatisfactionProblem>();
+      for (Set<Integer> component : components)
+        subproblems.add(subproblem(component, active.getDecomposeDepth() - depth - 1));
+      List<ForkJoinTask<Map<Integer, Integer>>> tasks = new ArrayList<ForkJoinTask<Map<Integer, Integer>>>();
+      for (ConstraintSatisfactionProblem sub : subproblems) {
+        tasks.add(ForkJoinTask.adapt(() -> {
+          Map<Integer, Integer> part = sub.search();
+          // One component has no solution, so neither does the whole
+          // problem: stop the others now, not when the joins reach this one
+          if (part == null) {
+            for (ConstraintSatisfactionProblem other : subproblems)
+              other.cancelled = true;
+          }
+          return part;
+        }));
+      }
+      // The first runs on this thread, not in a blocking join
+      ForkJoinTask.invokeAll(tasks);
+
+      boolean failed = false;
+      for (int i = 0; i < tasks.size(); i++) {
+        Map<Integer, Integer> part = tasks.get(i).join();
+        ConstraintSatisfactionProblem sub = subproblems.get(i);
+        nodesExplored += sub.nodesExplored;
+        constraintsChecked += sub.constraintsChecked;
+        restarts += sub.restarts;
+        if (sub.timedOut)
+          timedOut = true;
+        if (part == null)
+          failed = true;
+        else if (! failed)
+          merged.putAll(part);
+      }
+      return failed ? null : merged;
+    }
+
+    /**
+     * A standalone CSP over one component, using the current domains
+     * @param decomposeDepth  how deep it may still look for components,
+     *                        none at all below 1
+     */
+    private ConstraintSatisfactionProblem subproblem(Set<Integer> component, int decomposeDepth) {
+      // Seeded by the component, so the result does not depend on scheduling.
+      // Preprocessing and tracing are done by the time components exist.
+      ConstraintSatisfactionProblem sub = new ConstraintSatisfactionProblem(
+          active.toBuilder().seed(active.getSeed() * 31 + Collections.min(component))
+                .sac(false).pc(false).trace(null)
+                .decompose(active.isDecompose() && decomposeDepth > 0)
+                .decomposeDepth(Math.max(0, decomposeDepth)).build());
+      sub.random = new Random(sub.active.getSeed());
+      sub.trace = this.trace; // Records of parallel components interleave
+      sub.owner = this;
+      // The solve's deadline holds for its components too
+      sub.hasDeadline = hasDeadline;
+      sub.deadline = deadline;
+      for (Integer v : component)
+        sub.addVariable(v, this.Variables.get(v));
+      // The component's constraints, from its variables' own lists, each
+      // taken at its first variable; in their order in the model
+      PropagationEngine propagation = engine();
+      int[] inside = new int[16];
+      int count = 0;
+      for (Integer v : component) {
+        int var = propagation.indexOf(v);
+        for (int k = 0; k < propagation.degree(var); k++) {
+          int c = propagation.constraintOn(var, k);
+          if (propagation.scopeX(c) != var || ! component.contains(propagation.idOf(propagation.scopeY(c))))
+            continue;
+          if (count == inside.length)
+            inside = Arrays.copyOf(inside, count * 2);
+          inside[count++] = c;
+        }
+      }
+      Arrays.sort(inside, 0, count);
+      for (int i = 0; i < count; i++) {
+        int c = inside[i];
+        sub.addConstraint(propagation.idOf(propagation.scopeX(c)), propagation.idOf(propagation.scopeY(c)),
+                          propagation.relation(c));
+      }
+      return sub;
+    }
     
     private void resetStats() {
         nodesExplored = 0;
         constraintsChecked = 0;
+        restarts = 0;
     }
     
     private void incrementNodeCount() {
@@ -97,6 +931,11 @@ public class ConstraintSatisfactionProblem {
     protected void printStats() {
         System.out.println("Nodes explored during last search:  " + nodesExplored);
         System.out.println("Constraints checked during last search " + constraintsChecked);
+        if (active.getRestarts() != Restarts.NONE)
+          System.out.println("Restarts during last search " + restarts);
+        if (optimizing())
+          System.out.println("Best objective " + (bestValue == null ? "none" : bestValue)
+                             + (timedOut ? " (stopped at the deadline)" : " (optimal)"));
     }
 
     /**
@@ -105,8 +944,84 @@ public class ConstraintSatisfactionProblem {
      * @param domain  the domain of the variable
      */
     public void addVariable(Integer id, Set<Integer> domain) {
-      Set<Integer> copy = new HashSet<Integer>(domain);
-      this.Variables.put(id, copy);
+      // Stored as ranges whatever the set was: the trail puts values back
+      // into the working domains run by run
+      declareDomain(id, new RangeDomain(domain));
+    }
+
+    /**
+     * Add a variable whose domain is every integer from low to high.
+     * The domain is stored as a range, so it can be arbitrarily large.
+     * @param id    the identifier of the variable
+     * @param low   the smallest value in the domain
+     * @param high  the largest value in the domain
+     */
+    public void addVariable(Integer id, int low, int high) {
+      declareDomain(id, new RangeDomain(low, high));
+    }
+
+    /**
+     * Remove a variable together with every constraint on it
+     * @param id  the identifier of the variable
+     */
+    public void removeVariable(Integer id) {
+      detach();
+      engine = null;
+      Iterator<hashPair> it = Constraints.keySet().iterator();
+      while (it.hasNext()) {
+        hashPair scope = it.next();
+        if (scope.getX().equals(id) || scope.getY().equals(id)) {
+          // Its neighbours lose whatever pruning this variable caused
+          relaxed.add(scope.getX().equals(id) ? scope.getY() : scope.getX());
+          it.remove();
+        }
+      }
+      declared.remove(id);
+      this.Variables.remove(id);
+      tightened.remove(id);
+      relaxed.remove(id);
+      if (propagated != null)
+        propagated.remove(id);
+      if (lastSolution != null)
+        lastSolution.remove(id);
+    }
+
+    /**
+     * Put a value (back) into a variable's domain
+     */
+    public void addValue(Integer id, int value) {
+      if (! declared.containsKey(id))
+        throw new IllegalArgumentException("No variable " + id);
+      detach();
+      if (declared.get(id).add(value))
+        relaxed.add(id);
+    }
+
+    /**
+     * Take a value out of a variable's domain
+     */
+    public void removeValue(Integer id, int value) {
+      if (! declared.containsKey(id))
+        throw new IllegalArgumentException("No variable " + id);
+      detach();
+      if (declared.get(id).remove(value))
+        tightened.add(id);
+    }
+
+    /**
+     * Replace a variable's domain, eg pin it to a single value
+     */
+    private void declareDomain(Integer id, Set<Integer> domain) {
+      detach();
+      Set<Integer> old = declared.get(id);
+      if (old == null || old.containsAll(domain))
+        tightened.add(id);
+      else
+        relaxed.add(id);
+      declared.put(id, domain);
+      if (! this.Variables.containsKey(id))
+        engine = null; // The engine numbers its variables once
+      this.Variables.put(id, RangeDomain.copyOf(domain));
     }
     
     /**
@@ -116,374 +1031,261 @@ public class ConstraintSatisfactionProblem {
      * @param constraint  the constraint
      */
     public void addConstraint(Integer id1, Integer id2, Set<hashPair> constraint) {
+      addConstraint(id1, id2, Relation.table(constraint));
+    }
+
+    /**
+     * Add a binary constraint given intensionally, eg Relation.notEqual()
+     * or a lambda (x, y) -> x + y < 10
+     * @param id1       the identifier of the first variable
+     * @param id2       the identifier of the second variable
+     * @param relation  the relation the two values must satisfy
+     */
+    public void addConstraint(Integer id1, Integer id2, Relation relation) {
       hashPair scope = new hashPair(id1, id2);
-      this.Constraints.put(scope, constraint);
+      detach();
+      engine = null;
+      if (this.Constraints.put(scope, relation) != null) {
+        // Replacing a relation may loosen it
+        relaxed.add(id1);
+        relaxed.add(id2);
+      }
+      tightened.add(id1);
+      tightened.add(id2);
+    }
+
+    /**
+     * Retract a binary constraint
+     * @param id1  the identifier of the first variable
+     * @param id2  the identifier of the second variable
+     */
+    public void removeConstraint(Integer id1, Integer id2) {
+      detach();
+      if (this.Constraints.remove(new hashPair(id1, id2)) != null) {
+        engine = null;
+        relaxed.add(id1);
+        relaxed.add(id2);
+      }
     }
     
     /**
-     * Enforce consistency by AC-3, PC-3.
-     */
-    private boolean enforceConsistency(Map<Integer, Set<Integer>> removed) {
-      if (this.AC3) {
-        /* AC-3 Implementation */
-        Queue<hashPair> arcQ = new LinkedList<hashPair>();
-        
-        // Make the arc Queue
-        for (hashPair arc : Constraints.keySet()) 
-          arcQ.add(arc);
-        
-        // Arc Queue contains all of the initial arcs (constraint pairs)
-        
-        // Loop while the queue is not empty
-        while (! arcQ.isEmpty()) {
-          hashPair arc = arcQ.remove();
-
-          if (revise(arc, removed)) {
-            if (this.Variables.get(arc.getX()).size() == 0)
-              return false;
-            for (hashPair modded : Constraints.keySet()) {
-              if ((modded.getX() == arc.getX() && modded.getY() != arc.getY()) ||
-                  (modded.getY() == arc.getX()))
-                arcQ.add(modded);
-            }
-          }
-
-          if (reviseBackward(arc, removed)) {
-            if (this.Variables.get(arc.getY()).size() == 0)
-              return false;
-            for (hashPair modded : Constraints.keySet()) {
-              if ((modded.getY() == arc.getY() && modded.getX() != arc.getX()) ||
-                  (modded.getX() == arc.getY()))
-                arcQ.add(modded);
-            }
-          }
-
-        }
-
-        return true;
+     * Enforce arc consistency (AC-3). The stronger SAC and PC passes run
+     * once before the search, see preprocess().
+     * @param arcs  the arcs to start from (the rest are known consistent)
+     */
+    private boolean enforceConsistency(Collection<hashPair> arcs) {
+      if (active.isAC3()) {
+        /* AC-3, run by the propagation engine */
+        if (arcs == Constraints.keySet())
+          engine().scheduleAll();
+        else
+          engine().schedule(arcs);
+        return runPropagation(true);
       } else {
         return true;
       }
     }
-    
-    private boolean revise(hashPair arc, Map<Integer, Set<Integer>> removed) {
-        Integer id1 = arc.getX(), id2 = arc.getY();
-        boolean revised = false;
-        Iterator<Integer> domainIt = this.Variables.get(id1).iterator();
-
-        // Loop through each value in the domain of X_i
-        while (domainIt.hasNext()) {
-//        for (Integer x : this.Variables.get(id1)) {
-          Integer x = domainIt.next();
-          boolean useless = true;
-          for (Integer y : this.Variables.get(id2)) {
-            hashPair attempt = new hashPair(x, y);
-            if (Constraints.get(arc).contains(attempt))
-                useless = false;
-          }
 
-          if (useless) {
-//            System.out.println("Removing a Var in revise forward");
-            if (removed.containsKey(id1)) {
-              removed.get(id1).add(x);
-            } else {
-              removed.put(id1, new HashSet<Integer>());
-              removed.get(id1).add(x);
-            }
-            domainIt.remove();
-            revised = true;
-          }
-        }
-        return revised;
+    /**
+     * The propagation engine for the current constraints
+     */
+    private PropagationEngine engine() {
+      if (engine == null && model != null && Constraints == model.constraints())
+        engine = new PropagationEngine(model.network, this.Variables);
+      else if (engine == null)
+        engine = new PropagationEngine(this.Variables, Constraints);
+      return engine;
     }
 
-    private boolean reviseBackward(hashPair arc, Map<Integer, Set<Integer>>removed) {
-        Integer id1 = arc.getX(), id2 = arc.getY();
-        boolean revised = false;
-        Iterator<Integer> domainIt = this.Variables.get(id2).iterator();
-
-        // Loop through each value in the domain of X_j
-        while (domainIt.hasNext()) {
-          Integer y = domainIt.next();
-          boolean useless = true;
+    /**
+     * Run the queued propagators, counting each run as a constraint check
+     */
+    private boolean runPropagation(boolean fixpoint) {
+      int before = engine().getRuns();
+      boolean consistent = engine().propagate(fixpoint);
+      constraintsChecked += engine().getRuns() - before;
+      return consistent;
+    }
 
-          for (Integer x : this.Variables.get(id1)) {
-            hashPair attempt = new hashPair(x, y);
-            if (Constraints.get(arc).contains(attempt))
-                useless = false;
-          }
+    /**
+     * Backtracking algorithm, with its own stack instead of the call stack,
+     * so the depth of the search is bounded by the number of variables
+     * rather than by the thread's stack size
+     * @return a solution if found, null otherwise.
+     */
+    private Map<Integer, Integer> backtracking() {
+      PropagationEngine propagation = engine();
+      int depth = 0;
+      boolean entering = true; // At a new node, not back at a decision
 
-          if (useless) {
-//            System.out.println("Removing a Var in revise backward");
-            if (removed.containsKey(id2)) {
-              removed.get(id2).add(y);
-            } else {
-              removed.put(id2, new HashSet<Integer>());
-              removed.get(id2).add(y);
+      while (true) {
+        if (entering) {
+          entering = false;
+          int unassignedVar = -1;
+          if (depth >= MAX_CAPACITY) {
+            System.err.println("Maximum search depth exceeded");
+          } else if (! isCancelled() && ! pastDeadline()) {
+            unassignedVar = selectUnassignedVariable();
+            if (unassignedVar == -1) {
+              if (! optimizing())
+                return assignment(); // All variables have been adequately assigned
+              improve(); // Keep going for a better one
             }
-            domainIt.remove();
-            revised = true;
           }
+          if (unassignedVar == -1) {
+            // Nothing to decide here: back to the decision that led here
+            if (depth == 0)
+              return null;
+            depth--;
+            propagation.undo(decisionTrail[depth]);
+            unassign(decisionAssigned[depth]);
+            continue;
+          }
+          if (depth == decisionVar.length) {
+            decisionVar = Arrays.copyOf(decisionVar, depth * 2);
+            decisionTrail = Arrays.copyOf(decisionTrail, depth * 2);
+            decisionAssigned = Arrays.copyOf(decisionAssigned, depth * 2);
+          }
+          decisionVar[depth] = unassignedVar;
+          valueOrder(depth).start(unassignedVar);
+          // Everything assigned and removed from here on is undone back to these
+          decisionTrail[depth] = propagation.mark();
+          decisionAssigned[depth] = assignedCount;
         }
-        return revised;
-    }
-    /**
-     * Backtracking algorithm
-     * @param partialSolution  a partial solution
-     * @return a solution if found, null otherwise.
-     */
-    private Map<Integer, Integer> backtracking(Map<Integer, Integer> partialSolution, int depth) {
-      if (depth >= MAX_CAPACITY) {
-        System.err.println("Maximum recursion depth exceeded");
-        return null;
-      }
-
-      /* Check if this level of depth has a rLog and aLog yet */
-      Map<Integer, Set<Integer>> removed = removedLogs.get(depth);
-      Map<Integer, Integer> added = addLogs.get(depth);
-
-      /* Sanity Check: */
-/*  
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("partialSolution At Start of Depth " + depth + ": " + partialSolution);
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Domains At Start of Depth " + depth + ": " + this.Variables);
-        System.out.println("\n");
-*/
-        Integer unassignedVar = selectUnassignedVariable(partialSolution);
-      
-      if (unassignedVar == -1)
-        return partialSolution; // All variables have been adequately assigned
-
-      List<Integer> domainVals = orderDomainValues(unassignedVar, partialSolution);
-
-      Integer[] domainArray = new Integer[domainVals.size()];
-      int i = 0;
-      for (Integer x : domainVals) {
-        domainArray[i] = x;
-        i++;
-      }
-      
-      int domainCount = domainArray.length;
-      
-      Map<Integer, Integer> result;
-
-      // Loop through each potential value in the unassigned variable's domain
-      for (i = 0; i < domainCount; i++) {
-/*
-        if (depth == 0)
-          System.out.println("Domains: " + this.Variables);
-*/ 
-        Integer x = domainArray[i];
-
-        /* SANITY CHECK */
-/*
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Trying (" + unassignedVar + " => " + x + ")");
-*/
+
+        // The next potential value in the variable's domain
+        int unassignedVar = decisionVar[depth];
+        long x = valueOrder(depth).next();
+        if (x != RangeDomain.NONE && (failures >= failureLimit || isCancelled() || pastDeadline()))
+          x = RangeDomain.NONE; // Out of failures for this run (or out of time): unwind to the root
+        if (x == RangeDomain.NONE) {
+          if (trace != null)
+            trace.record(SearchTrace.BACKTRACK, depth, propagation.idOf(unassignedVar), 0);
+          if (depth == 0)
+            return null;
+          depth--;
+          propagation.undo(decisionTrail[depth]);
+          unassign(decisionAssigned[depth]);
+          continue;
+        }
+
         // Make the assigment
-        partialSolution.put(unassignedVar, x);
-        added.put(unassignedVar, x); /* Add this entry to the aLog */
+        int trailMark = decisionTrail[depth];
+        assign(unassignedVar, (int) x);
         incrementNodeCount();
+        if (trace != null)
+          trace.record(SearchTrace.DECISION, depth, propagation.idOf(unassignedVar), (int) x);
 
         // Do the inference (and ensure this won't cause directly awful issues)
-        if (inference(unassignedVar, x, partialSolution, removed, added)) { // Changes partialSolution by reference
-          removedLogs.add(new HashMap<Integer, Set<Integer>>());
-          addLogs.add(new HashMap<Integer, Integer>());
-          result = backtracking(partialSolution, depth + 1); // Recurse on the updated solution
+        boolean consistent = inference(unassignedVar, (int) x); // Assigns whatever it forces too
+        if (trace != null)
+          tracePruning(depth, unassignedVar, trailMark, consistent);
+        if (consistent) {
+          List<Set<Integer>> components = null;
+          if (active.isDecompose() && depth < active.getDecomposeDepth() && ! optimizing())
+            components = findComponents();
 
-          // Check for success
+          if (components == null || components.size() <= 1) {
+            depth++; // Go on from the updated solution
+            entering = true;
+            continue;
+          }
+          // Propagation split the rest of the problem apart: solve the
+          // pieces independently instead of searching them as one tree
+          Map<Integer, Integer> result = solveComponents(components, depth);
           if (result != null) {
             /* We've succeeded! Don't undo anything */
             return result;
           }
+        } else {
+          failures++;
         }
 
-        /* SANITY CHECK */
-/*
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Restoring previous state!");
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("partialSolution Before: " + partialSolution);
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Domains Before: " + this.Variables);
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Removed Map: " + removed);
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Added Map: " + added);
-*/
         // Undo all of the changes we just did so we can try again at this depth
-        /* Remove entries based on the aLog */
-        Set<Integer> addedSet = new HashSet<Integer>(added.keySet());
+        propagation.undo(trailMark);
+        unassign(decisionAssigned[depth]);
+      }
+    }
 
-        // Loop through each variable added to the partial solution
-        for (Integer r : addedSet) {
-          partialSolution.remove(r); // Remove it from the partial solution
-          //added.remove(r); // Clear that entry in the aLog
-        }
+    /**
+     * Trace what a decision pruned, and whether it failed
+     */
+    private void tracePruning(int depth, int var, int trailMark, boolean consistent) {
+      int values = engine().removedSince(trailMark, var);
+      int id = engine().idOf(var);
+      trace.record(SearchTrace.PRUNE, depth, id, values);
+      if (! consistent)
+        trace.record(SearchTrace.FAILURE, depth, id, 0);
+    }
 
-        /* Remove inference's changes based on the rLog */
-        Set<Integer> removedSet = new HashSet<Integer>(removed.keySet());
-        // Loop through all variable's whose domains were modified
-        for (Integer r : removedSet) {
-          Set<Integer> fromDomainX = removed.get(r);
-          // Loop through each value removed from X's domain
-          for (Integer gone : fromDomainX) {
-            this.Variables.get(r).add(gone); // Add it back
+    /**
+     * Start a search: nothing assigned, and the hints from the last solution
+     * laid out by the engine's variable numbers
+     */
+    private void resetAssignment() {
+      PropagationEngine propagation = engine();
+      int n = propagation.size();
+      assignedValue = new int[n];
+      assigned = new boolean[n];
+      assignedOrder = new int[n];
+      assignedCount = 0;
+      objectiveVar = objectiveId == null ? -1 : propagation.indexOf(objectiveId);
+      hint = new int[n];
+      hinted = new boolean[n];
+      parent = new int[n];
+      if (lastSolution != null) {
+        for (int i = 0; i < n; i++) {
+          Integer h = lastSolution.get(propagation.idOf(i));
+          if (h != null) {
+            hint[i] = h;
+            hinted[i] = true;
           }
-          removed.remove(r); // Get rid of the whole entry in the rLog
         }
+      }
+    }
+
+    private void assign(int var, int x) {
+      assignedValue[var] = x;
+      assigned[var] = true;
+      assignedOrder[assignedCount++] = var;
+    }
+
+    /**
+     * Unassign every variable assigned after the mark
+     */
+    private void unassign(int assignedMark) {
+      while (assignedCount > assignedMark)
+        assigned[assignedOrder[--assignedCount]] = false;
+    }
 
-        /* SANITY CHECK */
-/*
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("partialSolution After: " + partialSolution);
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Domains After: " + this.Variables);
-        System.out.println("\n");
-*/
-        removed = new HashMap<Integer, Set<Integer>>();
-        added = new HashMap<Integer, Integer>();
-//        this.Variables.get(unassignedVar).remove(x);
-        /* Keep the removal of the value we just tried from this var's domain? */
-      }
-
-      // All the changes from this depth level have been undone
-      if (depth >= 1) {
-        removedLogs.remove(removedLogs.size() - 1);
-        addLogs.remove(removedLogs.size() - 1);
-      } 
-
-      /* SANITY CHECK */
-/* 
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("partialSolution At End of Depth " + depth + ": " + partialSolution);
-        for (int t = 0; t < depth; t++)
-          System.out.print("\t");
-        System.out.println("Domains At End of Depth " + depth + ": " + this.Variables);
-        System.out.println("\n"); 
-*/
-      return null;
+    /**
+     * The partial solution, by variable id
+     */
+    private Map<Integer, Integer> assignment() {
+      Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+      for (int i = 0; i < assignedCount; i++) {
+        int var = assignedOrder[i];
+        result.put(engine().idOf(var), assignedValue[var]);
+      }
+      return result;
     }
     
     /**
      * Inference for backtracking
      * Implement FC and MAC3
-     * @param var              the new assigned variable
-     * @param value            the new assigned value
-     * @param partialSolution  the partialSolution
-     * @param removed          the values removed from other variables' domains
+     * @param var    the new assigned variable
+     * @param value  the new assigned value
      * @return true if the partial solution may lead to a solution, false otherwise.
      */
-    private boolean inference(Integer var, Integer value, 
-                                Map<Integer, Integer> partialSolution, 
-                                Map<Integer, Set<Integer>> removed, 
-                                Map<Integer, Integer> added) {
-
-      Iterator<hashPair> constraintIter = Constraints.keySet().iterator();
-      Set<hashPair> relation; 
-      Integer tempVar;
-      Iterator<Integer> domainIter;
-      Integer potentialVal;
-      hashPair tempConstraint;
-      Set<Integer> tempDomain;
-
-      for (Integer x : this.Variables.get(var)) {
-        if (x != value) {
-          if (removed.containsKey(var)) {
-             removed.get(var).add(x);
-          } else {
-            removed.put(var, new HashSet<Integer>());
-            removed.get(var).add(x);
-          }
-        }
-      }
-
-      this.Variables.put(var, new HashSet<Integer>());
-      this.Variables.get(var).add(value);
-
-      // Loop through each constraint in the CSP
-      for (hashPair scope : Constraints.keySet()) {
-        incrementConstraintCheck();
-        // Check if this constraint involves the newly assigned value
-        if (scope.getX() == var) {
-          // this var is the first item in the pair
-          tempVar = scope.getY();
-          
-          if (! partialSolution.containsKey(tempVar)) {
-            // Get the possible set of acceptable constrained pairs
-            relation = Constraints.get(scope);
-
-            // Loop through each item in the domain of the constraint-connected
-            // variable to check for consistency.
-            domainIter = this.Variables.get(tempVar).iterator();
-          
-            while (domainIter.hasNext()) {
-              potentialVal = domainIter.next();
-              tempConstraint = new hashPair(value, potentialVal);
-            
-              // If this constraint is not in the acceptable set of constraints,
-              // remove this value from the domain
-              if (!relation.contains(tempConstraint) ) {
-                domainIter.remove();
-                if (removed.containsKey(tempVar)) {
-                  removed.get(tempVar).add(potentialVal);
-                } else {
-                  removed.put(tempVar, new HashSet<Integer>());
-                  removed.get(tempVar).add(potentialVal);
-                }
-                /* Mark this as removed in the rLog */
-              }
-
-            }
-          }
-        } else if (scope.getY() == var) {
-          // This var is the second item in the pair
-          tempVar = scope.getX();
-
-          if (! partialSolution.containsKey(tempVar)) {
-            // Get the possible set of acceptable constrained pairs
-            relation = Constraints.get(scope);
-
-            // Loop through as above
-            domainIter = this.Variables.get(tempVar).iterator();
-
-            while (domainIter.hasNext()) {
-              potentialVal = domainIter.next();
-              tempConstraint = new hashPair(potentialVal, value);
-
-              if (!relation.contains(tempConstraint)) {
-                domainIter.remove();
-                /* Mark this as removed in the rLog */
-                if (removed.containsKey(tempVar)) {
-                  removed.get(tempVar).add(potentialVal);
-                } else {
-                  removed.put(tempVar, new HashSet<Integer>());
-                  removed.get(tempVar).add(potentialVal);
-                }
-              }
-            }
-          }
-        } 
-      }
-      if (this.MAC3)  
-        enforceConsistency(removed);
+    private boolean inference(int var, int value) {
+      PropagationEngine propagation = engine();
+      if (! propagateAssignment(var, value))
+        return false;
 
       /* Loop through each remaining unassigned variable */
-      for (Integer V : Variables.keySet()) {
-        if (! partialSolution.containsKey(V)) {
-          tempDomain = Variables.get(V);
+      for (int V = 0; V < assigned.length; V++) {
+        if (! assigned[V]) {
+          Set<Integer> tempDomain = propagation.domain(V);
 
           // Check if there's a possible value left for it...
           if (tempDomain.size() == 0) {
@@ -492,127 +1294,258 @@ public class ConstraintSatisfactionProblem {
 
           // Check if there's only a singled possible value left...
           if (tempDomain.size() == 1) {
-            // If so, update the possible solution and recurse
-            domainIter = tempDomain.iterator();
-            Integer newVal = domainIter.next();
-            
-            partialSolution.put(V, newVal);
-            added.put(V, newVal);
+            // If so, update the possible solution and propagate it too
+            int newVal = Relation.only(tempDomain);
+
+            assign(V, newVal);
             incrementNodeCount();
-            
 
-            // If this fails in inference, the outer solution is bad too
-            // run it at the same depth to keep track of changes
-            if (! inference(V, newVal, partialSolution, removed, added)) {
+            // If this fails, the outer solution is bad too. Otherwise look
+            // again from the first variable, for what this one forced
+            if (! propagateAssignment(V, newVal)) {
               return false;
             }
+            V = -1;
           }
         }
       }
       return true;
     }
- 
+
     /**
-     * Look-ahead value ordering
-     * Pick the least constraining value (min-conflicts)
-     * @param var              the variable to be assigned
-     * @param partialSolution  the partial solution
-     * @return an order of values in var's domain
+     * Cut var's domain down to the value (on the trail) and wake the
+     * constraints on it: forward checking runs just those, MAC keeps
+     * propagating until nothing changes
+     * @return false if that empties a domain
      */
-    private List<Integer> orderDomainValues(Integer var, Map<Integer, Integer> partialSolution) {
-      if (this.LCV) {
-        Set<Integer> vals = Variables.get(var);
-        List<Integer> result = new LinkedList<Integer>();
-        Map<Integer, Integer> constraintAmount = new HashMap<Integer, Integer>();
+    private boolean propagateAssignment(int var, int value) {
+      PropagationEngine propagation = engine();
+      propagation.fix(var, value);
+      // Branch and bound: only solutions better than the best so far
+      if (objectiveVar >= 0 && (objectiveLimit < Integer.MIN_VALUE
+                                || ! propagation.removeAbove(objectiveVar, (int) objectiveLimit)))
+        return false;
+      return runPropagation(active.isMAC3());
+    }
 
-        // Loop through each value in the variable's domain
-        for (Integer v : vals) {
-          int constraintCount = 0;
-            
-          // Loop through the remaining variables (that aren't var)
-          for (Integer x : this.Variables.keySet()) {
-              // Ensure this is an unassigned variable that's not var
-              if (x != var && (! partialSolution.containsKey(x))) {
-                if (this.Variables.get(x).contains(v))
-                  constraintCount += this.Variables.get(x).size() - 1;
-                else
-                  constraintCount += this.Variables.get(x).size();
-              }
-          }
-          constraintAmount.put(v, constraintCount);
+    /**
+     * The value ordering used at a depth, made once and reused
+     */
+    private ValueOrder valueOrder(int depth) {
+      while (valueOrders.size() <= depth)
+        valueOrders.add(new ValueOrder());
+      return valueOrders.get(depth);
+    }
+
+    /**
+     * The values to try for one variable, in order. One per depth, reused
+     * at every node there, so ordering values allocates nothing once its
+     * buffers have grown.
+     *
+     * Plain orders read the live domain: by the time the next value is
+     * asked for, the last one has been undone and the domain is as it was
+     * when the ordering started. Shuffled and LCV orders fill a buffer.
+     * Either way the value var had in the last solution comes first
+     * (warm start).
+     */
+    private final class ValueOrder {
+      private RangeDomain live; // null: read the buffer
+      private long cursor;
+      private int[] buffer = new int[16];
+      private int[] scratch = new int[16];
+      private long[] keys = new long[16];
+      private int length;
+      private int position;
+      private boolean hasHint;
+      private boolean hintPending;
+      private int hintValue;
+
+      void start(int var) {
+        Set<Integer> domain = engine().domain(var);
+        hasHint = hinted[var] && contains(domain, hint[var]);
+        hintValue = hint[var];
+        hintPending = hasHint;
+
+        boolean shuffle = active.isRandomize() && domain.size() <= RANDOM_ORDER_LIMIT;
+        if (! active.isLCV() && ! shuffle && domain instanceof RangeDomain) {
+          // Range domains stay ranges, so huge domains stay cheap
+          live = (RangeDomain) domain;
+          cursor = Integer.MIN_VALUE;
+          return;
         }
+        live = null;
+        fill(domain);
+        // Shuffled first, so that with RANDOMIZE equally constraining values
+        // come in random order
+        if (shuffle)
+          shuffle();
+        if (active.isLCV())
+          sortLeastConstraining(var);
+      }
 
-        // Sort the List appropriately
-        Set<Integer> toList = new HashSet<Integer>(constraintAmount.keySet());
-        for (int i = 0; i < toList.size(); i++) {
-          int leastConstraint = Integer.MAX_VALUE;
-          int leastInt = Integer.MAX_VALUE;
-          // Loop through the constraintAmount keys
-          for (Integer val : constraintAmount.keySet()) {
-            if (constraintAmount.get(val) < leastConstraint) {
-              leastConstraint = constraintAmount.get(val);
-              leastInt = val;
-            }
-          }
+      /**
+       * The next value to try, RangeDomain.NONE once there are no more
+       */
+      long next() {
+        if (hintPending) {
+          hintPending = false;
+          return hintValue;
+        }
+        if (live != null) {
+          long v = live.ceiling(cursor);
+          if (hasHint && v == hintValue)
+            v = live.ceiling(v + 1);
+          if (v != RangeDomain.NONE)
+            cursor = v + 1;
+          return v;
+        }
+        while (position < length) {
+          int v = buffer[position++];
+          if (! hasHint || v != hintValue)
+            return v;
+        }
+        return RangeDomain.NONE;
+      }
 
-          result.add(leastInt);
-          constraintAmount.remove(leastInt);
+      private void fill(Set<Integer> domain) {
+        length = 0;
+        position = 0;
+        grow(domain.size());
+        if (domain instanceof RangeDomain) {
+          RangeDomain ranges = (RangeDomain) domain;
+          for (long v = ranges.ceiling(Integer.MIN_VALUE); v != RangeDomain.NONE; v = ranges.ceiling(v + 1))
+            buffer[length++] = (int) v;
+        } else {
+          for (Integer v : domain)
+            buffer[length++] = v;
         }
+      }
 
-        return result;
+      private void grow(int size) {
+        if (buffer.length < size) {
+          int capacity = Math.max(size, buffer.length * 2);
+          buffer = new int[capacity];
+          scratch = new int[capacity];
+          keys = new long[capacity];
+        }
+      }
 
-      } else {
-        Set<Integer> vals = Variables.get(var);
-        // We want to loop through this and change the values in the Variables object
-        Set<Integer> copy = new HashSet<Integer>(vals); 
-        List<Integer> res = new LinkedList<Integer>();
-        for (Integer x : copy) {
-          res.add(x);
+      /**
+       * The same swaps Collections.shuffle makes, so a seed gives the same
+       * order it always has
+       */
+      private void shuffle() {
+        for (int i = length; i > 1; i--) {
+          int j = random.nextInt(i);
+          int tmp = buffer[i - 1];
+          buffer[i - 1] = buffer[j];
+          buffer[j] = tmp;
+        }
+      }
+
+      /**
+       * Look-ahead value ordering
+       * Pick the least constraining value (min-conflicts): sort by how
+       * many values the other unassigned variables would have left, ties
+       * kept in their current order
+       */
+      private void sortLeastConstraining(int var) {
+        PropagationEngine propagation = engine();
+        for (int i = 0; i < length; i++) {
+          int v = buffer[i];
+          int constraintCount = 0;
+
+          // Loop through the remaining variables (that aren't var)
+          for (int x = 0; x < assigned.length; x++) {
+            // Ensure this is an unassigned variable that's not var
+            if (x != var && ! assigned[x]) {
+              Set<Integer> other = propagation.domain(x);
+              if (contains(other, v))
+                constraintCount += other.size() - 1;
+              else
+                constraintCount += other.size();
+            }
+          }
+          keys[i] = ((long) constraintCount << 32) | i;
         }
-        return res;
+        Arrays.sort(keys, 0, length);
+        for (int i = 0; i < length; i++)
+          scratch[i] = buffer[(int) keys[i]];
+        int[] sorted = scratch;
+        scratch = buffer;
+        buffer = sorted;
       }
     }
 
+    private static boolean contains(Set<Integer> domain, int v) {
+      if (domain instanceof RangeDomain)
+        return ((RangeDomain) domain).contains(v);
+      return domain.contains(v);
+    }
+
     /**
      * Dynamic variable ordering
      * Pick the variable with the minimum remaining values or the variable with the max degree.
-     * Or pick the variable with the minimum ratio of remaining values to degree.
-     * @param partialSolution  the partial solution
-     * @return one unassigned variable
+     * Or pick the variable with the minimum ratio of remaining values to
+     * weighted degree (dom/wdeg), ties broken at random if randomize is set.
+     * @return one unassigned variable (by the engine's number), -1 if none
      */
-    private Integer selectUnassignedVariable(Map<Integer, Integer> partialSolution) {
-      /* MRV */
-      if (this.MRV) {
-        Map<Integer, Integer> constraintAmount = new HashMap<Integer, Integer>();
-
-        // Iterate through each potential variable in the problem
-        for (Integer x : Variables.keySet()) {
-          // If it hasn't been assigned to yet, let's track it
-          if (partialSolution.get(x) == null) {
-            constraintAmount.put(x, Variables.get(x).size());
-          }
-        }
+    private int selectUnassignedVariable() {
+      int var = selectDecisionVariable();
+      // Branch and bound decides the objective last: the other variables
+      // bound it, and its smallest value left is the best they allow. So
+      // every complete assignment improves on the last, and the first one
+      // comes early (instead of after refuting each smaller value).
+      if (var == -1 && objectiveVar >= 0 && ! assigned[objectiveVar])
+        return objectiveVar;
+      return var;
+    }
 
-        // Loop through to find the value with the highest number of constraining
-        // values
+    /**
+     * The ordering itself, over every unassigned variable but the objective
+     */
+    private int selectDecisionVariable() {
+      PropagationEngine propagation = engine();
 
-        int maxVal = -1;
-        Integer maxInt = new Integer(-1);
+      /* MRV, or dom/wdeg: fewest values left per unit of failure weight */
+      if (active.isMRV() || active.isWDEG()) {
+        int best = -1;
+        double bestScore = 0;
+        int ties = 0;
 
-        for (Integer x : constraintAmount.keySet()) {
-          if (constraintAmount.get(x) > maxVal) {
-            maxVal = constraintAmount.get(x);
-            maxInt = x;
+        // Iterate through each potential variable in the problem
+        for (int x = 0; x < assigned.length; x++) {
+          // Skip the ones already assigned
+          if (assigned[x] || x == objectiveVar)
+            continue;
+          double score = propagation.domain(x).size();
+          if (active.isWDEG())
+            score /= propagation.weightedDegree(x, assigned);
+          if (best == -1 || score < bestScore) {
+            best = x;
+            bestScore = score;
+            ties = 1;
+          } else if (score == bestScore && active.isRandomize() && random.nextInt(++ties) == 0) {
+            best = x; // Each of the tied variables is equally likely
           }
-        } 
+        }
+        return best;
 
-        return maxInt;
+      } else if (active.isRandomize()) {
+        // Without a heuristic every unassigned variable ties
+        int pick = -1;
+        int seen = 0;
+        for (int x = 0; x < assigned.length; x++) {
+          if (! assigned[x] && x != objectiveVar && random.nextInt(++seen) == 0)
+            pick = x;
+        }
+        return pick;
 
       } else {
         // Iterate through all the variables in the problem
-        for (Integer x : Variables.keySet()) {
+        for (int x = 0; x < assigned.length; x++) {
           // If it hasn't been assigned to yet, that's our variable!
-          if (partialSolution.get(x) == null)
+          if (! assigned[x] && x != objectiveVar)
             return x;
         }
         return -1;
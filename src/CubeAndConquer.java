@@ -0,0 +1,382 @@
+package csp_solver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cube-and-conquer over several JVMs.
+ *
+ * A coordinator splits the search into cubes: the values of the first few
+ * variables the search would branch on, with the branches propagation
+ * refutes left out (see ConstraintSatisfactionProblem.cubes). Workers
+ * connect over a local socket, ask for a cube, solve the problem under it
+ * and ask for the next, so whoever finishes early takes more of the
+ * queue. The first solution stops everyone; if every cube is refuted there
+ * is none. A worker that goes away leaves its cube to the others.
+ *
+ * Every process builds the model itself from the same spec ("sudoku
+ * <board>" or "queens <n>"), so only cubes and solutions go over the wire,
+ * one line per message:
+ *   worker:      NEXT | SAT <cube> <nodes> <id>=<value>... | UNSAT <cube> <nodes>
+ *   coordinator: PROBLEM <spec> | CUBE <cube> <id>=<value>... | STOP
+ *
+ * Usage:
+ *   java csp_solver.CubeAndConquer local <workers> <problem>
+ *   java csp_solver.CubeAndConquer coordinator <port> <cubes> <problem>
+ *   java csp_solver.CubeAndConquer worker <host> <port>
+ * where local starts a coordinator and that many worker JVMs on this host.
+ */
+public class CubeAndConquer {
+    // Cubes made per worker, so that uneven cubes even out
+    private static final int CUBES_PER_WORKER = 16;
+    // Never split deeper than this many decisions
+    private static final int MAX_DEPTH = 16;
+    // How long idle workers wait before asking the queue again, in ms
+    private static final long POLL_INTERVAL = 100;
+    // How long workers get to exit after the end, in seconds
+    private static final long EXIT_GRACE = 5;
+
+    /**
+     * A model every process builds the same way from its spec
+     */
+    private static final class Problem {
+      private Sudoku sudoku;
+      private Queens queens;
+
+      Problem(String spec) {
+        String[] words = spec.trim().split("\\s+", 2);
+        if (words.length == 2 && words[0].equals("sudoku"))
+          sudoku = new Sudoku(Sudoku.parse(words[1]));
+        else if (words.length == 2 && words[0].equals("queens"))
+          queens = new Queens(Integer.parseInt(words[1]));
+        else
+          throw new IllegalArgumentException("Unknown problem \"" + spec + "\", expected sudoku <board> or queens <n>");
+      }
+
+      ConstraintSatisfactionProblem solver() {
+        return sudoku != null ? sudoku.getSolver() : queens.getSolver();
+      }
+
+      /**
+       * The solution written out, null if it is not one
+       */
+      String check(Map<Integer, Integer> solution) {
+        if (sudoku != null) {
+          int[][] board = sudoku.toBoard(solution);
+          return sudoku.verify(board) ? Sudoku.format(board) : null;
+        }
+        int[] columns = queens.toArray(solution);
+        return Queens.verify(columns) ? Arrays.toString(columns) : null;
+      }
+    }
+
+    /**
+     * Hands out cubes and collects the answers
+     */
+    private static final class Coordinator {
+      private final ServerSocket server;
+      private final String spec;
+      private final Problem problem;
+      private List<Map<Integer, Integer>> cubes;
+      private int depth;
+      // Cubes not handed out yet, or given back by a worker that went away
+      private final BlockingQueue<Integer> queue = new LinkedBlockingQueue<Integer>();
+      private final List<PrintWriter> workers = new CopyOnWriteArrayList<PrintWriter>();
+      private final AtomicInteger refuted = new AtomicInteger();
+      private final AtomicLong nodes = new AtomicLong();
+      private final AtomicReference<Map<Integer, Integer>> solution = new AtomicReference<Map<Integer, Integer>>();
+      private final CountDownLatch finished = new CountDownLatch(1);
+
+      Coordinator(ServerSocket server, String spec, int target) {
+        this.server = server;
+        this.spec = spec;
+        this.problem = new Problem(spec);
+        // One empty cube is the whole search; split deeper until there are
+        // enough to go round. Each depth covers the whole search by itself,
+        // but propagation (and the weights learnt while splitting) can
+        // refute more of a deeper one, so keep the depth with the most.
+        List<Map<Integer, Integer>> level = problem.solver().cubes(0);
+        cubes = level;
+        for (int d = 1; level.size() > 0 && level.size() < target && d <= MAX_DEPTH; d++) {
+          level = problem.solver().cubes(d);
+          if (level.size() > cubes.size() || level.isEmpty()) {
+            cubes = level; // Or none: splitting alone refuted everything
+            depth = d;
+          }
+        }
+        for (int i = 0; i < cubes.size(); i++)
+          queue.add(i);
+      }
+
+      /**
+       * Serve workers until a solution is found or every cube is refuted
+       * @return the solution, null if there is none
+       */
+      Map<Integer, Integer> run() throws InterruptedException {
+        if (cubes.isEmpty())
+          finish();
+        Thread acceptor = new Thread(() -> {
+          try {
+            while (true) {
+              Socket socket = server.accept();
+              Thread handler = new Thread(() -> serve(socket));
+              handler.setDaemon(true);
+              handler.start();
+            }
+          } catch (IOException e) {
+            // Closed at the end
+          }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        finished.await();
+        return solution.get();
+      }
+
+      /**
+       * Stop accepting workers. Until then late ones are told to stop.
+       */
+      void close() throws IOException {
+        server.close();
+      }
+
+      private void finish() {
+        finished.countDown();
+        for (PrintWriter worker : workers)
+          worker.println("STOP");
+      }
+
+      private boolean isFinished() {
+        return finished.getCount() == 0;
+      }
+
+      private void serve(Socket socket) {
+        PrintWriter out = null;
+        int current = -1;
+        try (Socket s = socket) {
+          BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+          out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+          workers.add(out);
+          out.println("PROBLEM " + spec);
+          for (String line = in.readLine(); line != null; line = in.readLine()) {
+            String[] words = line.split(" ");
+            if (words[0].equals("NEXT")) {
+              current = next();
+              out.println(current < 0 ? "STOP" : "CUBE " + current + " " + encode(cubes.get(current)));
+            } else if (words[0].equals("SAT") || words[0].equals("UNSAT")) {
+              current = -1;
+              nodes.addAndGet(Long.parseLong(words[2]));
+              Map<Integer, Integer> found = words[0].equals("SAT") ? decode(words, 3) : null;
+              if (found != null && problem.check(found) == null) {
+                // Not a refutation: the cube goes back to be solved again
+                System.err.println("Worker sent a wrong solution for cube " + words[1]);
+                queue.add(Integer.parseInt(words[1]));
+              } else if (found != null) {
+                if (solution.compareAndSet(null, found))
+                  finish();
+              } else if (refuted.incrementAndGet() == cubes.size()) {
+                finish();
+              }
+            } else {
+              throw new IOException("Unexpected message: " + line);
+            }
+          }
+        } catch (IOException e) {
+          System.err.println("Lost a worker: " + e.getMessage());
+        } finally {
+          if (out != null)
+            workers.remove(out);
+          if (current >= 0 && ! isFinished())
+            queue.add(current);
+        }
+      }
+
+      /**
+       * The next cube to hand out, waiting while others may still give
+       * one back; -1 once the search is over
+       */
+      private int next() {
+        try {
+          while (! isFinished()) {
+            Integer cube = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            if (cube != null)
+              return cube;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return -1;
+      }
+
+      void printStats(double seconds) {
+        System.out.println(String.format("%d cubes at depth %d, %d refuted, %d nodes in the workers",
+                                         cubes.size(), depth, refuted.get(), nodes.get()));
+        Map<Integer, Integer> found = solution.get();
+        System.out.println(found == null ? "No solution" : problem.check(found));
+        System.out.println(String.format("Search time is %.2f second", seconds));
+      }
+    }
+
+    /**
+     * Solve cubes for the coordinator at host:port until it says stop
+     */
+    static void work(String host, int port) throws IOException, InterruptedException {
+      try (Socket socket = new Socket(host, port)) {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        String first = in.readLine();
+        if (first == null || ! first.startsWith("PROBLEM "))
+          throw new IOException("Expected a problem, got " + first);
+        ConstraintSatisfactionProblem solver = new Problem(first.substring("PROBLEM ".length())).solver();
+
+        // Messages are read on the side, so that a stop can cancel the
+        // cube being solved
+        BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+          try {
+            for (String line = in.readLine(); line != null && ! line.equals("STOP"); line = in.readLine())
+              messages.add(line);
+          } catch (IOException e) {
+            // The coordinator went away: stop as well
+          }
+          stopped.set(true);
+          solver.cancel();
+          messages.add("STOP");
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        while (true) {
+          out.println("NEXT");
+          String[] words = messages.take().split(" ");
+          if (! words[0].equals("CUBE") || stopped.get())
+            return;
+          Map<Integer, Integer> result = solver.solve(decode(words, 2));
+          if (stopped.get())
+            return; // Cancelled half way: the answer means nothing
+          String answer = (result == null ? "UNSAT " : "SAT ") + words[1] + " " + solver.getNodeCount();
+          out.println(result == null ? answer : answer + " " + encode(result));
+        }
+      }
+    }
+
+    private static String encode(Map<Integer, Integer> assignment) {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<Integer, Integer> e : assignment.entrySet()) {
+        if (sb.length() > 0)
+          sb.append(' ');
+        sb.append(e.getKey()).append('=').append(e.getValue());
+      }
+      return sb.toString();
+    }
+
+    private static Map<Integer, Integer> decode(String[] words, int from) {
+      Map<Integer, Integer> assignment = new HashMap<Integer, Integer>();
+      for (int i = from; i < words.length; i++) {
+        if (words[i].isEmpty())
+          continue;
+        int eq = words[i].indexOf('=');
+        assignment.put(Integer.valueOf(words[i].substring(0, eq)), Integer.valueOf(words[i].substring(eq + 1)));
+      }
+      return assignment;
+    }
+
+    /**
+     * A coordinator and that many worker JVMs on this host
+     */
+    private static void local(int workers, String spec) throws IOException, InterruptedException {
+      long before = System.currentTimeMillis();
+      ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+      // Started first, so they build their models while the cubes are made
+      List<Process> processes = new ArrayList<Process>();
+      for (int i = 0; i < workers; i++) {
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        // For storage=off_heap on a Java that has it as a preview
+        if (ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview"))
+          command.add("--enable-preview");
+        // Workers scan tables with vectors when this JVM does
+        if (BitKernels.VECTOR) {
+          command.add("--add-modules");
+          command.add("jdk.incubator.vector");
+        }
+        if (System.getProperty(SolverConfig.PROPERTY) != null)
+          command.add("-D" + SolverConfig.PROPERTY + "=" + System.getProperty(SolverConfig.PROPERTY));
+        command.add(CubeAndConquer.class.getName());
+        command.add("worker");
+        command.add(InetAddress.getLoopbackAddress().getHostAddress());
+        command.add(Integer.toString(server.getLocalPort()));
+        // Workers print their stats per cube: keep only their errors
+        processes.add(new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                                 .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+      }
+
+      Coordinator coordinator = new Coordinator(server, spec, CUBES_PER_WORKER * workers);
+
+      coordinator.run();
+      coordinator.printStats((System.currentTimeMillis() - before) / 1000.0);
+      for (Process p : processes) {
+        if (! p.waitFor(EXIT_GRACE, TimeUnit.SECONDS))
+          p.destroyForcibly();
+      }
+      coordinator.close();
+    }
+
+    private static String spec(String[] args, int from) {
+      return String.join(" ", Arrays.copyOfRange(args, from, args.length));
+    }
+
+    public static final void main(String[] args) throws Exception {
+      if (args.length >= 4 && args[0].equals("local")) {
+        local(Integer.parseInt(args[1]), spec(args, 2));
+      } else if (args.length >= 5 && args[0].equals("coordinator")) {
+        long before = System.currentTimeMillis();
+        ServerSocket server = new ServerSocket(Integer.parseInt(args[1]), 50, InetAddress.getLoopbackAddress());
+        Coordinator coordinator = new Coordinator(server, spec(args, 3), Integer.parseInt(args[2]));
+        System.out.println("Waiting for workers on port " + server.getLocalPort());
+        coordinator.run();
+        coordinator.close();
+        coordinator.printStats((System.currentTimeMillis() - before) / 1000.0);
+      } else if (args.length == 3 && args[0].equals("worker")) {
+        try {
+          work(args[1], Integer.parseInt(args[2]));
+        } catch (IOException e) {
+          System.err.println("No coordinator at " + args[1] + ":" + args[2] + ": " + e.getMessage());
+          System.exit(1);
+        }
+      } else {
+        System.err.println("Usage: CubeAndConquer local <workers> <problem>\n"
+                           + "       CubeAndConquer coordinator <port> <cubes> <problem>\n"
+                           + "       CubeAndConquer worker <host> <port>\n"
+                           + "where <problem> is sudoku <board> or queens <n>");
+        System.exit(2);
+      }
+    }
+}
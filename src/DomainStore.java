@@ -0,0 +1,149 @@
+package csp_solver;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A solver's working domains off the heap (Storage.OFF_HEAP): one
+ * MemorySegment holding a bitset slot per variable, laid out by the
+ * engine's variable numbers, then a second copy of every slot for the
+ * warm start (the domains the last AC-3 pass left). The heap only keeps
+ * one small OffHeapDomain per slot, which never grows, so a huge model
+ * leaves the collector little to trace or copy.
+ *
+ * A slot spans its variable's declared values. Variables spanning more
+ * than MAX_SPAN values stay on the heap as ranges. When a declared domain
+ * outgrows its slot the store is laid out again, every slot spanning at
+ * least what it did, so edits soon stop moving it. The memory is freed
+ * once nothing refers to the store.
+ */
+final class DomainStore {
+    // Widest span given a slot (8 KB)
+    static final int MAX_SPAN = 1 << 16;
+
+    // The engine whose numbering the slots follow
+    private final PropagationEngine engine;
+    // By variable number, null for one on the heap
+    private final OffHeapDomain[] working;
+    private final OffHeapDomain[] remembered;
+    private final long bytes;
+
+    /**
+     * Slots for the declared domains, each spanning at least what it did
+     * in the old store (null for none)
+     */
+    DomainStore(PropagationEngine engine, Map<Integer, Set<Integer>> declared, DomainStore old) {
+      this.engine = engine;
+      int n = engine.size();
+      int[] lows = new int[n];
+      int[] spans = new int[n];
+      long words = 0;
+      for (int i = 0; i < n; i++) {
+        Integer id = engine.idOf(i);
+        Set<Integer> domain = declared.get(id);
+        OffHeapDomain before = old == null ? null : old.slot(id);
+        if (domain.isEmpty() && before == null)
+          continue;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        if (! domain.isEmpty()) {
+          min = min(domain);
+          max = max(domain);
+        }
+        if (before != null) {
+          min = Math.min(min, before.getLow());
+          max = Math.max(max, before.getLow() + before.getSpan() - 1L);
+        }
+        if (max - min < MAX_SPAN) {
+          lows[i] = (int) min;
+          spans[i] = (int) (max - min + 1);
+          words += OffHeapDomain.wordsFor(spans[i]);
+        }
+      }
+
+      bytes = words * 16;
+      MemorySegment segment = Arena.ofAuto().allocate(Math.max(8, bytes), 8);
+      working = new OffHeapDomain[n];
+      remembered = new OffHeapDomain[n];
+      long at = 0;
+      for (int i = 0; i < n; i++) {
+        if (spans[i] == 0)
+          continue;
+        working[i] = new OffHeapDomain(segment, at, lows[i], spans[i]);
+        remembered[i] = new OffHeapDomain(segment, words * 8 + at, lows[i], spans[i]);
+        at += (long) OffHeapDomain.wordsFor(spans[i]) << 3;
+      }
+    }
+
+    /**
+     * Whether the store still serves an engine and the declared domains:
+     * the same numbering, and every domain within its slot
+     */
+    boolean fits(PropagationEngine engine, Map<Integer, Set<Integer>> declared) {
+      if (engine != this.engine)
+        return false;
+      for (int i = 0; i < working.length; i++) {
+        OffHeapDomain slot = working[i];
+        Set<Integer> domain = declared.get(engine.idOf(i));
+        if (slot != null && ! domain.isEmpty()
+            && (min(domain) < slot.getLow() || max(domain) - (long) slot.getLow() >= slot.getSpan()))
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * The working domain of a variable holding the given values, null if
+     * the variable is kept on the heap
+     */
+    Set<Integer> load(Integer id, Set<Integer> values) {
+      OffHeapDomain slot = slot(id);
+      if (slot != null)
+        slot.load(values);
+      return slot;
+    }
+
+    /**
+     * A copy of a variable's working domain as it is now, for the warm
+     * start, null if the variable is kept on the heap. It is overwritten
+     * by the next copy.
+     */
+    Set<Integer> remember(Integer id) {
+      int i = engine.indexOf(id);
+      if (i < 0 || working[i] == null)
+        return null;
+      remembered[i].copyFrom(working[i]);
+      return remembered[i];
+    }
+
+    /**
+     * Bytes of memory off the heap
+     */
+    long getBytes() {
+      return bytes;
+    }
+
+    private OffHeapDomain slot(Integer id) {
+      int i = engine.indexOf(id);
+      return i < 0 ? null : working[i];
+    }
+
+    private static long min(Set<Integer> domain) {
+      if (domain instanceof RangeDomain)
+        return ((RangeDomain) domain).min();
+      long min = Long.MAX_VALUE;
+      for (Integer v : domain)
+        min = Math.min(min, v);
+      return min;
+    }
+
+    private static long max(Set<Integer> domain) {
+      if (domain instanceof RangeDomain)
+        return ((RangeDomain) domain).max();
+      long max = Long.MIN_VALUE;
+      for (Integer v : domain)
+        max = Math.max(max, v);
+      return max;
+    }
+}
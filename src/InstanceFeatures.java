@@ -0,0 +1,145 @@
+package csp_solver;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cheap measurements of an instance, taken once before the search to pick
+ * a strategy for it (see SolverConfig.adaptTo).
+ *
+ * Only the open part of the problem counts: variables with more than one
+ * value left, and the constraints between two of them. Tightness is
+ * sampled, never computed over whole domains: a grid of values spread
+ * across each domain's range, on a bounded number of constraints.
+ */
+public class InstanceFeatures {
+    // Tightness is sampled on at most this many constraints...
+    private static final int SAMPLED_CONSTRAINTS = 256;
+    // ...on a grid of this many values per side
+    private static final int SAMPLE_GRID = 8;
+
+    private int variables;
+    private int constraints;
+    private long totalValues;
+    private int maxDomain;
+    private double tightness;
+
+    /**
+     * Measure the given (arc consistent) domains and constraints
+     */
+    public static InstanceFeatures measure(Map<Integer, Set<Integer>> domains,
+                                           Map<hashPair, Relation> constraints) {
+      InstanceFeatures f = new InstanceFeatures();
+      for (Set<Integer> domain : domains.values()) {
+        if (domain.size() <= 1)
+          continue;
+        f.variables++;
+        f.totalValues += domain.size();
+        f.maxDomain = Math.max(f.maxDomain, domain.size());
+      }
+
+      for (hashPair scope : constraints.keySet()) {
+        if (domains.get(scope.getX()).size() > 1 && domains.get(scope.getY()).size() > 1)
+          f.constraints++;
+      }
+      // Spread the sample over the whole constraint set
+      int stride = Math.max(1, f.constraints / SAMPLED_CONSTRAINTS);
+      long checked = 0, disallowed = 0;
+      int seen = 0;
+      int[] xs = new int[SAMPLE_GRID], ys = new int[SAMPLE_GRID];
+      for (Map.Entry<hashPair, Relation> c : constraints.entrySet()) {
+        Set<Integer> domainX = domains.get(c.getKey().getX()), domainY = domains.get(c.getKey().getY());
+        if (domainX.size() <= 1 || domainY.size() <= 1 || seen++ % stride != 0)
+          continue;
+        int nx = sample(domainX, xs), ny = sample(domainY, ys);
+        for (int i = 0; i < nx; i++) {
+          for (int j = 0; j < ny; j++) {
+            checked++;
+            if (! c.getValue().allows(xs[i], ys[j]))
+              disallowed++;
+          }
+        }
+      }
+      f.tightness = checked == 0 ? 0 : (double) disallowed / checked;
+      return f;
+    }
+
+    /**
+     * Up to out.length values of the domain, spread across its range
+     * @return how many were written
+     */
+    private static int sample(Set<Integer> domain, int[] out) {
+      if (domain.size() <= out.length || ! (domain instanceof RangeDomain)) {
+        int n = 0;
+        for (Integer v : domain) {
+          if (n == out.length)
+            break;
+          out[n++] = v;
+        }
+        return n;
+      }
+      RangeDomain ranges = (RangeDomain) domain;
+      long min = ranges.min(), span = (long) ranges.max() - min;
+      int n = 0;
+      for (int i = 0; i < out.length; i++) {
+        long v = ranges.ceiling(min + span * i / (out.length - 1));
+        // Values bunched together can land on the same one twice
+        if (v != RangeDomain.NONE && (n == 0 || v != out[n - 1]))
+          out[n++] = (int) v;
+      }
+      return n;
+    }
+
+    /**
+     * Variables with more than one value left
+     */
+    public int getVariables() {
+      return variables;
+    }
+
+    /**
+     * Constraints between two open variables
+     */
+    public int getConstraints() {
+      return constraints;
+    }
+
+    /**
+     * The fraction of all pairs of open variables that share a constraint
+     */
+    public double getDensity() {
+      if (variables < 2)
+        return 0;
+      return 2.0 * constraints / ((double) variables * (variables - 1));
+    }
+
+    public double getMeanDomain() {
+      return variables == 0 ? 0 : (double) totalValues / variables;
+    }
+
+    public int getMaxDomain() {
+      return maxDomain;
+    }
+
+    /**
+     * The summed size of the open domains
+     */
+    public long getTotalValues() {
+      return totalValues;
+    }
+
+    /**
+     * The sampled fraction of value pairs the constraints rule out
+     */
+    public double getTightness() {
+      return tightness;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d variables, %d constraints (density %.3f), domains mean %.1f max %d, "
+                           + "tightness %.3f",
+                           variables, constraints, getDensity(), getMeanDomain(), maxDomain,
+                           tightness);
+    }
+}
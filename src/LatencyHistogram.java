@@ -0,0 +1,91 @@
+package csp_solver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds that many threads record into
+ * without locking.
+ *
+ * Buckets are log-linear: exact below 16us, then each power of two is cut
+ * into 8 equal buckets, so a percentile is off by at most 1/8 of its
+ * value. Everything past about 18 minutes lands in the last bucket.
+ */
+class LatencyHistogram {
+    private static final int EXACT = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    // Powers of two from 16us (2^4) to 2^30us
+    private static final int BUCKETS = EXACT + (30 - 4) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+      if (micros < 0)
+        micros = 0;
+      counts.incrementAndGet(bucket(micros));
+      count.incrementAndGet();
+      total.addAndGet(micros);
+      max.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * The latency under which the given fraction of the recordings fall,
+     * the upper edge of its bucket
+     */
+    public long percentile(double fraction) {
+      long n = count.get();
+      if (n == 0)
+        return 0;
+      long rank = Math.max(1, (long) Math.ceil(fraction * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank)
+          return Math.min(upperEdge(i), max.get());
+      }
+      return max.get();
+    }
+
+    private static int bucket(long micros) {
+      if (micros < EXACT)
+        return (int) micros;
+      int power = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) (micros >>> (power - SUB_BITS)) & (SUB - 1);
+      return Math.min(BUCKETS - 1, EXACT + (power - 4) * SUB + sub);
+    }
+
+    private static long upperEdge(int bucket) {
+      if (bucket < EXACT)
+        return bucket;
+      int power = (bucket - EXACT) / SUB + 4;
+      int sub = (bucket - EXACT) % SUB;
+      return (1L << power) + ((sub + 1L) << (power - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Count, mean and percentiles in milliseconds on one line
+     */
+    @Override
+    public String toString() {
+      return String.format("n %d mean %.2f p50 %.2f p90 %.2f p99 %.2f max %.2f ms", getCount(),
+                           getMean() / 1000, percentile(0.5) / 1000.0, percentile(0.9) / 1000.0,
+                           percentile(0.99) / 1000.0, getMax() / 1000.0);
+    }
+}
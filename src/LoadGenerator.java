@@ -0,0 +1,119 @@
+package csp_solver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a SolverService: a number of clients, each on its own virtual
+ * thread, send puzzles back to back (each waits for its reply before the
+ * next) for a while, then the replies are counted by status and their
+ * latencies summarised, followed by the service's own /metrics.
+ *
+ * Usage: java csp_solver.LoadGenerator <url> <clients> <seconds> [puzzle file]
+ * eg http://localhost:8080/sudoku?deadline=1000 and a file with one puzzle
+ * per line, which the clients go through in turn. Without a file the
+ * puzzles are the Sudoku test boards.
+ */
+public class LoadGenerator {
+    private final URI target;
+    private final List<String> puzzles;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong next = new AtomicLong();
+
+    public LoadGenerator(URI target, List<String> puzzles) {
+      if (puzzles.isEmpty())
+        throw new IllegalArgumentException("No puzzles to send");
+      this.target = target;
+      this.puzzles = puzzles;
+    }
+
+    /**
+     * Keep that many requests in flight for that long, then report
+     */
+    public void run(int clients, long seconds) throws InterruptedException {
+      long start = System.nanoTime();
+      long end = start + seconds * 1000000000L;
+      try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (int i = 0; i < clients; i++)
+          threads.submit(() -> {
+            while (System.nanoTime() - end < 0)
+              send(puzzles.get((int) (next.getAndIncrement() % puzzles.size())));
+          });
+      }
+      double elapsed = (System.nanoTime() - start) / 1e9;
+
+      long replies = 0;
+      for (AtomicLong n : statuses.values())
+        replies += n.get();
+      System.out.println(String.format("%d replies in %.1f s from %d clients: %.1f per second",
+                                       replies, elapsed, clients, replies / elapsed));
+      System.out.println("Latency: " + latency);
+      System.out.println("By status: " + new TreeMap<Integer, AtomicLong>(statuses)
+                         + (failures.get() > 0 ? ", " + failures.get() + " failed to send" : ""));
+    }
+
+    private void send(String puzzle) {
+      HttpRequest request = HttpRequest.newBuilder(target)
+        .POST(HttpRequest.BodyPublishers.ofString(puzzle, StandardCharsets.UTF_8)).build();
+      long before = System.nanoTime();
+      try {
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        latency.record((System.nanoTime() - before) / 1000);
+        statuses.computeIfAbsent(response.statusCode(), s -> new AtomicLong()).incrementAndGet();
+      } catch (IOException e) {
+        failures.incrementAndGet();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * The service's /metrics, null if it does not answer
+     */
+    public String metrics() {
+      try {
+        HttpRequest request = HttpRequest.newBuilder(target.resolve("/metrics")).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+      } catch (IOException e) {
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+
+    public static final void main(String[] args) throws Exception {
+      if (args.length < 3) {
+        System.err.println("Usage: LoadGenerator <url> <clients> <seconds> [puzzle file]");
+        System.exit(1);
+      }
+      List<String> puzzles = new ArrayList<String>();
+      for (String line : Files.readAllLines(Paths.get(args.length > 3 ? args[3] : Sudoku.SHORT_TEST))) {
+        if (! line.trim().isEmpty())
+          puzzles.add(line.trim());
+      }
+      LoadGenerator load = new LoadGenerator(URI.create(args[0]), puzzles);
+      load.run(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+      String metrics = load.metrics();
+      if (metrics != null)
+        System.out.println("Service metrics:\n" + metrics.trim());
+    }
+}
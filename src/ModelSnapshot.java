@@ -0,0 +1,237 @@
+package csp_solver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled model as a binary file, read back by mapping it into memory:
+ * the declared domains as ranges and every constraint as a built-in
+ * relation or a table, its Compact-Table arrays included. Reading one
+ * copies those arrays out in bulk and builds nothing but the propagation
+ * network, so a service can start on models it compiled in an earlier run
+ * in milliseconds.
+ *
+ * A relation given as a lambda is written as the table of the pairs it
+ * allows between the declared domains, so a solver editing a model read
+ * back should not add values outside them.
+ *
+ * Layout (little endian):
+ *   header      magic "CSPM", int version, int variables, int constraints
+ *   variable    int id, int ranges, then int low, int high per range
+ *   constraint  int x, int y, int kind, then for DISTANCE_NOT_EQUAL int
+ *               distance, for TABLE int pairs, int xs, int ys, long packed[pairs],
+ *               int xs[xs], int xStart[xs + 1], int ys[ys], int yStart[ys + 1],
+ *               int yTuples[pairs]
+ */
+public final class ModelSnapshot {
+    public static final int MAGIC = 0x4D505343; // "CSPM"
+    public static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    // Constraint kinds
+    static final int NOT_EQUAL = 1;
+    static final int DISTANCE_NOT_EQUAL = 2;
+    static final int LESS_THAN = 3;
+    static final int TABLE = 4;
+
+    // Most pairs a lambda relation is checked on to write it as a table
+    static final long MAX_CHECKS = 1L << 26;
+
+    private ModelSnapshot() {
+    }
+
+    /**
+     * Write a model to a file, replacing it in one step so that no reader
+     * ever maps half of one
+     */
+    public static void write(CompiledModel model, Path file) throws IOException {
+      Map<Integer, Set<Integer>> domains = model.domains();
+      // Relations as they will be written, in the model's order
+      Map<hashPair, Relation> relations = new LinkedHashMap<hashPair, Relation>();
+      long bytes = HEADER_BYTES;
+      for (Map.Entry<Integer, Set<Integer>> e : domains.entrySet())
+        bytes += 8 + 8L * ((RangeDomain) e.getValue()).rangeCount();
+      for (Map.Entry<hashPair, Relation> e : model.constraints().entrySet()) {
+        Relation relation = writable(e.getKey(), e.getValue(), domains);
+        relations.put(e.getKey(), relation);
+        bytes += 12;
+        if (relation instanceof Relation.DistanceNotEqual) {
+          bytes += 4;
+        } else if (relation instanceof Relation.Table) {
+          Relation.Table table = (Relation.Table) relation;
+          bytes += 12 + 12L * table.size() + 8L * (table.xs.length + table.ys.length + 1);
+        }
+      }
+
+      if (bytes > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("A snapshot holds at most 2 GB, this model needs " + bytes + " bytes");
+
+      // Written next to the file under a name of its own, so writers of
+      // the same model never share one
+      Path directory = file.toAbsolutePath().getParent();
+      Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try {
+        put(temporary, bytes, domains, relations);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    }
+
+    private static void put(Path file, long bytes, Map<Integer, Set<Integer>> domains,
+                            Map<hashPair, Relation> relations) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(domains.size()).putInt(relations.size());
+        for (Map.Entry<Integer, Set<Integer>> e : domains.entrySet()) {
+          RangeDomain domain = (RangeDomain) e.getValue();
+          buffer.putInt(e.getKey()).putInt(domain.rangeCount());
+          for (long v = domain.ceiling(Integer.MIN_VALUE); v != RangeDomain.NONE; v = domain.ceiling(v + 1)) {
+            int end = domain.runEnd((int) v);
+            buffer.putInt((int) v).putInt(end);
+            v = end;
+          }
+        }
+        for (Map.Entry<hashPair, Relation> e : relations.entrySet()) {
+          buffer.putInt(e.getKey().getX()).putInt(e.getKey().getY());
+          Relation relation = e.getValue();
+          if (relation instanceof Relation.NotEqual) {
+            buffer.putInt(NOT_EQUAL);
+          } else if (relation instanceof Relation.DistanceNotEqual) {
+            buffer.putInt(DISTANCE_NOT_EQUAL).putInt(((Relation.DistanceNotEqual) relation).distance());
+          } else if (relation instanceof Relation.LessThan) {
+            buffer.putInt(LESS_THAN);
+          } else {
+            Relation.Table table = (Relation.Table) relation;
+            buffer.putInt(TABLE).putInt(table.size()).putInt(table.xs.length).putInt(table.ys.length);
+            buffer.asLongBuffer().put(table.packed());
+            buffer.position(buffer.position() + 8 * table.size());
+            putInts(buffer, table.xs);
+            putInts(buffer, table.xStart);
+            putInts(buffer, table.ys);
+            putInts(buffer, table.yStart);
+            putInts(buffer, table.yTuples);
+          }
+        }
+        buffer.force();
+      }
+    }
+
+    /**
+     * Read a model written by write
+     */
+    public static CompiledModel read(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+          throw new IOException(file + " is not a model snapshot");
+        if (buffer.getInt(4) != VERSION)
+          throw new IOException("Unsupported snapshot version " + buffer.getInt(4));
+        buffer.position(8);
+        try {
+          int variables = buffer.getInt(), constraints = buffer.getInt();
+          if (variables < 0 || constraints < 0 || 8L * variables + 12L * constraints > buffer.remaining())
+            throw new IOException(file + " is a damaged model snapshot");
+          // Kept in the order they were written, so that the engine numbers
+          // the variables and constraints as the model written did
+          Map<Integer, Set<Integer>> domains = new LinkedHashMap<Integer, Set<Integer>>(capacity(variables));
+          for (int i = 0; i < variables; i++) {
+            Integer id = buffer.getInt();
+            RangeDomain domain = new RangeDomain();
+            for (int r = buffer.getInt(); r > 0; r--)
+              domain.addRange(buffer.getInt(), buffer.getInt());
+            domains.put(id, domain);
+          }
+          Map<hashPair, Relation> relations = new LinkedHashMap<hashPair, Relation>(capacity(constraints));
+          for (int c = 0; c < constraints; c++) {
+            hashPair scope = new hashPair(buffer.getInt(), buffer.getInt());
+            relations.put(scope, relation(buffer, file));
+          }
+          return new CompiledModel(domains, relations);
+        } catch (RuntimeException e) {
+          // Cut short, or counts that run past the end
+          throw new IOException(file + " is a damaged model snapshot", e);
+        }
+      }
+    }
+
+    private static Relation relation(ByteBuffer buffer, Path file) throws IOException {
+      int kind = buffer.getInt();
+      switch (kind) {
+        case NOT_EQUAL:
+          return Relation.notEqual();
+        case DISTANCE_NOT_EQUAL:
+          return Relation.distanceNotEqual(buffer.getInt());
+        case LESS_THAN:
+          return Relation.lessThan();
+        case TABLE:
+          int pairs = buffer.getInt(), xs = buffer.getInt(), ys = buffer.getInt();
+          if (pairs < 0 || 12L * pairs > buffer.remaining())
+            throw new IOException(file + " is a damaged model snapshot");
+          long[] packed = new long[pairs];
+          buffer.asLongBuffer().get(packed);
+          buffer.position(buffer.position() + 8 * pairs);
+          return new Relation.Table(packed, getInts(buffer, xs), getInts(buffer, xs + 1), getInts(buffer, ys),
+                                    getInts(buffer, ys + 1), getInts(buffer, pairs));
+        default:
+          throw new IOException(file + " has a constraint of unknown kind " + kind);
+      }
+    }
+
+    /**
+     * The relation as it is written: itself if it is a built-in one,
+     * otherwise the table of the pairs it allows between the domains
+     */
+    private static Relation writable(hashPair scope, Relation relation, Map<Integer, Set<Integer>> domains) {
+      if (relation instanceof Relation.NotEqual || relation instanceof Relation.DistanceNotEqual
+          || relation instanceof Relation.LessThan || relation instanceof Relation.Table)
+        return relation;
+      RangeDomain xs = (RangeDomain) domains.get(scope.getX()), ys = (RangeDomain) domains.get(scope.getY());
+      if ((long) xs.size() * ys.size() > MAX_CHECKS)
+        throw new IllegalArgumentException("Constraint " + scope + " is a lambda over too many pairs to write");
+      long[] pairs = new long[16];
+      int count = 0;
+      for (long x = xs.ceiling(Integer.MIN_VALUE); x != RangeDomain.NONE; x = xs.ceiling(x + 1)) {
+        for (long y = ys.ceiling(Integer.MIN_VALUE); y != RangeDomain.NONE; y = ys.ceiling(y + 1)) {
+          if (relation.allows((int) x, (int) y)) {
+            if (count == pairs.length)
+              pairs = Arrays.copyOf(pairs, count * 2);
+            pairs[count++] = Relation.Table.pack((int) x, (int) y);
+          }
+        }
+      }
+      return new Relation.Table(pairs, count);
+    }
+
+    // A map capacity that holds n entries without growing
+    private static int capacity(int n) {
+      return Math.max(16, (int) (n / 3L * 4 + 4));
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+      buffer.asIntBuffer().put(values);
+      buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+      if (count < 0 || 4L * count > buffer.remaining())
+        throw new IndexOutOfBoundsException("Only " + buffer.remaining() + " bytes left");
+      int[] values = new int[count];
+      buffer.asIntBuffer().get(values);
+      buffer.position(buffer.position() + 4 * count);
+      return values;
+    }
+}
@@ -0,0 +1,270 @@
+package csp_solver;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A domain kept as a bitset in a slot of a DomainStore's MemorySegment
+ * instead of arrays on the heap. The slot covers a fixed span of values,
+ * chosen when the store is laid out: values leave and come back (the
+ * trail puts them back with addRange), but nothing outside the span can
+ * be added.
+ *
+ * It is a RangeDomain to everything that reads or prunes domains, so the
+ * propagators, trail and search work on it unchanged.
+ */
+final class OffHeapDomain extends RangeDomain {
+    private final MemorySegment segment;
+    // Byte offset of the slot's first word, the value of its first bit,
+    // and how many values and words it covers
+    private final long base;
+    private final int low;
+    private final int span;
+    private final int words;
+    private int values;
+
+    OffHeapDomain(MemorySegment segment, long base, int low, int span) {
+      super(0);
+      this.segment = segment;
+      this.base = base;
+      this.low = low;
+      this.span = span;
+      this.words = (span + 63) >>> 6;
+    }
+
+    /**
+     * Words a slot for that many values takes
+     */
+    static int wordsFor(int span) {
+      return (span + 63) >>> 6;
+    }
+
+    int getLow() {
+      return low;
+    }
+
+    int getSpan() {
+      return span;
+    }
+
+    /**
+     * Hold exactly the values of the given domain, which must be within
+     * the span
+     */
+    void load(Set<Integer> domain) {
+      clear();
+      if (domain instanceof RangeDomain) {
+        RangeDomain ranges = (RangeDomain) domain;
+        for (long v = ranges.ceiling(Integer.MIN_VALUE); v != NONE; v = ranges.ceiling(v + 1)) {
+          int end = ranges.runEnd((int) v);
+          addRange((int) v, end);
+          v = end;
+        }
+      } else {
+        for (Integer v : domain)
+          add(v.intValue());
+      }
+    }
+
+    /**
+     * Hold the same values as another slot of the same span
+     */
+    void copyFrom(OffHeapDomain other) {
+      MemorySegment.copy(other.segment, other.base, segment, base, (long) words << 3);
+      values = other.values;
+    }
+
+    private long word(int w) {
+      return segment.get(ValueLayout.JAVA_LONG, base + ((long) w << 3));
+    }
+
+    private void setWord(int w, long bits) {
+      segment.set(ValueLayout.JAVA_LONG, base + ((long) w << 3), bits);
+    }
+
+    /**
+     * The bits of word w that lie between first and last (bit numbers,
+     * both inclusive)
+     */
+    private static long mask(int w, long first, long last) {
+      long from = Math.max(first, (long) w << 6), to = Math.min(last, ((long) w << 6) + 63);
+      return (-1L << (from & 63)) & (-1L >>> (63 - (to & 63)));
+    }
+
+    @Override
+    public int size() {
+      return values;
+    }
+
+    @Override
+    public int rangeCount() {
+      int runs = 0;
+      long carry = 0;
+      for (int w = 0; w < words; w++) {
+        long bits = word(w);
+        // A run starts at every set bit whose lower neighbour is clear
+        runs += Long.bitCount(bits & ~((bits << 1) | carry));
+        carry = bits >>> 63;
+      }
+      return runs;
+    }
+
+    @Override
+    public boolean isBitset() {
+      return true;
+    }
+
+    @Override
+    public int min() {
+      if (values == 0)
+        throw new NoSuchElementException();
+      return (int) ceiling(Integer.MIN_VALUE);
+    }
+
+    @Override
+    public int max() {
+      if (values == 0)
+        throw new NoSuchElementException();
+      int w = words - 1;
+      while (word(w) == 0)
+        w--;
+      return low + (w << 6) + 63 - Long.numberOfLeadingZeros(word(w));
+    }
+
+    @Override
+    public boolean contains(int v) {
+      long i = (long) v - low;
+      return i >= 0 && i < span && (word((int) (i >>> 6)) & (1L << i)) != 0;
+    }
+
+    @Override
+    public boolean add(int v) {
+      if (contains(v))
+        return false;
+      addRange(v, v);
+      return true;
+    }
+
+    @Override
+    public boolean remove(int v) {
+      return cut(v, v) > 0;
+    }
+
+    @Override
+    public void clear() {
+      for (int w = 0; w < words; w++)
+        setWord(w, 0);
+      values = 0;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> values) {
+      int before = this.values;
+      if (values instanceof RangeDomain) {
+        RangeDomain other = (RangeDomain) values;
+        for (long v = other.ceiling(Integer.MIN_VALUE); v != NONE; v = other.ceiling(v + 1)) {
+          int end = other.runEnd((int) v);
+          addRange((int) v, end);
+          v = end;
+        }
+      } else {
+        for (Integer v : values)
+          add(v.intValue());
+      }
+      return this.values != before;
+    }
+
+    @Override
+    public void addRange(int from, int to) {
+      if (from > to)
+        return;
+      long first = (long) from - low, last = (long) to - low;
+      if (first < 0 || last >= span)
+        throw new IllegalArgumentException(from + ".." + to + " is outside " + low + ".." + (low + span - 1L));
+      for (int w = (int) (first >>> 6); w <= (int) (last >>> 6); w++) {
+        long bits = word(w), mask = mask(w, first, last);
+        values += Long.bitCount(mask & ~bits);
+        setWord(w, bits | mask);
+      }
+    }
+
+    @Override
+    public int cut(int from, int to) {
+      if (from > to || values == 0)
+        return 0;
+      long first = Math.max(0, (long) from - low), last = Math.min((long) to - low, span - 1L);
+      if (first > last)
+        return 0;
+      int before = values;
+      for (int w = (int) (first >>> 6); w <= (int) (last >>> 6); w++) {
+        long bits = word(w), gone = bits & mask(w, first, last);
+        if (gone != 0) {
+          values -= Long.bitCount(gone);
+          setWord(w, bits & ~gone);
+        }
+      }
+      return before - values;
+    }
+
+    @Override
+    public void retainOnly(int v) {
+      clear();
+      long i = (long) v - low;
+      setWord((int) (i >>> 6), 1L << i);
+      values = 1;
+    }
+
+    /**
+     * Word by word against a slot of the same span, eg the warm start's
+     * copy of this domain
+     */
+    @Override
+    public boolean retainAll(Collection<?> c) {
+      if (! (c instanceof OffHeapDomain))
+        return super.retainAll(c);
+      OffHeapDomain other = (OffHeapDomain) c;
+      if (other.low != low || other.span != span)
+        return super.retainAll(c);
+      int before = values;
+      values = 0;
+      for (int w = 0; w < words; w++) {
+        long bits = word(w) & other.word(w);
+        setWord(w, bits);
+        values += Long.bitCount(bits);
+      }
+      return values != before;
+    }
+
+    @Override
+    public long ceiling(long v) {
+      if (values == 0 || v > Integer.MAX_VALUE)
+        return NONE;
+      long i = Math.max(0, v - low);
+      if (i >= span)
+        return NONE;
+      int w = (int) (i >>> 6);
+      long bits = word(w) & (-1L << i);
+      while (bits == 0) {
+        if (++w == words)
+          return NONE;
+        bits = word(w);
+      }
+      return (long) low + ((long) w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    @Override
+    public int runEnd(int v) {
+      long i = (long) v - low;
+      int w = (int) (i >>> 6);
+      long clear = ~word(w) & (-1L << i);
+      while (clear == 0) {
+        if (++w == words)
+          return low + span - 1;
+        clear = ~word(w);
+      }
+      return (int) (low + ((long) w << 6) + Long.numberOfTrailingZeros(clear) - 1);
+    }
+}
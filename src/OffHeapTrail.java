@@ -0,0 +1,60 @@
+package csp_solver;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * A Trail whose entries live in a MemorySegment, twelve bytes each, rather
+ * than in int arrays on the heap. The segment doubles when it is full; the
+ * old one is freed once nothing refers to it.
+ */
+final class OffHeapTrail extends Trail {
+    private static final long ENTRY = 12;
+    private MemorySegment entries = Arena.ofAuto().allocate(256 * ENTRY, 4);
+
+    private OffHeapTrail() {
+      super(0);
+    }
+
+    /**
+     * A new trail off the heap (typed as a Trail, so that callers on the
+     * heap path never load this class)
+     */
+    static Trail create() {
+      return new OffHeapTrail();
+    }
+
+    @Override
+    int var(int i) {
+      return entries.get(ValueLayout.JAVA_INT, i * ENTRY);
+    }
+
+    @Override
+    int low(int i) {
+      return entries.get(ValueLayout.JAVA_INT, i * ENTRY + 4);
+    }
+
+    @Override
+    int high(int i) {
+      return entries.get(ValueLayout.JAVA_INT, i * ENTRY + 8);
+    }
+
+    @Override
+    void setHigh(int i, int high) {
+      entries.set(ValueLayout.JAVA_INT, i * ENTRY + 8, high);
+    }
+
+    @Override
+    void set(int i, int var, int low, int high) {
+      long at = i * ENTRY;
+      if (at == entries.byteSize()) {
+        MemorySegment bigger = Arena.ofAuto().allocate(at * 2, 4);
+        MemorySegment.copy(entries, 0, bigger, 0, at);
+        entries = bigger;
+      }
+      entries.set(ValueLayout.JAVA_INT, at, var);
+      entries.set(ValueLayout.JAVA_INT, at + 4, low);
+      entries.set(ValueLayout.JAVA_INT, at + 8, high);
+    }
+}
@@ -0,0 +1,61 @@
+package csp_solver;
+
+import java.util.Map;
+
+/**
+ * Several independent pigeonhole problems in one model: each group puts
+ * pigeons into one hole fewer than there are of them, no two in the same
+ * hole. Every group is unsatisfiable, and arc consistency cannot see it,
+ * so refuting one takes a search exponential in its size.
+ *
+ * The groups share no constraints, so the solver splits them into
+ * components and searches them in parallel. A timed solve shows the
+ * deadline holding there: it gives up on every component at once.
+ */
+public class Pigeonhole {
+    private final ConstraintSatisfactionProblem solver;
+
+    public Pigeonhole(int groups, int pigeons) {
+      solver = new ConstraintSatisfactionProblem();
+      for (int g = 0; g < groups; g++) {
+        int base = g * pigeons;
+        for (int i = 0; i < pigeons; i++)
+          solver.addVariable(base + i, new RangeDomain(1, pigeons - 1));
+        for (int i = 0; i < pigeons; i++) {
+          for (int j = i + 1; j < pigeons; j++)
+            solver.addConstraint(base + i, base + j, Relation.notEqual());
+        }
+      }
+    }
+
+    /**
+     * Solve, giving up after timeout milliseconds (0 for no limit)
+     * @return a solution, null if there is none or the deadline came first
+     */
+    public Map<Integer, Integer> solve(long timeout) {
+      return solver.solve(timeout);
+    }
+
+    public boolean hasTimedOut() {
+      return solver.hasTimedOut();
+    }
+
+    /**
+     * Usage: java csp_solver.Pigeonhole [groups [pigeons [timeout]]]
+     */
+    public static final void main(String[] args) {
+      int groups = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+      int pigeons = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+      long timeout = args.length > 2 ? Long.parseLong(args[2]) : 300;
+      Pigeonhole problem = new Pigeonhole(groups, pigeons);
+      long before = System.nanoTime();
+      Map<Integer, Integer> solution = problem.solve(timeout);
+      double elapsed = (System.nanoTime() - before) / 1e6;
+      if (solution != null)
+        System.out.println(solution);
+      else if (problem.hasTimedOut())
+        System.out.println(String.format("Stopped at the %d ms deadline after %.0f ms", timeout, elapsed));
+      else
+        System.out.println(String.format("No solution, proved in %.0f ms", elapsed));
+    }
+}
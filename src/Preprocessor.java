@@ -0,0 +1,249 @@
+package csp_solver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Stronger-than-AC preprocessing run once before the search.
+ *
+ * Singleton arc consistency (SAC) removes every value whose assignment is
+ * refuted by arc consistency on its own. Path consistency (PC) tightens each
+ * constraint to the pairs that can be extended to every third variable
+ * constrained with both ends (restricted to triangles of the constraint
+ * graph). Both stop when their time budget runs out; whatever they removed
+ * by then is still sound.
+ */
+public class Preprocessor {
+    // Only tighten relations with at most this many candidate pairs
+    private static final long PC_PAIR_LIMIT = 1 << 16;
+
+    private final Map<Integer, Set<Integer>> domains;
+    private final Map<hashPair, Relation> constraints;
+    private final long deadline;
+
+    private int valuesRemoved;
+    private int pairsRemoved;
+    private int rounds;
+    private double spaceBefore;
+
+    /**
+     * @param domains      the (arc consistent) domains, pruned in place
+     * @param constraints  the constraints, tightened in place by PC
+     * @param budgetMillis how long the preprocessing may take in total
+     */
+    public Preprocessor(Map<Integer, Set<Integer>> domains, Map<hashPair, Relation> constraints,
+                        long budgetMillis) {
+      this.domains = domains;
+      this.constraints = constraints;
+      this.deadline = System.currentTimeMillis() + budgetMillis;
+      this.spaceBefore = searchSpace();
+    }
+
+    private boolean outOfTime() {
+      return System.currentTimeMillis() > deadline;
+    }
+
+    /**
+     * SAC-1, in rounds. Each round tests every (variable, value) pair against
+     * a snapshot of the domains, one variable per task in parallel: a value
+     * refuted under the snapshot stays refuted under any smaller domains, so
+     * the tests need not see each other's removals. The refuted values are
+     * then removed, arc consistency is restored, and the next round starts.
+     * Each worker thread copies the snapshot once per round into its own
+     * engine and undoes every test on it, rather than copying per variable.
+     * @return false if the problem turned out to have no solution
+     */
+    public boolean singletonArcConsistency() {
+      boolean changed = true;
+      while (changed && ! outOfTime()) {
+        rounds++;
+        final Map<Integer, Set<Integer>> snapshot = copy(domains);
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (Integer v : snapshot.keySet()) {
+          if (snapshot.get(v).size() > 1)
+            candidates.add(v);
+        }
+
+        ThreadLocal<PropagationEngine> engines =
+            ThreadLocal.withInitial(() -> new PropagationEngine(copy(snapshot), constraints));
+        Map<Integer, List<Integer>> refuted = candidates.parallelStream()
+            .collect(Collectors.toMap(v -> v, v -> refutedValues(v, snapshot, engines.get())));
+
+        changed = false;
+        for (Map.Entry<Integer, List<Integer>> e : refuted.entrySet()) {
+          for (Integer value : e.getValue()) {
+            if (domains.get(e.getKey()).remove(value)) {
+              valuesRemoved++;
+              changed = true;
+            }
+          }
+          if (domains.get(e.getKey()).isEmpty())
+            return false;
+        }
+        if (changed) {
+          PropagationEngine engine = new PropagationEngine(domains, constraints);
+          engine.scheduleAll();
+          int before = totalSize();
+          if (! engine.propagate(true))
+            return false;
+          valuesRemoved += before - totalSize();
+        }
+      }
+      return true;
+    }
+
+    /**
+     * The values of var that arc consistency refutes, tested on the calling
+     * thread's engine, which is left as it was found (at the snapshot)
+     */
+    private List<Integer> refutedValues(Integer var, Map<Integer, Set<Integer>> snapshot,
+                                        PropagationEngine engine) {
+      List<Integer> refuted = new ArrayList<Integer>();
+      int index = engine.indexOf(var);
+      for (Integer value : snapshot.get(var)) {
+        if (outOfTime())
+          break;
+        int mark = engine.mark();
+        engine.fix(index, value);
+        if (! engine.propagate(true))
+          refuted.add(value);
+        // Put the engine back at the snapshot for the next value or variable
+        engine.undo(mark);
+      }
+      return refuted;
+    }
+
+    /**
+     * Restricted path consistency: for every constraint (x, y) and every z
+     * constrained with both, drop the pairs (a, b) with no c in z's domain
+     * compatible with both. Tightened constraints become tables. Repeats
+     * until nothing changes, then restores arc consistency.
+     * @return false if the problem turned out to have no solution
+     */
+    public boolean pathConsistency() {
+      Map<Integer, Set<Integer>> neighbours = new HashMap<Integer, Set<Integer>>();
+      for (hashPair scope : constraints.keySet()) {
+        neighbours.computeIfAbsent(scope.getX(), k -> new HashSet<Integer>()).add(scope.getY());
+        neighbours.computeIfAbsent(scope.getY(), k -> new HashSet<Integer>()).add(scope.getX());
+      }
+
+      boolean changed = true;
+      while (changed && ! outOfTime()) {
+        rounds++;
+        changed = false;
+        for (hashPair scope : new ArrayList<hashPair>(constraints.keySet())) {
+          if (outOfTime())
+            break;
+          Integer x = scope.getX(), y = scope.getY();
+          Set<Integer> domainX = domains.get(x), domainY = domains.get(y);
+          if ((long) domainX.size() * domainY.size() > PC_PAIR_LIMIT)
+            continue;
+          List<Integer> thirds = new ArrayList<Integer>();
+          for (Integer z : neighbours.get(x)) {
+            if (! z.equals(y) && neighbours.get(y).contains(z))
+              thirds.add(z);
+          }
+          if (thirds.isEmpty())
+            continue;
+
+          Relation relation = constraints.get(scope);
+          Set<hashPair> kept = new HashSet<hashPair>();
+          int dropped = 0;
+          for (Integer a : domainX) {
+            for (Integer b : domainY) {
+              if (! relation.allows(a, b))
+                continue;
+              if (extends_(x, a, y, b, thirds))
+                kept.add(new hashPair(a, b));
+              else
+                dropped++;
+            }
+          }
+          if (dropped > 0) {
+            constraints.put(scope, Relation.table(kept));
+            pairsRemoved += dropped;
+            changed = true;
+          }
+        }
+      }
+
+      PropagationEngine engine = new PropagationEngine(domains, constraints);
+      engine.scheduleAll();
+      int before = totalSize();
+      boolean consistent = engine.propagate(true);
+      valuesRemoved += before - totalSize();
+      return consistent;
+    }
+
+    /**
+     * Whether x = a, y = b extends to every third variable
+     */
+    private boolean extends_(Integer x, int a, Integer y, int b, List<Integer> thirds) {
+      for (Integer z : thirds) {
+        boolean supported = false;
+        for (Integer c : domains.get(z)) {
+          if (allows(x, a, z, c) && allows(z, c, y, b)) {
+            supported = true;
+            break;
+          }
+        }
+        if (! supported)
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * Every constraint between the two variables, in either orientation
+     */
+    private boolean allows(Integer u, int a, Integer v, int b) {
+      Relation forward = constraints.get(new hashPair(u, v));
+      if (forward != null && ! forward.allows(a, b))
+        return false;
+      Relation backward = constraints.get(new hashPair(v, u));
+      return backward == null || backward.allows(b, a);
+    }
+
+    private int totalSize() {
+      int total = 0;
+      for (Set<Integer> d : domains.values())
+        total += d.size();
+      return total;
+    }
+
+    /**
+     * log10 of the number of complete assignments left to search
+     */
+    private double searchSpace() {
+      double space = 0;
+      for (Set<Integer> d : domains.values())
+        space += Math.log10(Math.max(1, d.size()));
+      return space;
+    }
+
+    private static Map<Integer, Set<Integer>> copy(Map<Integer, Set<Integer>> domains) {
+      Map<Integer, Set<Integer>> copy = new HashMap<Integer, Set<Integer>>();
+      for (Map.Entry<Integer, Set<Integer>> e : domains.entrySet())
+        copy.put(e.getKey(), RangeDomain.copyOf(e.getValue()));
+      return copy;
+    }
+
+    public int getValuesRemoved() {
+      return valuesRemoved;
+    }
+
+    public int getPairsRemoved() {
+      return pairsRemoved;
+    }
+
+    public void printStats() {
+      System.out.println(String.format("Preprocessing: %d rounds, %d values and %d pairs removed, "
+                                       + "search space 10^%.1f -> 10^%.1f",
+                                       rounds, valuesRemoved, pairsRemoved, spaceBefore, searchSpace()));
+    }
+}
@@ -0,0 +1,568 @@
+package csp_solver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Event-driven propagation for binary constraints.
+ *
+ * Every constraint becomes a propagator that watches its two variables for
+ * the domain events its Relation cares about: any value removed, a bound
+ * moved, or the variable fixed. A propagator sits in the queue at most once,
+ * and the queue always runs the cheapest waiting propagator first. Both the
+ * initial AC-3 pass and the look-ahead after each assignment (forward
+ * checking or MAC) go through here.
+ *
+ * Every removal goes on a trail, so the search undoes an assignment by
+ * rolling the trail back to a mark. Table constraints are filtered with
+ * Compact-Table, whose valid pairs are rolled back to the same marks.
+ * Variables are numbered densely and the engine's state is kept in arrays
+ * indexed by those numbers, so assigning, propagating and undoing allocate
+ * nothing in the steady state.
+ *
+ * The propagators and who watches what form a Network, which never
+ * changes once built: engines on different threads can share one (see
+ * CompiledModel), each with its own domains, trail, queue and weights.
+ */
+public class PropagationEngine {
+    // Domain events
+    public static final int REMOVED = 1;
+    public static final int BOUNDS = 2;
+    public static final int FIXED = 4;
+    public static final int ANY = REMOVED | BOUNDS | FIXED;
+
+    // Propagator costs, cheapest first
+    public static final int UNARY = 0;
+    public static final int LINEAR = 1;
+    public static final int QUADRATIC = 2;
+    private static final int PRIORITIES = 3;
+
+    private final Network network;
+    private final Map<Integer, Set<Integer>> variables;
+    // Variables are numbered densely: ids[i] is variable i's id, and the
+    // per-variable state below is indexed by that number
+    private final Integer[] ids;
+    private final Set<Integer>[] domains;
+    private final Propagator[][] watchers;
+    // By propagator number: whether it is queued, how often it wiped out
+    // a domain (for dom/wdeg) plus one, and its Compact-Table state if it
+    // is a table constraint
+    private final boolean[] inQueue;
+    private final int[] weights;
+    private final CompactTable[] tableOf;
+    // The Compact-Table state of every table constraint
+    private final CompactTable[] tables;
+    private final ArrayDeque<Propagator>[] queue;
+    private int queued;
+    private int runs;
+
+    // Every value a propagator (or fix) removed, so it can be put back
+    private Trail trail = new Trail();
+    private boolean offHeapTrail;
+    // The mark changes are made under: the latest mark or undo
+    private int mark;
+
+    // Set while a propagator runs: the values it takes out of each domain
+    private final Change changeX = new Change();
+    private final Change changeY = new Change();
+    private final Relation.Removal removalX = removal(changeX);
+    private final Relation.Removal removalY = removal(changeY);
+
+    /**
+     * One binary constraint, numbered in the order the constraints came
+     */
+    static final class Propagator {
+      final int number;
+      final int x;
+      final int y;
+      final Relation relation;
+      final int priority;
+      final int events;
+
+      Propagator(int number, int x, int y, Relation relation) {
+        this.number = number;
+        this.x = x;
+        this.y = y;
+        this.relation = relation;
+        this.priority = relation.cost();
+        this.events = relation.wakeOn();
+      }
+    }
+
+    /**
+     * The variables' numbers and the propagators watching each of them:
+     * everything about the constraints an engine needs that searching
+     * never changes
+     */
+    static final class Network {
+      final Integer[] ids;
+      final Map<Integer, Integer> indexOf;
+      final Propagator[] propagators;
+      final Propagator[][] watchers;
+      final boolean[] wantsBounds;
+      final int tableCount;
+
+      Network(Collection<Integer> variables, Map<hashPair, Relation> constraints) {
+        int n = variables.size();
+        this.ids = variables.toArray(new Integer[n]);
+        this.indexOf = new HashMap<Integer, Integer>();
+        for (int i = 0; i < n; i++)
+          indexOf.put(ids[i], i);
+
+        this.propagators = new Propagator[constraints.size()];
+        int c = 0, tables = 0;
+        List<List<Propagator>> watching = new ArrayList<List<Propagator>>(n);
+        for (int i = 0; i < n; i++)
+          watching.add(new ArrayList<Propagator>());
+        for (Map.Entry<hashPair, Relation> e : constraints.entrySet()) {
+          Integer x = indexOf.get(e.getKey().getX()), y = indexOf.get(e.getKey().getY());
+          if (x == null || y == null)
+            throw new IllegalArgumentException("Constraint " + e.getKey() + " is on an unknown variable");
+          Propagator p = new Propagator(c, x, y, e.getValue());
+          propagators[c++] = p;
+          if (p.relation instanceof Relation.Table)
+            tables++;
+          watching.get(x).add(p);
+          watching.get(y).add(p);
+        }
+        this.tableCount = tables;
+        this.watchers = new Propagator[n][];
+        this.wantsBounds = new boolean[n];
+        for (int i = 0; i < n; i++) {
+          watchers[i] = watching.get(i).toArray(new Propagator[0]);
+          for (Propagator p : watchers[i])
+            wantsBounds[i] |= (p.events & BOUNDS) != 0;
+        }
+      }
+    }
+
+    /**
+     * What one revise did to one variable: how many values went, and the
+     * smallest and largest of them (to tell whether a bound moved)
+     */
+    private static final class Change {
+      int var;
+      int count;
+      long lowest;
+      long highest;
+
+      void start(int var) {
+        this.var = var;
+        count = 0;
+        lowest = Long.MAX_VALUE;
+        highest = Long.MIN_VALUE;
+      }
+    }
+
+    public PropagationEngine(Map<Integer, Set<Integer>> domains, Map<hashPair, Relation> constraints) {
+      this(new Network(domains.keySet(), constraints), domains);
+    }
+
+    /**
+     * An engine over a network built before, searching the given domains
+     * (by the same variable ids)
+     */
+    PropagationEngine(Network network, Map<Integer, Set<Integer>> domains) {
+      this.network = network;
+      this.variables = domains;
+      this.ids = network.ids;
+      this.watchers = network.watchers;
+      @SuppressWarnings("unchecked")
+      Set<Integer>[] slots = (Set<Integer>[]) new Set<?>[ids.length];
+      for (int i = 0; i < ids.length; i++)
+        slots[i] = domains.get(ids[i]);
+      this.domains = slots;
+
+      int m = network.propagators.length;
+      this.inQueue = new boolean[m];
+      this.weights = new int[m];
+      Arrays.fill(weights, 1);
+      this.tableOf = new CompactTable[m];
+      this.tables = new CompactTable[network.tableCount];
+      int t = 0;
+      for (Propagator p : network.propagators) {
+        if (p.relation instanceof Relation.Table)
+          tables[t++] = tableOf[p.number] = new CompactTable((Relation.Table) p.relation);
+      }
+
+      @SuppressWarnings("unchecked")
+      ArrayDeque<Propagator>[] queue = (ArrayDeque<Propagator>[]) new ArrayDeque<?>[PRIORITIES];
+      for (int i = 0; i < PRIORITIES; i++)
+        queue[i] = new ArrayDeque<Propagator>();
+      this.queue = queue;
+    }
+
+    /**
+     * Pick up the domains again after the map was given new ones (the
+     * variables themselves must be the same). Whatever the trail held
+     * refers to the old domains and is dropped.
+     */
+    public void bind() {
+      for (int i = 0; i < ids.length; i++)
+        domains[i] = variables.get(ids[i]);
+      trail.clear();
+      mark = 0;
+      for (CompactTable t : tables)
+        t.reset();
+      clear();
+    }
+
+    /**
+     * Keep the trail off the heap (see OffHeapTrail) or on it. Whatever
+     * the trail held is dropped, as by bind().
+     */
+    public void setOffHeapTrail(boolean offHeap) {
+      if (offHeap == offHeapTrail)
+        return;
+      trail = offHeap ? OffHeapTrail.create() : new Trail();
+      offHeapTrail = offHeap;
+      mark = 0;
+    }
+
+    /**
+     * How many propagators have run since the engine was built
+     */
+    public int getRuns() {
+      return runs;
+    }
+
+    /**
+     * Number of variables
+     */
+    public int size() {
+      return ids.length;
+    }
+
+    /**
+     * The number of a variable, -1 if the engine does not know it
+     */
+    public int indexOf(Integer id) {
+      Integer i = network.indexOf.get(id);
+      return i == null ? -1 : i;
+    }
+
+    public Integer idOf(int var) {
+      return ids[var];
+    }
+
+    public Set<Integer> domain(int var) {
+      return domains[var];
+    }
+
+    /**
+     * Number of constraints, numbered in the order they were given
+     */
+    public int constraintCount() {
+      return network.propagators.length;
+    }
+
+    /**
+     * The first variable of a constraint
+     */
+    public int scopeX(int c) {
+      return network.propagators[c].x;
+    }
+
+    /**
+     * The second variable of a constraint
+     */
+    public int scopeY(int c) {
+      return network.propagators[c].y;
+    }
+
+    public Relation relation(int c) {
+      return network.propagators[c].relation;
+    }
+
+    /**
+     * Number of constraints on a variable
+     */
+    public int degree(int var) {
+      return watchers[var].length;
+    }
+
+    /**
+     * The k-th constraint on a variable, by number
+     */
+    public int constraintOn(int var, int k) {
+      return watchers[var][k].number;
+    }
+
+    /**
+     * A point on the trail to undo back to
+     */
+    public int mark() {
+      mark = trail.mark();
+      return mark;
+    }
+
+    /**
+     * Put back every value removed since the mark
+     */
+    public void undo(int mark) {
+      trail.undo(mark, domains);
+      for (CompactTable t : tables)
+        t.undo(mark);
+      this.mark = mark;
+    }
+
+    /**
+     * Make every removal so far permanent
+     */
+    public void commit() {
+      trail.clear();
+      mark = 0;
+      for (CompactTable t : tables)
+        t.commit();
+    }
+
+    /**
+     * How many values left the domains of variables other than except
+     * since the mark
+     */
+    public int removedSince(int mark, int except) {
+      return trail.removedSince(mark, except);
+    }
+
+    /**
+     * Assign a variable: cut its domain down to the value (which must be
+     * in it), on the trail, and wake every propagator watching it
+     */
+    public void fix(int var, int value) {
+      Set<Integer> domain = domains[var];
+      if (domain instanceof RangeDomain) {
+        RangeDomain ranges = (RangeDomain) domain;
+        trail.pushRuns(var, ranges, Integer.MIN_VALUE, value - 1);
+        trail.pushRuns(var, ranges, value + 1, Integer.MAX_VALUE);
+        ranges.retainOnly(value);
+      } else {
+        Iterator<Integer> others = domain.iterator();
+        while (others.hasNext()) {
+          int v = others.next();
+          if (v != value) {
+            trail.push(var, v, v);
+            others.remove();
+          }
+        }
+      }
+      notify(var, ANY);
+    }
+
+    /**
+     * Bound a variable from outside (an objective, say): remove every
+     * value above the bound, on the trail, and wake the propagators
+     * watching it if anything went
+     * @return false if the domain was wiped out
+     */
+    public boolean removeAbove(int var, int bound) {
+      Set<Integer> domain = domains[var];
+      if (bound == Integer.MAX_VALUE)
+        return ! domain.isEmpty();
+      int removed = 0;
+      if (domain instanceof RangeDomain) {
+        RangeDomain ranges = (RangeDomain) domain;
+        trail.pushRuns(var, ranges, bound + 1, Integer.MAX_VALUE);
+        removed = ranges.cut(bound + 1, Integer.MAX_VALUE);
+      } else {
+        Iterator<Integer> values = domain.iterator();
+        while (values.hasNext()) {
+          int v = values.next();
+          if (v > bound) {
+            trail.push(var, v, v);
+            values.remove();
+            removed++;
+          }
+        }
+      }
+      if (removed > 0)
+        notify(var, domain.size() == 1 ? ANY : REMOVED | BOUNDS);
+      return ! domain.isEmpty();
+    }
+
+    /**
+     * The summed weights of the constraints between var and the variables
+     * not yet assigned (the wdeg in dom/wdeg). Weights grow each time a
+     * constraint fails and last as long as the engine, so across restarts.
+     */
+    public int weightedDegree(int var, boolean[] assigned) {
+      int degree = 0;
+      for (Propagator p : watchers[var]) {
+        if (! assigned[p.x == var ? p.y : p.x])
+          degree += weights[p.number];
+      }
+      return degree;
+    }
+
+    /**
+     * Forget the failures counted so far: every constraint weighs one again
+     */
+    public void resetWeights() {
+      Arrays.fill(weights, 1);
+    }
+
+    /**
+     * Queue every propagator (a full AC-3 pass)
+     */
+    public void scheduleAll() {
+      for (Propagator p : network.propagators)
+        enqueue(p);
+    }
+
+    /**
+     * Queue the propagators on the given scopes only
+     */
+    public void schedule(Collection<hashPair> scopes) {
+      Set<hashPair> wanted = new HashSet<hashPair>(scopes);
+      for (Propagator p : network.propagators) {
+        if (wanted.contains(new hashPair(ids[p.x], ids[p.y])))
+          enqueue(p);
+      }
+    }
+
+    /**
+     * Tell the engine a variable's domain changed from outside: wake the
+     * propagators watching it for any of these events
+     */
+    public void notify(int var, int events) {
+      for (Propagator p : watchers[var]) {
+        if ((p.events & events) != 0)
+          enqueue(p);
+      }
+    }
+
+    /**
+     * Run queued propagators. Whatever they remove goes on the trail.
+     * @param fixpoint  keep waking propagators until nothing changes (MAC,
+     *                  AC-3); otherwise only run what is queued now (FC)
+     * @return false if some domain was wiped out
+     */
+    public boolean propagate(boolean fixpoint) {
+      while (queued > 0) {
+        Propagator p = dequeue();
+        runs++;
+
+        changeX.start(p.x);
+        changeY.start(p.y);
+        Set<Integer> domainX = domains[p.x], domainY = domains[p.y];
+        CompactTable table = tableOf[p.number];
+        if (table != null) {
+          // One pass leaves a table at its fixpoint
+          table.filter(domainX, domainY, removalX, removalY, mark);
+        } else {
+          // Revise until neither side loses anything more: a propagator is
+          // then at its own fixpoint and need not wake itself up again
+          boolean revisedX;
+          do {
+            p.relation.reviseY(domainX, domainY, removalY);
+            revisedX = p.relation.reviseX(domainX, domainY, removalX);
+          } while (revisedX);
+        }
+
+        if (domainX.isEmpty() || domainY.isEmpty()) {
+          weights[p.number]++;
+          clear();
+          return false;
+        }
+        if (fixpoint) {
+          wake(changeX, domainX, p);
+          wake(changeY, domainY, p);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Empty the queue
+     */
+    public void clear() {
+      for (ArrayDeque<Propagator> bucket : queue) {
+        Propagator p;
+        while ((p = bucket.poll()) != null)
+          inQueue[p.number] = false;
+      }
+      queued = 0;
+    }
+
+    private void wake(Change change, Set<Integer> domain, Propagator source) {
+      if (change.count == 0)
+        return;
+      int events = REMOVED;
+      if (domain.size() == 1)
+        events |= FIXED | BOUNDS;
+      else if (network.wantsBounds[change.var] && boundMoved(change, domain))
+        events |= BOUNDS;
+      for (Propagator p : watchers[change.var]) {
+        if (p != source && (p.events & events) != 0)
+          enqueue(p);
+      }
+    }
+
+    private static boolean boundMoved(Change change, Set<Integer> domain) {
+      long min, max;
+      if (domain instanceof RangeDomain) {
+        min = ((RangeDomain) domain).min();
+        max = ((RangeDomain) domain).max();
+      } else {
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        for (Integer v : domain) {
+          min = Math.min(min, v);
+          max = Math.max(max, v);
+        }
+      }
+      return change.lowest < min || change.highest > max;
+    }
+
+    private void enqueue(Propagator p) {
+      if (inQueue[p.number])
+        return;
+      inQueue[p.number] = true;
+      queue[p.priority].add(p);
+      queued++;
+    }
+
+    private Propagator dequeue() {
+      for (ArrayDeque<Propagator> bucket : queue) {
+        if (! bucket.isEmpty()) {
+          Propagator p = bucket.remove();
+          inQueue[p.number] = false;
+          queued--;
+          return p;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Record the values a relation removes on the trail and in the change
+     */
+    private Relation.Removal removal(final Change change) {
+      return new Relation.Removal() {
+        public void accept(int value) {
+          trail.push(change.var, value, value);
+          note(value, value);
+        }
+
+        public void acceptRange(int low, int high) {
+          if (low > high)
+            return;
+          trail.push(change.var, low, high);
+          note(low, high);
+        }
+
+        private void note(int low, int high) {
+          change.count += high - low + 1;
+          change.lowest = Math.min(change.lowest, low);
+          change.highest = Math.max(change.highest, high);
+        }
+      };
+    }
+}
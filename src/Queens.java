@@ -4,14 +4,14 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import javafx.util.Pair;
 
 public class Queens {
-    private ConstraintSatisfactionProblem solver = new ConstraintSatisfactionProblem();
+    private final ConstraintSatisfactionProblem solver;
     private int numberOfQueens;
     
-    @SuppressWarnings({ "restriction", "boxing" })
+    @SuppressWarnings("boxing")
     public Queens(int queens) {
+        solver = new ConstraintSatisfactionProblem();
         numberOfQueens = queens;
         Set<Integer> domain = new HashSet<>();
         for (int i = 1; i <= numberOfQueens; ++i)
@@ -20,22 +20,31 @@ public class Queens {
         for (int i = 1; i <= numberOfQueens; ++i)
             solver.addVariable(i, domain);
         // Create constraints
+        // Different columns and diagonals: queens i and j must not share a
+        // column nor be |i - j| columns apart
         for (int i = 1; i <= numberOfQueens - 1; ++i) {
-            for (int j = i + 1; j <= numberOfQueens; ++j) {
-                Set<hashPair> constraint = new HashSet<>();
-                for (int a = 1; a <= numberOfQueens; ++a) {
-                    for (int b = 1; b <= numberOfQueens; ++b) {
-                        if (a == b || Math.abs(a - b) == Math.abs(i - j))
-                            continue;
-                        constraint.add(new hashPair(a, b));
-                    }
-                }
-                solver.addConstraint(i, j, constraint);
-            }
+            for (int j = i + 1; j <= numberOfQueens; ++j)
+                solver.addConstraint(i, j, Relation.distanceNotEqual(j - i));
         }
     }
     
-    private static boolean verify(int[] solution) {
+    /**
+     * A board on a compiled model of another (see compile()), shared with
+     * every other board made from it
+     */
+    public Queens(CompiledModel model, SolverConfig config) {
+        solver = new ConstraintSatisfactionProblem(model, config);
+        numberOfQueens = model.getVariableCount();
+    }
+
+    /**
+     * The model as it is now, for other boards to share
+     */
+    public CompiledModel compile() {
+        return solver.compile();
+    }
+    
+    static boolean verify(int[] solution) {
         if (solution == null)
             return false;
         for (int i = 0; i < solution.length - 1; ++i) {
@@ -49,9 +58,23 @@ public class Queens {
         return true;
     }
     
-    @SuppressWarnings("boxing")
     public int[] solve() {
-        Map<Integer, Integer> solution = solver.solve();
+        return toArray(solver.solve());
+    }
+
+    /**
+     * The solver behind the board, for other ways of solving it (see
+     * CubeAndConquer)
+     */
+    ConstraintSatisfactionProblem getSolver() {
+        return solver;
+    }
+
+    /**
+     * A solution of the solver as each queen's column, null for none
+     */
+    @SuppressWarnings("boxing")
+    int[] toArray(Map<Integer, Integer> solution) {
         if (solution == null)
             return null;
         int[] result = new int[numberOfQueens];
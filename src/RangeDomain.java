@@ -0,0 +1,529 @@
+package csp_solver;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An integer domain stored as a sorted list of disjoint, inclusive ranges.
+ *
+ * A contiguous block of values (board positions, time slots, ...) costs one
+ * pair of ints no matter how many values it holds. When a domain is small but
+ * riddled with holes, it switches itself over to a bitset across its span,
+ * which is cheaper than keeping one range per value.
+ */
+public class RangeDomain extends AbstractSet<Integer> {
+    // Domains whose span is at most this wide may be stored as a bitset
+    public static final int DENSE_SPAN = 4096;
+    // Never bother with a bitset for a handful of ranges
+    private static final int MIN_RANGES_FOR_BITSET = 8;
+    // What ceiling returns when there is no such value
+    public static final long NONE = Long.MAX_VALUE;
+
+    // Range representation: [lo[i], hi[i]] for i < count, sorted and disjoint
+    private int[] lo;
+    private int[] hi;
+    private int count;
+    private int cursor; // last range found, speeds up sequential lookups
+    // Shared by domains with no room for ranges yet: insert grows it first
+    private static final int[] NO_RANGES = {};
+
+    // Bitset representation (bits != null): v is present iff bits.get(v - offset)
+    private BitSet bits;
+    private int offset;
+
+    // Counted in a long: a range can hold more values than an int does
+    private long size;
+
+    public RangeDomain() {
+      this(4);
+    }
+
+    /**
+     * An empty domain with room for that many ranges before its arrays
+     * grow; 0 for a subclass that keeps its values elsewhere
+     */
+    protected RangeDomain(int capacity) {
+      lo = capacity == 0 ? NO_RANGES : new int[capacity];
+      hi = capacity == 0 ? NO_RANGES : new int[capacity];
+      count = 0;
+      size = 0;
+    }
+
+    /**
+     * A domain holding every value from low to high, both inclusive
+     */
+    public RangeDomain(int low, int high) {
+      this();
+      addRange(low, high);
+    }
+
+    public RangeDomain(Collection<Integer> values) {
+      this();
+      if (values.getClass() == RangeDomain.class) {
+        RangeDomain other = (RangeDomain) values;
+        if (other.bits != null) {
+          bits = (BitSet) other.bits.clone();
+          offset = other.offset;
+        } else {
+          lo = other.lo.clone();
+          hi = other.hi.clone();
+          count = other.count;
+        }
+        size = other.size;
+      } else if (values instanceof RangeDomain) {
+        addAll(values);
+      } else {
+        for (Integer v : values)
+          add(v);
+      }
+    }
+
+    /**
+     * Copy a domain, keeping the compact representation if it has one
+     */
+    public static Set<Integer> copyOf(Set<Integer> domain) {
+      if (domain instanceof RangeDomain)
+        return new RangeDomain(domain);
+      return new HashSet<Integer>(domain);
+    }
+
+    @Override
+    public int size() {
+      // As the Set contract has it, past Integer.MAX_VALUE
+      return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Number of ranges it takes to describe this domain
+     */
+    public int rangeCount() {
+      if (bits == null)
+        return count;
+      int runs = 0;
+      for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(bits.nextClearBit(i)))
+        runs++;
+      return runs;
+    }
+
+    public boolean isBitset() {
+      return bits != null;
+    }
+
+    public int min() {
+      if (size == 0)
+        throw new NoSuchElementException();
+      if (bits != null)
+        return offset + bits.nextSetBit(0);
+      return lo[0];
+    }
+
+    public int max() {
+      if (size == 0)
+        throw new NoSuchElementException();
+      if (bits != null)
+        return offset + bits.length() - 1;
+      return hi[count - 1];
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (! (o instanceof Integer))
+        return false;
+      return contains(((Integer) o).intValue());
+    }
+
+    public boolean contains(int v) {
+      if (bits != null) {
+        long index = (long) v - offset;
+        return index >= 0 && index <= Integer.MAX_VALUE && bits.get((int) index);
+      }
+      int i = find(v);
+      return i >= 0 && v <= hi[i];
+    }
+
+    @Override
+    public boolean add(Integer v) {
+      return add(v.intValue());
+    }
+
+    public boolean add(int v) {
+      if (contains(v))
+        return false;
+      if (bits != null) {
+        long index = (long) v - offset;
+        if (index >= 0 && index < DENSE_SPAN) {
+          bits.set((int) index);
+          size++;
+          return true;
+        }
+        toRanges();
+      }
+      addRange(v, v);
+      return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (! (o instanceof Integer))
+        return false;
+      return remove(((Integer) o).intValue());
+    }
+
+    public boolean remove(int v) {
+      if (! contains(v))
+        return false;
+      if (bits != null) {
+        bits.clear(v - offset);
+        size--;
+        return true;
+      }
+      int i = find(v);
+      if (lo[i] == hi[i]) {
+        delete(i, i + 1);
+      } else if (v == lo[i]) {
+        lo[i]++;
+      } else if (v == hi[i]) {
+        hi[i]--;
+      } else {
+        insert(i + 1, v + 1, hi[i]);
+        hi[i] = v - 1;
+      }
+      size--;
+      maybeDensify();
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      bits = null;
+      count = 0;
+      size = 0;
+      cursor = 0;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> values) {
+      if (! (values instanceof RangeDomain))
+        return super.addAll(values);
+      RangeDomain other = (RangeDomain) values;
+      long before = size;
+      if (other.getClass() != RangeDomain.class) {
+        // Kept some other way: run by run
+        for (long v = other.ceiling(Integer.MIN_VALUE); v != NONE; v = other.ceiling(v + 1)) {
+          int end = other.runEnd((int) v);
+          addRange((int) v, end);
+          v = end;
+        }
+      } else if (other.bits == null) {
+        for (int i = 0; i < other.count; i++)
+          addRange(other.lo[i], other.hi[i]);
+      } else {
+        for (int i = other.bits.nextSetBit(0); i >= 0; i = other.bits.nextSetBit(i + 1)) {
+          int end = other.bits.nextClearBit(i);
+          addRange(other.offset + i, other.offset + end - 1);
+          i = end;
+        }
+      }
+      return size != before;
+    }
+
+    /**
+     * Add every value from low to high, both inclusive
+     */
+    public void addRange(int low, int high) {
+      if (low > high)
+        return;
+      if (bits != null) {
+        long first = (long) low - offset, last = (long) high - offset;
+        if (first >= 0 && last < DENSE_SPAN) {
+          int before = bits.cardinality();
+          bits.set((int) first, (int) last + 1);
+          size += bits.cardinality() - before;
+          return;
+        }
+        toRanges();
+      }
+      // Ranges overlapping or touching [low, high] are j..k
+      int j = firstEndingAtOrAfter((long) low - 1);
+      int k = find((int) Math.min((long) high + 1, Integer.MAX_VALUE));
+      if (j > k) {
+        insert(j, low, high);
+        size += (long) high - low + 1;
+      } else {
+        int newLo = Math.min(low, lo[j]);
+        int newHi = Math.max(high, hi[k]);
+        for (int i = j; i <= k; i++)
+          size -= (long) hi[i] - lo[i] + 1;
+        lo[j] = newLo;
+        hi[j] = newHi;
+        delete(j + 1, k + 1);
+        size += (long) newHi - newLo + 1;
+      }
+      maybeDensify();
+    }
+
+    /**
+     * Remove every value from low to high, both inclusive
+     * @return the values that were actually removed
+     */
+    public RangeDomain removeRange(int low, int high) {
+      RangeDomain gone = new RangeDomain();
+      for (long v = ceiling(low); v <= high; v = ceiling(v + 1)) {
+        int end = Math.min(runEnd((int) v), high);
+        gone.addRange((int) v, end);
+        v = end;
+      }
+      cut(low, high);
+      return gone;
+    }
+
+    /**
+     * Remove every value from low to high, both inclusive, without
+     * collecting them (nor allocating anything)
+     * @return how many values were removed, at most Integer.MAX_VALUE
+     */
+    public int cut(int low, int high) {
+      if (low > high || size == 0)
+        return 0;
+      long before = size;
+      if (bits != null) {
+        long first = Math.max(0, (long) low - offset);
+        long last = Math.min((long) high - offset, (long) bits.length() - 1);
+        if (first > last)
+          return 0;
+        for (int i = bits.nextSetBit((int) first); i >= 0 && i <= last; i = bits.nextSetBit(i + 1)) {
+          int end = (int) Math.min(bits.nextClearBit(i) - 1, last);
+          size -= end - i + 1;
+          i = end;
+        }
+        bits.clear((int) first, (int) last + 1);
+        return (int) (before - size);
+      }
+      int j = firstEndingAtOrAfter(low);
+      int k = find(high);
+      if (j > k)
+        return 0;
+      for (int i = j; i <= k; i++)
+        size -= (long) Math.min(hi[i], high) - Math.max(lo[i], low) + 1;
+      // What survives of the two boundary ranges
+      boolean keepLeft = lo[j] < low, keepRight = hi[k] > high;
+      int leftLo = lo[j], rightHi = hi[k];
+      delete(j, k + 1);
+      if (keepRight)
+        insert(j, high + 1, rightHi);
+      if (keepLeft)
+        insert(j, leftLo, low - 1);
+      return (int) Math.min(before - size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Keep nothing but v, which must be in the domain. Unlike clear() and
+     * add() this keeps the representation (and its arrays), so fixing a
+     * variable and undoing it again allocates nothing.
+     */
+    public void retainOnly(int v) {
+      if (bits != null) {
+        bits.clear();
+        bits.set(v - offset);
+      } else {
+        lo[0] = v;
+        hi[0] = v;
+        count = 1;
+        cursor = 0;
+      }
+      size = 1;
+    }
+
+    /**
+     * Bounds propagation: drop every value below the given bound
+     * @return the values that were removed
+     */
+    public RangeDomain removeBelow(int bound) {
+      if (bound == Integer.MIN_VALUE)
+        return new RangeDomain();
+      return removeRange(Integer.MIN_VALUE, bound - 1);
+    }
+
+    /**
+     * Bounds propagation: drop every value above the given bound
+     * @return the values that were removed
+     */
+    public RangeDomain removeAbove(int bound) {
+      if (bound == Integer.MAX_VALUE)
+        return new RangeDomain();
+      return removeRange(bound + 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Smallest value in the domain that is at least v, or NONE
+     */
+    public long ceiling(long v) {
+      if (size == 0 || v > Integer.MAX_VALUE)
+        return Long.MAX_VALUE;
+      if (v < Integer.MIN_VALUE)
+        v = Integer.MIN_VALUE;
+      if (bits != null) {
+        long index = Math.max(0, v - offset);
+        if (index > Integer.MAX_VALUE)
+          return Long.MAX_VALUE;
+        int next = bits.nextSetBit((int) index);
+        return next < 0 ? Long.MAX_VALUE : (long) offset + next;
+      }
+      int i = find((int) v);
+      if (i >= 0 && v <= hi[i])
+        return v;
+      return (i + 1 < count) ? lo[i + 1] : Long.MAX_VALUE;
+    }
+
+    /**
+     * The end of the run of consecutive values starting at v, which must be
+     * in the domain
+     */
+    public int runEnd(int v) {
+      if (bits != null)
+        return offset + bits.nextClearBit(v - offset) - 1;
+      return hi[find(v)];
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+      return new Iterator<Integer>() {
+        private long next = ceiling(Integer.MIN_VALUE);
+        private long last = Long.MAX_VALUE;
+
+        public boolean hasNext() {
+          return next != Long.MAX_VALUE;
+        }
+
+        public Integer next() {
+          if (next == Long.MAX_VALUE)
+            throw new NoSuchElementException();
+          last = next;
+          next = ceiling(next + 1);
+          return (int) last;
+        }
+
+        public void remove() {
+          if (last == Long.MAX_VALUE)
+            throw new IllegalStateException();
+          // Removing `last` never disturbs the values after it
+          RangeDomain.this.remove((int) last);
+          last = Long.MAX_VALUE;
+        }
+      };
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("{");
+      long v = ceiling(Integer.MIN_VALUE);
+      boolean first = true;
+      while (v != Long.MAX_VALUE) {
+        long end = v;
+        while (end < Integer.MAX_VALUE && contains((int) end + 1))
+          end++;
+        if (! first)
+          sb.append(", ");
+        sb.append(v);
+        if (end > v)
+          sb.append("..").append(end);
+        first = false;
+        v = ceiling(end + 1);
+      }
+      return sb.append("}").toString();
+    }
+
+    /**
+     * Index of the last range starting at or before v, -1 if none
+     */
+    private int find(int v) {
+      if (cursor < count && lo[cursor] <= v && (cursor + 1 == count || lo[cursor + 1] > v))
+        return cursor;
+      int low = 0, high = count - 1, result = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (lo[mid] <= v) {
+          result = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      if (result >= 0)
+        cursor = result;
+      return result;
+    }
+
+    /**
+     * Index of the first range ending at or after v, count if none
+     */
+    private int firstEndingAtOrAfter(long v) {
+      int low = 0, high = count - 1, result = count;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (hi[mid] >= v) {
+          result = mid;
+          high = mid - 1;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return result;
+    }
+
+    private void insert(int at, int low, int high) {
+      if (count == lo.length) {
+        lo = Arrays.copyOf(lo, Math.max(4, count * 2));
+        hi = Arrays.copyOf(hi, Math.max(4, count * 2));
+      }
+      System.arraycopy(lo, at, lo, at + 1, count - at);
+      System.arraycopy(hi, at, hi, at + 1, count - at);
+      lo[at] = low;
+      hi[at] = high;
+      count++;
+    }
+
+    private void delete(int from, int to) {
+      if (from >= to)
+        return;
+      System.arraycopy(lo, to, lo, from, count - to);
+      System.arraycopy(hi, to, hi, from, count - to);
+      count -= to - from;
+      cursor = 0;
+    }
+
+    /**
+     * Switch to a bitset once the ranges cost more than a bit per value
+     */
+    private void maybeDensify() {
+      if (bits != null || count < MIN_RANGES_FOR_BITSET)
+        return;
+      long span = (long) hi[count - 1] - lo[0] + 1;
+      if (span > DENSE_SPAN || (long) count * 64 < span)
+        return;
+      offset = lo[0];
+      bits = new BitSet((int) span);
+      for (int i = 0; i < count; i++)
+        bits.set(lo[i] - offset, hi[i] - offset + 1);
+      count = 0;
+      cursor = 0;
+    }
+
+    private void toRanges() {
+      BitSet old = bits;
+      bits = null;
+      count = 0;
+      cursor = 0;
+      for (int i = old.nextSetBit(0); i >= 0; i = old.nextSetBit(i + 1)) {
+        int end = old.nextClearBit(i);
+        insert(count, offset + i, offset + end - 1);
+        i = end;
+      }
+    }
+}
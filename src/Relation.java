@@ -0,0 +1,489 @@
+package csp_solver;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A binary constraint given by the pairs (x, y) it allows.
+ *
+ * Any (x, y) -> boolean lambda is a Relation, so a constraint can be stated
+ * as a predicate instead of a materialized set of tuples. The built-in
+ * operators below also know how to prune a neighbour's domain directly
+ * (eg not-equal just drops one value) rather than testing every pair.
+ */
+@FunctionalInterface
+public interface Relation {
+
+    /**
+     * Told about every value a relation removes from a domain
+     */
+    interface Removal {
+      void accept(int value);
+
+      /**
+       * Every value from low to high at once, eg a range cut off by bounds
+       * reasoning
+       */
+      default void acceptRange(int low, int high) {
+        for (long v = low; v <= high; v++)
+          accept((int) v);
+      }
+    }
+
+    /**
+     * @return true if the pair (x, y) satisfies the constraint
+     */
+    boolean allows(int x, int y);
+
+    /**
+     * Arc consistency: drop every x with no supporting y
+     * @return true if domainX changed
+     */
+    default boolean reviseX(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+      if (domainX instanceof RangeDomain && domainY instanceof RangeDomain)
+        return revise(this, (RangeDomain) domainX, (RangeDomain) domainY, true, removed);
+      boolean revised = false;
+      Iterator<Integer> it = domainX.iterator();
+      while (it.hasNext()) {
+        int x = it.next();
+        boolean useless = true;
+        for (Integer y : domainY) {
+          if (allows(x, y)) {
+            useless = false;
+            break;
+          }
+        }
+        if (useless) {
+          it.remove();
+          removed.accept(x);
+          revised = true;
+        }
+      }
+      return revised;
+    }
+
+    /**
+     * Arc consistency: drop every y with no supporting x
+     * @return true if domainY changed
+     */
+    default boolean reviseY(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+      if (domainX instanceof RangeDomain && domainY instanceof RangeDomain)
+        return revise(this, (RangeDomain) domainY, (RangeDomain) domainX, false, removed);
+      boolean revised = false;
+      Iterator<Integer> it = domainY.iterator();
+      while (it.hasNext()) {
+        int y = it.next();
+        boolean useless = true;
+        for (Integer x : domainX) {
+          if (allows(x, y)) {
+            useless = false;
+            break;
+          }
+        }
+        if (useless) {
+          it.remove();
+          removed.accept(y);
+          revised = true;
+        }
+      }
+      return revised;
+    }
+
+    /**
+     * Arc consistency between two range domains, walked with ceiling rather
+     * than iterators so that a revise allocates nothing
+     * @param pruned     the domain values are dropped from
+     * @param other      the domain supports are looked for in
+     * @param prunedIsX  whether pruned is the first variable of the relation
+     */
+    private static boolean revise(Relation relation, RangeDomain pruned, RangeDomain other,
+                                  boolean prunedIsX, Removal removed) {
+      boolean revised = false;
+      for (long a = pruned.ceiling(Integer.MIN_VALUE); a != RangeDomain.NONE; a = pruned.ceiling(a + 1)) {
+        boolean useless = true;
+        for (long b = other.ceiling(Integer.MIN_VALUE); b != RangeDomain.NONE; b = other.ceiling(b + 1)) {
+          if (prunedIsX ? relation.allows((int) a, (int) b) : relation.allows((int) b, (int) a)) {
+            useless = false;
+            break;
+          }
+        }
+        if (useless) {
+          pruned.remove((int) a);
+          removed.accept((int) a);
+          revised = true;
+        }
+      }
+      return revised;
+    }
+
+    /**
+     * The domain events (PropagationEngine.REMOVED, BOUNDS, FIXED) that can
+     * make this relation prune something
+     */
+    default int wakeOn() {
+      return PropagationEngine.REMOVED;
+    }
+
+    /**
+     * How expensive a revise is: PropagationEngine.UNARY, LINEAR or QUADRATIC
+     */
+    default int cost() {
+      return PropagationEngine.QUADRATIC;
+    }
+
+    /**
+     * The relation with its two variables swapped
+     */
+    default Relation reverse() {
+      Relation self = this;
+      return (x, y) -> self.allows(y, x);
+    }
+
+    /**
+     * x != y
+     */
+    static Relation notEqual() {
+      return NotEqual.INSTANCE;
+    }
+
+    /**
+     * x != y and |x - y| != distance (eg two queens distance rows apart)
+     */
+    static Relation distanceNotEqual(int distance) {
+      return new DistanceNotEqual(distance);
+    }
+
+    /**
+     * x < y
+     */
+    static Relation lessThan() {
+      return LessThan.INSTANCE;
+    }
+
+    /**
+     * An extensional relation: exactly the listed pairs are allowed
+     */
+    static Relation table(Set<hashPair> tuples) {
+      return new Table(tuples);
+    }
+
+    /**
+     * Remove a single value from a domain, reporting it if it was there
+     */
+    static void drop(Set<Integer> domain, int value, Removal removed) {
+      boolean dropped = (domain instanceof RangeDomain) ? ((RangeDomain) domain).remove(value)
+                                                        : domain.remove(value);
+      if (dropped)
+        removed.accept(value);
+    }
+
+    /**
+     * Remove every value from low to high, reporting them run by run
+     */
+    static void cut(RangeDomain domain, int low, int high, Removal removed) {
+      for (long v = domain.ceiling(low); v <= high; v = domain.ceiling(v + 1)) {
+        int end = Math.min(domain.runEnd((int) v), high);
+        removed.acceptRange((int) v, end);
+        v = end;
+      }
+      domain.cut(low, high);
+    }
+
+    /**
+     * The value of a domain down to one value
+     */
+    static int only(Set<Integer> domain) {
+      if (domain instanceof RangeDomain)
+        return ((RangeDomain) domain).min();
+      return domain.iterator().next();
+    }
+
+    final class NotEqual implements Relation {
+      static final NotEqual INSTANCE = new NotEqual();
+
+      public boolean allows(int x, int y) {
+        return x != y;
+      }
+
+      // A value only loses its support once the other side is down to it
+      public boolean reviseX(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+        if (domainY.size() != 1)
+          return false;
+        int before = domainX.size();
+        drop(domainX, only(domainY), removed);
+        return domainX.size() != before;
+      }
+
+      public boolean reviseY(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+        return reviseX(domainY, domainX, removed);
+      }
+
+      public int wakeOn() {
+        return PropagationEngine.FIXED;
+      }
+
+      public int cost() {
+        return PropagationEngine.UNARY;
+      }
+
+      public Relation reverse() {
+        return this;
+      }
+    }
+
+    final class DistanceNotEqual implements Relation {
+      private final int distance;
+
+      DistanceNotEqual(int distance) {
+        this.distance = Math.abs(distance);
+      }
+
+      int distance() {
+        return distance;
+      }
+
+      public boolean allows(int x, int y) {
+        return x != y && Math.abs(x - y) != distance;
+      }
+
+      // Each value rules out at most three on the other side, so any
+      // domain with more than three values supports everything
+      public boolean reviseX(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+        if (domainY.size() > 3)
+          return false;
+        return Relation.super.reviseX(domainX, domainY, removed);
+      }
+
+      public boolean reviseY(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+        return reviseX(domainY, domainX, removed);
+      }
+
+      // Only a domain down to three values can leave anything unsupported
+      public int cost() {
+        return PropagationEngine.UNARY;
+      }
+
+      public Relation reverse() {
+        return this;
+      }
+    }
+
+    final class LessThan implements Relation {
+      static final LessThan INSTANCE = new LessThan();
+
+      public boolean allows(int x, int y) {
+        return x < y;
+      }
+
+      // Bounds consistency is arc consistency for <
+      public boolean reviseX(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+        if (domainY.isEmpty())
+          return false;
+        int before = domainX.size();
+        removeOutside(domainX, Integer.MIN_VALUE, max(domainY) - 1L, removed);
+        return domainX.size() != before;
+      }
+
+      public boolean reviseY(Set<Integer> domainX, Set<Integer> domainY, Removal removed) {
+        if (domainX.isEmpty())
+          return false;
+        int before = domainY.size();
+        removeOutside(domainY, min(domainX) + 1L, Integer.MAX_VALUE, removed);
+        return domainY.size() != before;
+      }
+
+      public int wakeOn() {
+        return PropagationEngine.BOUNDS;
+      }
+
+      public int cost() {
+        return PropagationEngine.LINEAR;
+      }
+
+      private static int min(Set<Integer> domain) {
+        if (domain instanceof RangeDomain)
+          return ((RangeDomain) domain).min();
+        int min = Integer.MAX_VALUE;
+        for (Integer v : domain)
+          min = Math.min(min, v);
+        return min;
+      }
+
+      private static int max(Set<Integer> domain) {
+        if (domain instanceof RangeDomain)
+          return ((RangeDomain) domain).max();
+        int max = Integer.MIN_VALUE;
+        for (Integer v : domain)
+          max = Math.max(max, v);
+        return max;
+      }
+
+      /**
+       * Keep only the values in [low, high]
+       */
+      private static void removeOutside(Set<Integer> domain, long low, long high, Removal removed) {
+        if (domain instanceof RangeDomain) {
+          RangeDomain ranges = (RangeDomain) domain;
+          if (low > Integer.MAX_VALUE || high < Integer.MIN_VALUE || low > high) {
+            cut(ranges, Integer.MIN_VALUE, Integer.MAX_VALUE, removed);
+          } else {
+            if (low > Integer.MIN_VALUE)
+              cut(ranges, Integer.MIN_VALUE, (int) low - 1, removed);
+            if (high < Integer.MAX_VALUE)
+              cut(ranges, (int) high + 1, Integer.MAX_VALUE, removed);
+          }
+          return;
+        }
+        Iterator<Integer> it = domain.iterator();
+        while (it.hasNext()) {
+          int v = it.next();
+          if (v < low || v > high) {
+            it.remove();
+            removed.accept(v);
+          }
+        }
+      }
+    }
+
+    final class Table implements Relation {
+      // The allowed pairs packed as (x << 32 | y) and sorted, so a check is
+      // a binary search and the pairs of one x are next to each other
+      private final long[] packed;
+      // For Compact-Table filtering the pairs are numbered by their place
+      // in packed: those of xs[i] run from xStart[i] to xStart[i + 1], and
+      // those of ys[j] are listed in yTuples from yStart[j] to yStart[j + 1]
+      final int[] xs;
+      final int[] xStart;
+      final int[] ys;
+      final int[] yStart;
+      final int[] yTuples;
+
+      Table(Set<hashPair> tuples) {
+        // The set itself is not kept: a hashPair per pair costs several
+        // times what the arrays below do together
+        this(packAll(tuples), tuples.size());
+      }
+
+      /**
+       * The first count pairs of an array packed as (x << 32 | y), in any
+       * order and maybe repeated. Takes the array over.
+       */
+      Table(long[] pairs, int count) {
+        Arrays.sort(pairs, 0, count);
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+          if (kept == 0 || pairs[i] != pairs[kept - 1])
+            pairs[kept++] = pairs[i];
+        }
+        this.packed = kept == pairs.length ? pairs : Arrays.copyOf(pairs, kept);
+
+        int i, n = packed.length, distinct = 0;
+        for (i = 0; i < n; i++) {
+          if (i == 0 || x(packed[i]) != x(packed[i - 1]))
+            distinct++;
+        }
+        xs = new int[distinct];
+        xStart = new int[distinct + 1];
+        distinct = 0;
+        for (i = 0; i < n; i++) {
+          if (i == 0 || x(packed[i]) != x(packed[i - 1])) {
+            xs[distinct] = x(packed[i]);
+            xStart[distinct++] = i;
+          }
+        }
+        xStart[distinct] = n;
+
+        // The same again by y, each y's pairs in increasing order
+        long[] byY = new long[n];
+        for (i = 0; i < n; i++)
+          byY[i] = pack((int) packed[i], i);
+        Arrays.sort(byY);
+        distinct = 0;
+        for (i = 0; i < n; i++) {
+          if (i == 0 || x(byY[i]) != x(byY[i - 1]))
+            distinct++;
+        }
+        ys = new int[distinct];
+        yStart = new int[distinct + 1];
+        yTuples = new int[n];
+        distinct = 0;
+        for (i = 0; i < n; i++) {
+          if (i == 0 || x(byY[i]) != x(byY[i - 1])) {
+            ys[distinct] = x(byY[i]);
+            yStart[distinct++] = i;
+          }
+          yTuples[i] = (int) byY[i];
+        }
+        yStart[distinct] = n;
+      }
+
+      /**
+       * A table from arrays as built above, eg read back from a snapshot
+       */
+      Table(long[] packed, int[] xs, int[] xStart, int[] ys, int[] yStart, int[] yTuples) {
+        this.packed = packed;
+        this.xs = xs;
+        this.xStart = xStart;
+        this.ys = ys;
+        this.yStart = yStart;
+        this.yTuples = yTuples;
+      }
+
+      private static long[] packAll(Set<hashPair> tuples) {
+        long[] pairs = new long[tuples.size()];
+        int i = 0;
+        for (hashPair t : tuples)
+          pairs[i++] = pack(t.getX(), t.getY());
+        return pairs;
+      }
+
+      static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+      }
+
+      private static int x(long pair) {
+        return (int) (pair >> 32);
+      }
+
+      public boolean allows(int x, int y) {
+        return Arrays.binarySearch(packed, pack(x, y)) >= 0;
+      }
+
+      /**
+       * The same pairs with x and y swapped, still a table
+       */
+      public Relation reverse() {
+        long[] swapped = new long[packed.length];
+        for (int i = 0; i < packed.length; i++)
+          swapped[i] = pack((int) packed[i], x(packed[i]));
+        return new Table(swapped, swapped.length);
+      }
+
+      /**
+       * The allowed pairs packed as (x << 32 | y), sorted; not to be
+       * changed
+       */
+      long[] packed() {
+        return packed;
+      }
+
+      /**
+       * The number of allowed pairs
+       */
+      public int size() {
+        return packed.length;
+      }
+
+      /**
+       * The allowed pairs, as a new set
+       */
+      public Set<hashPair> tuples() {
+        Set<hashPair> tuples = new HashSet<hashPair>();
+        for (long pair : packed)
+          tuples.add(new hashPair(x(pair), (int) pair));
+        return tuples;
+      }
+    }
+}
@@ -0,0 +1,92 @@
+package csp_solver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A binary trace of the search, written to a memory-mapped file.
+ *
+ * Every event is one fixed-width record: kind, depth, variable and value.
+ * The file is a ring: once it is full the oldest records are overwritten,
+ * so a long run keeps its last `capacity` events at a fixed cost. The
+ * header holds how many records were written in total, so a reader knows
+ * where the ring starts. TraceSummary reads the file back.
+ *
+ * Layout (little endian):
+ *   header  magic "CSPT", int version, int capacity, int unused, long written
+ *   record  byte kind, 3 bytes unused, int depth, int variable, int value
+ */
+public class SearchTrace implements AutoCloseable {
+    public static final int MAGIC = 0x54505343; // "CSPT"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 24;
+    public static final int RECORD_BYTES = 16;
+    static final int WRITTEN_OFFSET = 16;
+
+    // Record kinds
+    public static final byte DECISION = 1;  // variable := value
+    public static final byte PRUNE = 2;     // the decision removed value values
+    public static final byte FAILURE = 3;   // the decision led to a wipe-out
+    public static final byte BACKTRACK = 4; // every value of variable failed
+    public static final byte RESTART = 5;   // value is the run that starts
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private long written;
+
+    /**
+     * @param path      the trace file (created or overwritten)
+     * @param capacity  how many records the ring keeps
+     */
+    public SearchTrace(String path, int capacity) {
+      this.capacity = capacity;
+      try {
+        Path file = Paths.get(path);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                             HEADER_BYTES + (long) capacity * RECORD_BYTES);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, capacity);
+      buffer.putLong(WRITTEN_OFFSET, 0);
+    }
+
+    /**
+     * Append one record, overwriting the oldest one if the ring is full.
+     * Synchronized so components solved in parallel can share a trace.
+     */
+    public synchronized void record(byte kind, int depth, int variable, int value) {
+      int at = HEADER_BYTES + (int) (written % capacity) * RECORD_BYTES;
+      buffer.put(at, kind);
+      buffer.putInt(at + 4, depth);
+      buffer.putInt(at + 8, variable);
+      buffer.putInt(at + 12, value);
+      buffer.putLong(WRITTEN_OFFSET, ++written);
+    }
+
+    public synchronized long getWritten() {
+      return written;
+    }
+
+    @Override
+    public synchronized void close() {
+      buffer.force();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+}
@@ -0,0 +1,322 @@
+package csp_solver;
+
+import java.util.Locale;
+
+/**
+ * Which features the solver uses: heuristics, propagation, preprocessing,
+ * restarts, tracing and where the search state is stored.
+ *
+ * A config is immutable. Make one with builder(), or change a copy of an
+ * existing one with toBuilder(), and give it to the solver. It can also be
+ * written as text, eg "wdeg=false,mrv,seed=7" (a bare name means true), so
+ * the demos take one from the csp.config system property without being
+ * recompiled: java -Dcsp.config=auto csp_solver.Sudoku benchmark
+ *
+ * In auto mode the solver measures the instance before each search (see
+ * InstanceFeatures) and lets adaptTo pick the search strategy from it.
+ */
+public final class SolverConfig {
+    // The system property the default solver reads its config from
+    public static final String PROPERTY = "csp.config";
+    // Mean open domain size from which auto mode treats domains as large
+    private static final double LARGE_DOMAIN = 32;
+    // Largest domain auto mode orders values by LCV for
+    private static final int MAX_LCV_DOMAIN = 1024;
+    // Constraint graphs at least this dense, of constraints ruling out at
+    // most this fraction of pairs, are searched with forward checking
+    private static final double DENSE = 0.3;
+    private static final double LOOSE = 0.3;
+
+    private final boolean mrv;
+    private final boolean lcv;
+    private final boolean ac3;
+    private final boolean mac3;
+    private final boolean decompose;
+    private final int decomposeDepth;
+    private final boolean sac;
+    private final boolean pc;
+    private final long preprocessBudget;
+    private final boolean wdeg;
+    private final boolean randomize;
+    private final long seed;
+    private final ConstraintSatisfactionProblem.Restarts restarts;
+    private final int restartBase;
+    private final double restartGrowth;
+    private final String trace;
+    private final int traceCapacity;
+    private final boolean auto;
+    private final boolean stats;
+    private final ConstraintSatisfactionProblem.Storage storage;
+
+    private SolverConfig(Builder b) {
+      this.mrv = b.mrv;
+      this.lcv = b.lcv;
+      this.ac3 = b.ac3;
+      this.mac3 = b.mac3;
+      this.decompose = b.decompose;
+      this.decomposeDepth = b.decomposeDepth;
+      this.sac = b.sac;
+      this.pc = b.pc;
+      this.preprocessBudget = b.preprocessBudget;
+      this.wdeg = b.wdeg;
+      this.randomize = b.randomize;
+      this.seed = b.seed;
+      this.restarts = b.restarts;
+      this.restartBase = b.restartBase;
+      this.restartGrowth = b.restartGrowth;
+      this.trace = b.trace;
+      this.traceCapacity = b.traceCapacity;
+      this.auto = b.auto;
+      this.stats = b.stats;
+      this.storage = b.storage;
+    }
+
+    public static Builder builder() {
+      return new Builder();
+    }
+
+    public Builder toBuilder() {
+      return new Builder(this);
+    }
+
+    public static SolverConfig defaults() {
+      return builder().build();
+    }
+
+    /**
+     * The config in the csp.config system property, the defaults if there
+     * is none
+     */
+    public static SolverConfig fromSystemProperty() {
+      String text = System.getProperty(PROPERTY);
+      return text == null ? defaults() : parse(text);
+    }
+
+    /**
+     * Read a config written as comma separated name=value settings over the
+     * defaults, eg "auto" or "mac3=false,restarts=luby,seed=3"
+     */
+    public static SolverConfig parse(String text) {
+      Builder b = builder();
+      for (String setting : text.split(",")) {
+        setting = setting.trim();
+        if (setting.isEmpty())
+          continue;
+        int eq = setting.indexOf('=');
+        String name = (eq < 0 ? setting : setting.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+        String value = eq < 0 ? "true" : setting.substring(eq + 1).trim();
+        switch (name) {
+          case "mrv":              b.mrv(flag(name, value)); break;
+          case "lcv":              b.lcv(flag(name, value)); break;
+          case "ac3":              b.ac3(flag(name, value)); break;
+          case "mac3":             b.mac3(flag(name, value)); break;
+          case "decompose":        b.decompose(flag(name, value)); break;
+          case "decomposedepth":   b.decomposeDepth(Integer.parseInt(value)); break;
+          case "sac":              b.sac(flag(name, value)); break;
+          case "pc":               b.pc(flag(name, value)); break;
+          case "preprocessbudget": b.preprocessBudget(Long.parseLong(value)); break;
+          case "wdeg":             b.wdeg(flag(name, value)); break;
+          case "randomize":        b.randomize(flag(name, value)); break;
+          case "seed":             b.seed(Long.parseLong(value)); break;
+          case "restarts":
+            b.restarts(ConstraintSatisfactionProblem.Restarts.valueOf(value.toUpperCase(Locale.ROOT)));
+            break;
+          case "restartbase":      b.restartBase(Integer.parseInt(value)); break;
+          case "restartgrowth":    b.restartGrowth(Double.parseDouble(value)); break;
+          case "trace":            b.trace(value.isEmpty() ? null : value); break;
+          case "tracecapacity":    b.traceCapacity(Integer.parseInt(value)); break;
+          case "auto":             b.auto(flag(name, value)); break;
+          case "stats":            b.stats(flag(name, value)); break;
+          case "storage":
+            b.storage(ConstraintSatisfactionProblem.Storage.valueOf(value.toUpperCase(Locale.ROOT)));
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown setting " + name + " in \"" + text + "\"");
+        }
+      }
+      return b.build();
+    }
+
+    private static boolean flag(String name, String value) {
+      if (value.equalsIgnoreCase("true"))
+        return true;
+      if (value.equalsIgnoreCase("false"))
+        return false;
+      throw new IllegalArgumentException(name + " must be true or false, not " + value);
+    }
+
+    /**
+     * The search strategy for an instance with the given features: the
+     * variable ordering, look-ahead and preprocessing, chosen by rules fit
+     * on the Sudoku, Queens and Circuit benchmarks and on random binary
+     * problems at the phase transition. Everything else is
+     * kept from this config. The result is no longer in auto mode.
+     */
+    public SolverConfig adaptTo(InstanceFeatures f) {
+      Builder b = toBuilder().auto(false);
+      boolean largeDomains = f.getMeanDomain() >= LARGE_DOMAIN;
+      // dom/wdeg was at least as fast as MRV on every benchmark, and up to
+      // 3x faster on Sudoku
+      b.wdeg(true).mrv(false);
+      // With many values per variable (queens, circuit placements) the
+      // search mostly needs a good first value: LCV with forward checking
+      // solved 200 queens in 0.7s against 17s for MAC alone. On small
+      // Sudoku domains LCV only added time and MAC's pruning paid off.
+      // LCV counts the supports of every value, so huge domains skip it.
+      b.lcv(largeDomains && f.getMaxDomain() <= MAX_LCV_DOMAIN);
+      // On random problems with 10 values per variable, dense graphs of
+      // loose constraints (density 0.3 and 0.5, tightness 0.3 and 0.2) were
+      // solved 1.8x faster with forward checking: every arc MAC revises
+      // prunes little, and there are many of them. From tightness 0.35 or
+      // density 0.25 down MAC was as fast or faster, and Sudoku is sparse.
+      boolean denseAndLoose = f.getDensity() >= DENSE && f.getTightness() <= LOOSE;
+      b.mac3(! largeDomains && ! denseAndLoose);
+      // SAC cut nodes by a few percent but cost more time than it saved
+      // everywhere, so auto mode leaves preprocessing off
+      b.sac(false).pc(false);
+      return b.build();
+    }
+
+    /**
+     * The parts of the config adaptTo chooses, eg "dom/wdeg, MAC, SAC"
+     */
+    public String strategy() {
+      StringBuilder sb = new StringBuilder(wdeg ? "dom/wdeg" : mrv ? "MRV" : "static order");
+      sb.append(mac3 ? ", MAC" : ", forward checking");
+      if (lcv)
+        sb.append(", LCV");
+      if (sac)
+        sb.append(", SAC");
+      if (pc)
+        sb.append(", PC");
+      return sb.toString();
+    }
+
+    public boolean isMRV() { return mrv; }
+    public boolean isLCV() { return lcv; }
+    public boolean isAC3() { return ac3; }
+    public boolean isMAC3() { return mac3; }
+    public boolean isDecompose() { return decompose; }
+    public int getDecomposeDepth() { return decomposeDepth; }
+    public boolean isSAC() { return sac; }
+    public boolean isPC() { return pc; }
+    public long getPreprocessBudget() { return preprocessBudget; }
+    public boolean isWDEG() { return wdeg; }
+    public boolean isRandomize() { return randomize; }
+    public long getSeed() { return seed; }
+    public ConstraintSatisfactionProblem.Restarts getRestarts() { return restarts; }
+    public int getRestartBase() { return restartBase; }
+    public double getRestartGrowth() { return restartGrowth; }
+    public String getTrace() { return trace; }
+    public int getTraceCapacity() { return traceCapacity; }
+    public boolean isAuto() { return auto; }
+    public boolean isStats() { return stats; }
+    public ConstraintSatisfactionProblem.Storage getStorage() { return storage; }
+
+    /**
+     * The config in the form parse reads
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("mrv=").append(mrv).append(",lcv=").append(lcv)
+        .append(",ac3=").append(ac3).append(",mac3=").append(mac3)
+        .append(",decompose=").append(decompose).append(",decomposeDepth=").append(decomposeDepth)
+        .append(",sac=").append(sac).append(",pc=").append(pc)
+        .append(",preprocessBudget=").append(preprocessBudget)
+        .append(",wdeg=").append(wdeg).append(",randomize=").append(randomize).append(",seed=").append(seed)
+        .append(",restarts=").append(restarts.name().toLowerCase(Locale.ROOT))
+        .append(",restartBase=").append(restartBase).append(",restartGrowth=").append(restartGrowth);
+      if (trace != null)
+        sb.append(",trace=").append(trace);
+      sb.append(",traceCapacity=").append(traceCapacity).append(",auto=").append(auto)
+        .append(",stats=").append(stats)
+        .append(",storage=").append(storage.name().toLowerCase(Locale.ROOT));
+      return sb.toString();
+    }
+
+    /**
+     * Collects settings for a SolverConfig, starting from the defaults
+     */
+    public static final class Builder {
+      private boolean mrv = false;
+      private boolean lcv = false;
+      private boolean ac3 = true;
+      private boolean mac3 = true;
+      private boolean decompose = true;
+      private int decomposeDepth = 2;      // Also look for components this deep in the search
+      private boolean sac = false;         // Singleton arc consistency before the search
+      private boolean pc = false;          // Path consistency before the search
+      private long preprocessBudget = 1000; // Milliseconds SAC and PC may take together
+      private boolean wdeg = true;         // dom/wdeg variable ordering (weights survive restarts)
+      private boolean randomize = false;   // Break ties in variable and value ordering at random
+      private long seed = 0;               // Same seed, same search
+      private ConstraintSatisfactionProblem.Restarts restarts = ConstraintSatisfactionProblem.Restarts.NONE;
+      private int restartBase = 1000;      // Failures allowed in the first run
+      private double restartGrowth = 1.5;  // Cutoff factor for geometric restarts
+      private String trace = null;         // File for a binary search trace (see TraceSummary)
+      private int traceCapacity = 1 << 20; // Records kept, the oldest are overwritten
+      private boolean auto = false;        // Pick the strategy from the instance's features
+      private boolean stats = true;        // Print what each solve did (off for services)
+      // Working domains and trail on the heap, or off it for huge models
+      private ConstraintSatisfactionProblem.Storage storage = ConstraintSatisfactionProblem.Storage.HEAP;
+
+      private Builder() {
+      }
+
+      private Builder(SolverConfig c) {
+        mrv = c.mrv;
+        lcv = c.lcv;
+        ac3 = c.ac3;
+        mac3 = c.mac3;
+        decompose = c.decompose;
+        decomposeDepth = c.decomposeDepth;
+        sac = c.sac;
+        pc = c.pc;
+        preprocessBudget = c.preprocessBudget;
+        wdeg = c.wdeg;
+        randomize = c.randomize;
+        seed = c.seed;
+        restarts = c.restarts;
+        restartBase = c.restartBase;
+        restartGrowth = c.restartGrowth;
+        trace = c.trace;
+        traceCapacity = c.traceCapacity;
+        auto = c.auto;
+        stats = c.stats;
+        storage = c.storage;
+      }
+
+      public Builder mrv(boolean on) { mrv = on; return this; }
+      public Builder lcv(boolean on) { lcv = on; return this; }
+      public Builder ac3(boolean on) { ac3 = on; return this; }
+      public Builder mac3(boolean on) { mac3 = on; return this; }
+      public Builder decompose(boolean on) { decompose = on; return this; }
+      public Builder decomposeDepth(int depth) { decomposeDepth = depth; return this; }
+      public Builder sac(boolean on) { sac = on; return this; }
+      public Builder pc(boolean on) { pc = on; return this; }
+      public Builder preprocessBudget(long millis) { preprocessBudget = millis; return this; }
+      public Builder wdeg(boolean on) { wdeg = on; return this; }
+      public Builder randomize(boolean on) { randomize = on; return this; }
+      public Builder seed(long value) { seed = value; return this; }
+      public Builder restarts(ConstraintSatisfactionProblem.Restarts strategy) { restarts = strategy; return this; }
+      public Builder restartBase(int failures) { restartBase = failures; return this; }
+      public Builder restartGrowth(double factor) { restartGrowth = factor; return this; }
+      public Builder trace(String path) { trace = path; return this; }
+      public Builder traceCapacity(int records) { traceCapacity = records; return this; }
+      public Builder auto(boolean on) { auto = on; return this; }
+      public Builder stats(boolean on) { stats = on; return this; }
+      public Builder storage(ConstraintSatisfactionProblem.Storage where) { storage = where; return this; }
+
+      public SolverConfig build() {
+        if (decomposeDepth < 0 || preprocessBudget < 0 || restartBase < 1 || restartGrowth < 1
+            || traceCapacity < 1)
+          throw new IllegalArgumentException("Invalid solver config");
+        if (restarts == null)
+          throw new IllegalArgumentException("Restarts must not be null, use NONE");
+        if (storage == null)
+          throw new IllegalArgumentException("Storage must not be null, use HEAP");
+        return new SolverConfig(this);
+      }
+    }
+}
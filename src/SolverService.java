@@ -0,0 +1,560 @@
+package csp_solver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local HTTP service that solves puzzles written as the demos write them:
+ *   POST /sudoku   a board on one line (see Sudoku.parse): the solved board
+ *   POST /queens   the number of queens: each queen's column
+ *   POST /circuit  rows, columns and pieces, eg "3 10 3x2a 5x2b 2x3c 7x1e":
+ *                  the layout, one line per row
+ *   GET  /metrics  throughput, latency and batching so far
+ *
+ * Each request gets its own virtual thread, which only parses it, queues
+ * it and waits. The solving is done by one platform thread per core: each
+ * takes everything queued (up to BATCH requests at a time), groups it by
+ * model and solves it on models it kept from earlier batches. Sudoku and
+ * Queens models are compiled once per size and shared by every solver
+ * thread, which only keeps its own search state on them: a stream of 9x9
+ * boards is one compiled model, each board's givens assumptions of its
+ * solve, rather than a new model per request (or per thread). Given a
+ * snapshot directory, the service also writes each compiled model there
+ * (see ModelSnapshot) and reads it back when it restarts instead of
+ * compiling it again.
+ *
+ * Every request has a deadline, ?deadline=<ms> or an X-Deadline header,
+ * that counts from its arrival, so time spent queued is part of it. The
+ * status says how it went: 200 solved, 422 no solution, 504 deadline
+ * passed, 400 bad request, 503 queue full, 500 solver error.
+ *
+ * Usage: java csp_solver.SolverService [port [solver threads [snapshot directory]]]
+ * and see LoadGenerator to drive it.
+ */
+public class SolverService {
+    public static final int DEFAULT_PORT = 8080;
+    // Deadlines in ms: when a request sets none, and the longest allowed
+    private static final long DEFAULT_DEADLINE = 10000;
+    private static final long MAX_DEADLINE = 600000;
+    // Requests waiting for a solver thread; more are turned away
+    private static final int QUEUE_CAPACITY = 4096;
+    // Most requests a solver thread takes at a time
+    private static final int BATCH = 32;
+    // Models each solver thread keeps, least recently used dropped first
+    private static final int POOL_SIZE = 16;
+    // Compiled models shared by the solver threads; past this many they
+    // are all dropped
+    private static final int SHARED_MODELS = 64;
+    // Limits on what a request can ask for
+    private static final int MAX_BODY = 1 << 20;
+    private static final int MAX_SUDOKU = 64;
+    private static final int MAX_QUEENS = 1000;
+    private static final int MAX_CIRCUIT_CELLS = 200;
+    private static final int MAX_CIRCUIT_PIECES = 16;
+    private static final Pattern PIECE = Pattern.compile("(\\d+)x(\\d+)(\\S)");
+
+    enum Outcome {
+      SOLVED(200), NO_SOLUTION(422), TIMED_OUT(504), BAD_REQUEST(400), BUSY(503), ERROR(500);
+
+      final int status;
+
+      Outcome(int status) {
+        this.status = status;
+      }
+    }
+
+    private static final class Reply {
+      final Outcome outcome;
+      final String body;
+
+      Reply(Outcome outcome, String body) {
+        this.outcome = outcome;
+        this.body = body;
+      }
+    }
+
+    private static final Reply NO_SOLUTION = new Reply(Outcome.NO_SOLUTION, "No solution");
+    private static final Reply TIMED_OUT = new Reply(Outcome.TIMED_OUT, "Deadline passed");
+
+    /**
+     * One kind of puzzle, parsed from a request
+     * @param <T>  the model it is solved on
+     */
+    private abstract static class Problem<T> {
+      /**
+       * Puzzles with the same key are solved on the same models; null
+       * for one whose model is only good for itself
+       */
+      abstract String key();
+
+      /**
+       * The model every puzzle with this key is solved on, which the
+       * solver threads share
+       */
+      CompiledModel compile() {
+        return null;
+      }
+
+      /**
+       * A model of this thread's own, on the compiled one if the puzzle
+       * has a key
+       */
+      abstract T build(CompiledModel model, SolverConfig config);
+
+      /**
+       * Solve the puzzle on a model built for its key (maybe used by
+       * other puzzles before)
+       */
+      abstract Reply solve(T model, long timeout);
+    }
+
+    private static final class SudokuProblem extends Problem<Sudoku> {
+      private final int[][] board;
+
+      SudokuProblem(String text) {
+        board = Sudoku.parse(text);
+        if (board.length > MAX_SUDOKU)
+          throw new IllegalArgumentException("Boards go up to " + MAX_SUDOKU + "x" + MAX_SUDOKU);
+      }
+
+      String key() {
+        return "sudoku " + board.length;
+      }
+
+      CompiledModel compile() {
+        return new Sudoku(new int[board.length][board.length]).compile();
+      }
+
+      Sudoku build(CompiledModel model, SolverConfig config) {
+        return new Sudoku(model, config);
+      }
+
+      Reply solve(Sudoku sudoku, long timeout) {
+        ConstraintSatisfactionProblem solver = sudoku.getSolver();
+        // The last board's weights and values say nothing about this one
+        solver.forget();
+        int[][] solution = sudoku.solve(board, timeout);
+        if (solution == null)
+          return solver.hasTimedOut() ? TIMED_OUT : NO_SOLUTION;
+        return new Reply(Outcome.SOLVED, Sudoku.format(solution));
+      }
+    }
+
+    private static final class QueensProblem extends Problem<Queens> {
+      private final int n;
+
+      QueensProblem(String text) {
+        n = Integer.parseInt(text.trim());
+        if (n < 1 || n > MAX_QUEENS)
+          throw new IllegalArgumentException("From 1 to " + MAX_QUEENS + " queens");
+      }
+
+      String key() {
+        return "queens " + n;
+      }
+
+      CompiledModel compile() {
+        return new Queens(n).compile();
+      }
+
+      Queens build(CompiledModel model, SolverConfig config) {
+        return new Queens(model, config);
+      }
+
+      Reply solve(Queens queens, long timeout) {
+        ConstraintSatisfactionProblem solver = queens.getSolver();
+        int[] solution = queens.toArray(solver.solve(timeout));
+        if (solution == null)
+          return solver.hasTimedOut() ? TIMED_OUT : NO_SOLUTION;
+        StringBuilder sb = new StringBuilder();
+        for (int column : solution)
+          sb.append(sb.length() == 0 ? "" : " ").append(column);
+        return new Reply(Outcome.SOLVED, sb.toString());
+      }
+    }
+
+    private static final class CircuitProblem extends Problem<Circuit> {
+      private final int rows;
+      private final int cols;
+      private final Circuit.CircuitPiece[] pieces;
+
+      CircuitProblem(String text) {
+        String[] words = text.trim().split("\\s+");
+        if (words.length < 3)
+          throw new IllegalArgumentException("Expected <rows> <cols> <w>x<h><char>...");
+        rows = Integer.parseInt(words[0]);
+        cols = Integer.parseInt(words[1]);
+        if (rows < 1 || cols < 1 || (long) rows * cols > MAX_CIRCUIT_CELLS)
+          throw new IllegalArgumentException("Boards go up to " + MAX_CIRCUIT_CELLS + " cells");
+        if (words.length - 2 > MAX_CIRCUIT_PIECES)
+          throw new IllegalArgumentException("Up to " + MAX_CIRCUIT_PIECES + " pieces");
+        pieces = new Circuit.CircuitPiece[words.length - 2];
+        for (int p = 0; p < pieces.length; p++) {
+          Matcher m = PIECE.matcher(words[p + 2]);
+          if (! m.matches() || m.group(1).startsWith("0") || m.group(2).startsWith("0"))
+            throw new IllegalArgumentException("Bad piece " + words[p + 2] + ", expected eg 3x2a");
+          pieces[p] = new Circuit.CircuitPiece(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+                                               m.group(3).charAt(0));
+        }
+      }
+
+      String key() {
+        return null;
+      }
+
+      Circuit build(CompiledModel model, SolverConfig config) {
+        return new Circuit(rows, cols, pieces, config);
+      }
+
+      Reply solve(Circuit circuit, long timeout) {
+        char[] layout = circuit.solve(timeout);
+        if (layout == null)
+          return circuit.hasTimedOut() ? TIMED_OUT : NO_SOLUTION;
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < rows; y++)
+          sb.append(y == 0 ? "" : "\n").append(layout, y * cols, cols);
+        return new Reply(Outcome.SOLVED, sb.toString());
+      }
+    }
+
+    /**
+     * A queued request. Its handler stops waiting at the deadline and
+     * cancels the reply, and a solver thread skips it if it gets there
+     * later.
+     */
+    private static final class Job {
+      final Problem<?> problem;
+      final String key;
+      final long deadline;
+      final CompletableFuture<Reply> reply = new CompletableFuture<Reply>();
+
+      Job(Problem<?> problem, long deadline) {
+        this.problem = problem;
+        this.key = problem.key();
+        this.deadline = deadline;
+      }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newVirtualThreadPerTaskExecutor();
+    private final BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+    private final Thread[] solvers;
+    // The models are quiet: a service has no one to print statistics to
+    private final SolverConfig config = SolverConfig.fromSystemProperty().toBuilder().stats(false).build();
+    private volatile boolean running;
+    // The compiled models, by key
+    private final Map<String, CompiledModel> compiled = new ConcurrentHashMap<String, CompiledModel>();
+    // Where compiled models are kept between runs, null for nowhere
+    private final Path snapshots;
+
+    private final long started = System.nanoTime();
+    private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+    private final AtomicLong modelsCompiled = new AtomicLong();
+    private final AtomicLong modelsLoaded = new AtomicLong();
+    private final AtomicLong modelsBuilt = new AtomicLong();
+    private final AtomicLong modelsReused = new AtomicLong();
+
+    /**
+     * A service on the loopback address
+     * @param port     0 for any free port (see getPort)
+     * @param threads  how many puzzles are solved at once
+     */
+    public SolverService(int port, int threads) throws IOException {
+      this(port, threads, null);
+    }
+
+    /**
+     * A service that keeps its compiled models in a directory between runs
+     * @param snapshots  the directory (created if need be), null for none
+     */
+    public SolverService(int port, int threads, Path snapshots) throws IOException {
+      if (threads < 1)
+        throw new IllegalArgumentException("Need at least one solver thread");
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.setExecutor(handlers);
+      server.createContext("/metrics", this::metrics);
+      server.createContext("/", this::handle);
+      solvers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        solvers[i] = new Thread(this::work, "solver-" + i);
+        solvers[i].setDaemon(true);
+      }
+      if (snapshots != null)
+        Files.createDirectories(snapshots);
+      this.snapshots = snapshots;
+    }
+
+    public void start() {
+      running = true;
+      for (Thread t : solvers)
+        t.start();
+      server.start();
+    }
+
+    /**
+     * Stop taking requests; the ones in flight get a 504 or nothing
+     */
+    public void stop() {
+      server.stop(0);
+      running = false;
+      for (Thread t : solvers)
+        t.interrupt();
+      handlers.shutdownNow();
+    }
+
+    public int getPort() {
+      return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      long arrived = System.nanoTime();
+      Reply reply;
+      try {
+        reply = answer(exchange, arrived);
+      } catch (IllegalArgumentException e) {
+        reply = new Reply(Outcome.BAD_REQUEST, e.getMessage());
+      }
+      outcomes.incrementAndGet(reply.outcome.ordinal());
+      latency.record((System.nanoTime() - arrived) / 1000);
+      send(exchange, reply.outcome.status, reply.body);
+    }
+
+    private Reply answer(HttpExchange exchange, long arrived) throws IOException {
+      if (! exchange.getRequestMethod().equals("POST"))
+        throw new IllegalArgumentException("Puzzles are POSTed");
+      byte[] bytes = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+      if (bytes.length > MAX_BODY)
+        throw new IllegalArgumentException("Requests go up to " + MAX_BODY + " bytes");
+      String body = new String(bytes, StandardCharsets.UTF_8);
+      Problem<?> problem;
+      switch (exchange.getRequestURI().getPath()) {
+        case "/sudoku":  problem = new SudokuProblem(body); break;
+        case "/queens":  problem = new QueensProblem(body); break;
+        case "/circuit": problem = new CircuitProblem(body); break;
+        default:
+          throw new IllegalArgumentException("Unknown puzzle " + exchange.getRequestURI().getPath()
+                                             + ", expected /sudoku, /queens or /circuit");
+      }
+
+      Job job = new Job(problem, arrived + deadline(exchange) * 1000000);
+      if (! queue.offer(job))
+        return new Reply(Outcome.BUSY, "Queue full");
+      try {
+        return job.reply.get(Math.max(0, job.deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        job.reply.cancel(false);
+        return TIMED_OUT;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new Reply(Outcome.ERROR, "Shutting down");
+      } catch (ExecutionException e) {
+        return new Reply(Outcome.ERROR, String.valueOf(e.getCause()));
+      }
+    }
+
+    /**
+     * The request's deadline in ms, from ?deadline= or X-Deadline
+     */
+    private static long deadline(HttpExchange exchange) {
+      String text = exchange.getRequestHeaders().getFirst("X-Deadline");
+      String query = exchange.getRequestURI().getRawQuery();
+      if (query != null) {
+        for (String param : query.split("&")) {
+          if (param.startsWith("deadline="))
+            text = param.substring("deadline=".length());
+        }
+      }
+      if (text == null)
+        return DEFAULT_DEADLINE;
+      long deadline = Long.parseLong(text.trim());
+      if (deadline < 1 || deadline > MAX_DEADLINE)
+        throw new IllegalArgumentException("Deadlines go from 1 to " + MAX_DEADLINE + " ms");
+      return deadline;
+    }
+
+    /**
+     * A solver thread: take what is queued, same models together, and
+     * solve it on the models this thread keeps
+     */
+    private void work() {
+      Map<String, Object> pool = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+          return size() > POOL_SIZE;
+        }
+      };
+      List<Job> batch = new ArrayList<Job>(BATCH);
+      Comparator<Job> byModel = Comparator.comparing(j -> j.key, Comparator.nullsLast(Comparator.naturalOrder()));
+      while (running) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        queue.drainTo(batch, BATCH - 1);
+        batches.incrementAndGet();
+        batched.addAndGet(batch.size());
+        // A stable sort: in order of arrival within each model
+        batch.sort(byModel);
+        for (Job job : batch) {
+          if (job.reply.isDone())
+            continue;
+          long left = (job.deadline - System.nanoTime()) / 1000000;
+          if (left <= 0) {
+            job.reply.complete(TIMED_OUT);
+            continue;
+          }
+          try {
+            job.reply.complete(solve(job.problem, pool, left));
+          } catch (RuntimeException e) {
+            // The model may be half way through a change
+            if (job.key != null)
+              pool.remove(job.key);
+            job.reply.completeExceptionally(e);
+          }
+        }
+        batch.clear();
+      }
+    }
+
+    private <T> Reply solve(Problem<T> problem, Map<String, Object> pool, long timeout) {
+      String key = problem.key();
+      @SuppressWarnings("unchecked")
+      T model = key == null ? null : (T) pool.get(key);
+      if (model == null) {
+        model = problem.build(key == null ? null : compiled(problem), config);
+        modelsBuilt.incrementAndGet();
+        if (key != null)
+          pool.put(key, model);
+      } else {
+        modelsReused.incrementAndGet();
+      }
+      return problem.solve(model, timeout);
+    }
+
+    /**
+     * The shared model for a puzzle's key, compiled by the first thread
+     * that needs it while any others wait for it
+     */
+    private CompiledModel compiled(Problem<?> problem) {
+      if (compiled.size() >= SHARED_MODELS)
+        compiled.clear();
+      return compiled.computeIfAbsent(problem.key(), k -> load(problem));
+    }
+
+    /**
+     * A puzzle's shared model: read back from the snapshot directory if an
+     * earlier run left it there, otherwise compiled and left there for the
+     * next run
+     */
+    private CompiledModel load(Problem<?> problem) {
+      Path file = snapshots == null ? null : snapshots.resolve(problem.key().replace(' ', '-') + ".csm");
+      if (file != null && Files.isRegularFile(file)) {
+        try {
+          CompiledModel model = ModelSnapshot.read(file);
+          modelsLoaded.incrementAndGet();
+          return model;
+        } catch (IOException e) {
+          // Damaged or from another version: compiled and written again
+          System.err.println("Ignoring " + file + ": " + e.getMessage());
+        }
+      }
+      modelsCompiled.incrementAndGet();
+      CompiledModel model = problem.compile();
+      if (file != null) {
+        try {
+          ModelSnapshot.write(model, file);
+        } catch (IOException e) {
+          System.err.println("Could not write " + file + ": " + e.getMessage());
+        }
+      }
+      return model;
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+      exchange.getRequestBody().readAllBytes();
+      send(exchange, 200, metrics());
+    }
+
+    /**
+     * Everything /metrics reports, one "name value" per line
+     */
+    public String metrics() {
+      double seconds = (System.nanoTime() - started) / 1e9;
+      long requests = 0;
+      StringBuilder sb = new StringBuilder();
+      for (Outcome o : Outcome.values()) {
+        long n = outcomes.get(o.ordinal());
+        requests += n;
+        sb.append(o.name().toLowerCase(Locale.ROOT)).append(' ').append(n).append('\n');
+      }
+      long n = batches.get();
+      sb.insert(0, String.format("uptime_seconds %.1f%nrequests %d%n", seconds, requests));
+      sb.append(String.format("throughput_per_second %.1f%n", requests / seconds));
+      sb.append(String.format("latency_mean_ms %.2f%n", latency.getMean() / 1000));
+      sb.append(String.format("latency_p50_ms %.2f%n", latency.percentile(0.5) / 1000.0));
+      sb.append(String.format("latency_p90_ms %.2f%n", latency.percentile(0.9) / 1000.0));
+      sb.append(String.format("latency_p99_ms %.2f%n", latency.percentile(0.99) / 1000.0));
+      sb.append(String.format("latency_max_ms %.2f%n", latency.getMax() / 1000.0));
+      sb.append("queued ").append(queue.size()).append('\n');
+      sb.append("batches ").append(n).append('\n');
+      sb.append(String.format("mean_batch %.2f%n", n == 0 ? 0 : (double) batched.get() / n));
+      sb.append("models_compiled ").append(modelsCompiled.get()).append('\n');
+      sb.append("models_loaded ").append(modelsLoaded.get()).append('\n');
+      sb.append("models_built ").append(modelsBuilt.get()).append('\n');
+      sb.append("models_reused ").append(modelsReused.get());
+      return sb.toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+      byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+
+    public static final void main(String[] args) throws IOException {
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+      int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+      Path snapshots = args.length > 2 ? Paths.get(args[2]) : null;
+      SolverService service = new SolverService(port, threads, snapshots);
+      service.start();
+      System.out.println("Solving on http://localhost:" + service.getPort() + "/ with " + threads
+                         + " solver thread" + (threads == 1 ? "" : "s"));
+    }
+}
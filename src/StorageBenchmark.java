@@ -0,0 +1,130 @@
+package csp_solver;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap footprint and GC pauses with the working domains on the heap and
+ * off it (storage=off_heap).
+ *
+ * Compiles one large model, a chain of variables whose domains have holes
+ * (so each is a bitset), then for each storage mode puts several solvers
+ * on it, solves it to the end with each, and keeps them all alive. A
+ * solver then holds its working domains, the warm start's copy of them
+ * and its trail, which is what the storage mode moves. Reports the search
+ * speed in nodes per second, the heap each solver adds, the memory off the
+ * heap, the collections during the solves, and how long a full collection
+ * takes with all of them alive.
+ *
+ * Each solve costs time quadratic in the variables (every node scans
+ * them all to pick the next one), so the default chain is sized for the
+ * benchmark to finish in under a minute.
+ *
+ * Off-heap storage needs the preview API on Java 21:
+ * Usage: java --enable-preview csp_solver.StorageBenchmark [variables [solvers]]
+ */
+public class StorageBenchmark {
+    private static final int DEFAULT_VARIABLES = 10000;
+    private static final int DEFAULT_SOLVERS = 8;
+    // Values 0..SPAN-1, less every third
+    private static final int SPAN = 256;
+    // Full collections timed per mode
+    private static final int FULL_GCS = 3;
+
+    private static CompiledModel model(int variables) {
+      ConstraintSatisfactionProblem csp = new ConstraintSatisfactionProblem();
+      RangeDomain domain = new RangeDomain();
+      for (int v = 0; v < SPAN; v++) {
+        if (v % 3 != 2)
+          domain.add(v);
+      }
+      for (int i = 0; i < variables; i++)
+        csp.addVariable(i, domain);
+      for (int i = 1; i < variables; i++)
+        csp.addConstraint(i - 1, i, Relation.notEqual());
+      return csp.compile();
+    }
+
+    private static long usedHeap() {
+      System.gc();
+      System.gc();
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long offHeap() {
+      for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+        // Native segments are counted with direct buffers
+        if (pool.getName().equals("direct"))
+          return pool.getMemoryUsed();
+      }
+      return 0;
+    }
+
+    // Collections so far, and milliseconds spent in them
+    private static long[] collections() {
+      long count = 0, time = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        count += Math.max(0, gc.getCollectionCount());
+        time += Math.max(0, gc.getCollectionTime());
+      }
+      return new long[] {count, time};
+    }
+
+    private static void measure(CompiledModel model, ConstraintSatisfactionProblem.Storage storage, int count) {
+      // Without splitting into components: every decision splits the chain
+      SolverConfig config = SolverConfig.builder().decompose(false).stats(false).storage(storage).build();
+      // Warm up the JIT on this mode's code first
+      new ConstraintSatisfactionProblem(model, config).solve();
+
+      long heapBefore = usedHeap(), offBefore = offHeap();
+      long[] gcBefore = collections();
+      List<ConstraintSatisfactionProblem> solvers = new ArrayList<ConstraintSatisfactionProblem>();
+      long nodes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        ConstraintSatisfactionProblem solver = new ConstraintSatisfactionProblem(model, config);
+        if (solver.solve() == null)
+          throw new IllegalStateException(storage + " found no solution to a chain that has one");
+        nodes += solver.getNodeCount();
+        solvers.add(solver);
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long[] gcDuring = collections();
+
+      long heap = usedHeap() - heapBefore;
+      long off = offHeap() - offBefore;
+      long fullest = 0, total = 0;
+      for (int i = 0; i < FULL_GCS; i++) {
+        long t = System.nanoTime();
+        System.gc();
+        t = System.nanoTime() - t;
+        fullest = Math.max(fullest, t);
+        total += t;
+      }
+
+      System.out.println(String.format("%s: %d solves, %d nodes in %.1f seconds, %.0f nodes per second", storage,
+                                       solvers.size(), nodes, seconds, nodes / seconds));
+      System.out.println(String.format("  Heap per solver:     %8.1f KB", heap / 1024.0 / count));
+      System.out.println(String.format("  Off heap per solver: %8.1f KB", off / 1024.0 / count));
+      System.out.println(String.format("  Collections while solving: %d, %d ms", gcDuring[0] - gcBefore[0],
+                                       gcDuring[1] - gcBefore[1]));
+      System.out.println(String.format("  Full collection: %.1f ms mean, %.1f ms worst",
+                                       total / 1e6 / FULL_GCS, fullest / 1e6));
+      solvers.clear();
+    }
+
+    public static final void main(String[] args) {
+      int variables = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VARIABLES;
+      int solvers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SOLVERS;
+      long before = usedHeap();
+      CompiledModel model = model(variables);
+      System.out.println(String.format("Model: %d variables, %d constraints, %.1f MB of heap",
+                                       model.getVariableCount(), model.getConstraintCount(),
+                                       (usedHeap() - before) / 1048576.0));
+      measure(model, ConstraintSatisfactionProblem.Storage.HEAP, solvers);
+      measure(model, ConstraintSatisfactionProblem.Storage.OFF_HEAP, solvers);
+    }
+}
@@ -9,28 +9,30 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import javafx.util.Pair;
 
 public class Sudoku {
-    private ConstraintSatisfactionProblem solver = new ConstraintSatisfactionProblem();
+    private final ConstraintSatisfactionProblem solver;
     private int boardSize;
     private int sqrt;
-    private static final String SHORT_TEST = "./../sudoku_short";
-    private static final String LONG_TEST = "./../sudoku_test";
+    static final String SHORT_TEST = "./../sudoku_short";
+    static final String LONG_TEST = "./../sudoku_test";
     
     // Constructor
     @SuppressWarnings("boxing")
     public Sudoku(int[][] board) {
+        solver = new ConstraintSatisfactionProblem();
         boardSize = board.length;
         sqrt = (int) Math.sqrt(boardSize);
         assert(sqrt * sqrt == boardSize);
-        Set<Integer> domain = new HashSet<>();
-        for (int i = 1; i <= boardSize; ++i)
-            domain.add(i);
+        // One range that densifies into a bitset as it gets holes, so big
+        // boards don't pay for a hash set per cell
+        Set<Integer> domain = new RangeDomain(1, boardSize);
         for (int i = 0; i < board.length; ++i) {
             for (int j = 0; j < board[i].length; ++j) {
                 if (board[i][j] == 0)
@@ -65,32 +67,89 @@ public class Sudoku {
         }
     }
     
-    @SuppressWarnings({ "restriction", "boxing" })
+    @SuppressWarnings("boxing")
     public void generateConstraint(int[] pieces) {
-        Set<hashPair> constraint = new HashSet<>();
- //       Set<hashPair> backwards = new HashSet<>();
+        // All the cells in a unit must differ: a single shared predicate
+        // instead of a table of every pair of distinct digits
+        Relation constraint = Relation.notEqual();
 
-        for (int i = 1; i <= boardSize; ++i) {
-            for (int j = 1; j <= boardSize; ++j) {
-                if (i == j)
-                    continue;
-                constraint.add(new hashPair(i, j));
-  //              backwards.add(new hashPair(j, i));
-            }
-        }
+        // != is symmetric, so one constraint per pair (the smaller id first,
+        // which also merges the pairs a row or column shares with a block)
         for (int i = 0; i < pieces.length; ++i) {
-            for (int j = 0; j < pieces.length; ++j) {
-                if (i == j)
-                    continue;
-                solver.addConstraint(pieces[i], pieces[j], constraint);
-//                solver.addConstraint(pieces[j], pieces[i], backwards);
+            for (int j = i + 1; j < pieces.length; ++j) {
+                solver.addConstraint(Math.min(pieces[i], pieces[j]), Math.max(pieces[i], pieces[j]), constraint);
             }
         }
     }
     
+    /**
+     * Change one given on the board, 0 to clear it. The next solve() reuses
+     * the previous propagation and solution instead of starting over.
+     */
     @SuppressWarnings("boxing")
+    public void setGiven(int row, int column, int value) {
+        int id = row * boardSize + (column + 1);
+        if (value == 0) {
+            solver.addVariable(id, 1, boardSize);
+        } else {
+            solver.addVariable(id, Collections.singleton(value));
+        }
+    }
+    
+    /**
+     * A board on a compiled model of another (see compile()), which it
+     * shares with every other board made from it: each keeps only its own
+     * search state, so they can be solved on different threads at once
+     */
+    public Sudoku(CompiledModel model, SolverConfig config) {
+        solver = new ConstraintSatisfactionProblem(model, config);
+        boardSize = (int) Math.round(Math.sqrt(model.getVariableCount()));
+        sqrt = (int) Math.sqrt(boardSize);
+    }
+
+    /**
+     * The model as it is now, for other boards to share
+     */
+    public CompiledModel compile() {
+        return solver.compile();
+    }
+    
     public int[][] solve() {
-        Map<Integer, Integer> solution = solver.solve();
+        return toBoard(solver.solve());
+    }
+
+    /**
+     * Solve a puzzle on this board without changing it: its givens are
+     * assumptions for this solve only, so a shared model stays shared
+     * @param timeout  milliseconds to search for, 0 for no limit
+     * @return the solved board, null if there is none or the deadline came
+     *         first (see getSolver().hasTimedOut())
+     */
+    @SuppressWarnings("boxing")
+    public int[][] solve(int[][] givens, long timeout) {
+        if (givens.length != boardSize)
+            throw new IllegalArgumentException("Expected a " + boardSize + "x" + boardSize + " board");
+        Map<Integer, Integer> assumptions = new HashMap<Integer, Integer>();
+        for (int i = 0; i < boardSize; ++i)
+            for (int j = 0; j < boardSize; ++j)
+                if (givens[i][j] != 0)
+                    assumptions.put(i * boardSize + (j + 1), givens[i][j]);
+        return toBoard(solver.solve(assumptions, timeout));
+    }
+
+    /**
+     * The solver behind the board, for other ways of solving it (see
+     * CubeAndConquer)
+     */
+    ConstraintSatisfactionProblem getSolver() {
+        return solver;
+    }
+
+    /**
+     * A solution of the solver as a board, null for none
+     */
+    @SuppressWarnings("boxing")
+    int[][] toBoard(Map<Integer, Integer> solution) {
         if (solution == null)
             return null;
         int[][] result = new int[boardSize][boardSize];
@@ -102,43 +161,107 @@ public class Sudoku {
     
     @SuppressWarnings("boxing")
     public boolean verify(int[][] solution) {
-        if (solution == null)
+        if (solution == null || solution.length != boardSize)
             return false;
-        for (int i = 0; i < 9; ++i) {
+        for (int i = 0; i < boardSize; ++i) {
             Set<Integer> test = new HashSet<>();
-            for (int j = 0; j < 9; ++j)
-                if (1 <= solution[i][j] && solution[i][j] <= 9)
+            for (int j = 0; j < boardSize; ++j)
+                if (1 <= solution[i][j] && solution[i][j] <= boardSize)
                     test.add(solution[i][j]);
-            if (test.size() != 9)
+            if (test.size() != boardSize)
                 return false;
             test.clear();
-            for (int j = 0; j < 9; ++j)
-                if (1 <= solution[j][i] && solution[j][i] <= 9)
+            for (int j = 0; j < boardSize; ++j)
+                if (1 <= solution[j][i] && solution[j][i] <= boardSize)
                     test.add(solution[j][i]);
-            if (test.size() != 9)
+            if (test.size() != boardSize)
                 return false;
             test.clear();
             for (int j = 0; j < boardSize; ++j) {
                 int row = (i / sqrt) * sqrt + j / sqrt;
                 int column = (i * sqrt) % boardSize + j % sqrt;
-                if (1 <= solution[row][column] && solution[row][column] <= 9)
+                if (1 <= solution[row][column] && solution[row][column] <= boardSize)
                     test.add(solution[row][column]);
             }
-            if (test.size() != 9)
+            if (test.size() != boardSize)
                 return false;
         }
         return true;
     }
     
+    /**
+     * Parse a board given row by row. A row has either one character per
+     * cell, in base 36 (1-9, then A-Z for 10-35, 0 or . for an empty cell),
+     * or, for boards bigger than 25x25, numbers separated by spaces or
+     * commas (0 for an empty cell).
+     */
     public static int[][] transform(String[] board) {
-        int[][] result = new int[board.length][board.length];
-        for (int i = 0; i < board.length; ++i) {
-            for (int j = 0; j < board[i].length(); ++j)
-                result[i][j] = Character.getNumericValue(board[i].charAt(j));
-        }
+        int[][] result = new int[board.length][];
+        for (int i = 0; i < board.length; ++i)
+            result[i] = cells(board[i]);
         return result;
     }
     
+    /**
+     * Parse a whole board written on one line in either format
+     */
+    public static int[][] parse(String line) {
+        int[] cells = cells(line);
+        if (cells.length == 0)
+            throw new IllegalArgumentException("Empty board");
+        int size = (int) Math.round(Math.sqrt(cells.length));
+        int box = (int) Math.round(Math.sqrt(size));
+        if (size * size != cells.length || box * box != size)
+            throw new IllegalArgumentException("Not an n^2 x n^2 board: " + cells.length + " cells");
+        for (int value : cells) {
+            if (value < 0 || value > size)
+                throw new IllegalArgumentException("Cell value " + value + " outside 0.." + size);
+        }
+        int[][] board = new int[size][size];
+        for (int i = 0; i < size; ++i)
+            System.arraycopy(cells, i * size, board[i], 0, size);
+        return board;
+    }
+    
+    /**
+     * Write a board on one line, the inverse of parse
+     */
+    public static String format(int[][] board) {
+        StringBuilder sb = new StringBuilder();
+        boolean numbers = board.length > 35;
+        for (int[] row : board) {
+            for (int d : row) {
+                if (numbers) {
+                    if (sb.length() > 0)
+                        sb.append(' ');
+                    sb.append(d);
+                } else {
+                    sb.append(d == 0 ? '.' : Character.toUpperCase(Character.forDigit(d, 36)));
+                }
+            }
+        }
+        return sb.toString();
+    }
+    
+    private static int[] cells(String text) {
+        text = text.trim();
+        if (text.indexOf(' ') >= 0 || text.indexOf(',') >= 0 || text.indexOf('\t') >= 0) {
+            String[] tokens = text.split("[\\s,]+");
+            int[] cells = new int[tokens.length];
+            for (int i = 0; i < tokens.length; ++i)
+                cells[i] = tokens[i].equals(".") ? 0 : Integer.parseInt(tokens[i]);
+            return cells;
+        }
+        int[] cells = new int[text.length()];
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            cells[i] = c == '.' ? 0 : Character.digit(c, 36);
+            if (cells[i] < 0)
+                throw new IllegalArgumentException("Bad cell '" + c + "'");
+        }
+        return cells;
+    }
+    
     public int getNodeCount() {
         return solver.getNodeCount();
     }
@@ -147,63 +270,187 @@ public class Sudoku {
         return solver.getConstraintCheck();
     }
     
-    @SuppressWarnings("boxing")
+    /**
+     * Read a test file: one puzzle per line, in either format of parse
+     */
+    public static List<int[][]> readPuzzles(String path) {
+        List<int[][]> puzzles = new ArrayList<>();
+        Path file = FileSystems.getDefault().getPath(".", path);
+        try (BufferedReader br = Files.newBufferedReader(file, Charset.forName("US-ASCII"))) {
+            for (String b = br.readLine(); b != null; b = br.readLine()) {
+                if (! b.trim().isEmpty())
+                    puzzles.add(parse(b));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return puzzles;
+    }
+    
+    /**
+     * A random puzzle with (box*box)^2 cells: a solved board shuffled by the
+     * Sudoku symmetries, with a fraction of the cells blanked out
+     * @param box     the block size (3 for 9x9, 4 for 16x16, ...)
+     * @param blanks  the fraction of cells to leave empty
+     * @param seed    the same seed gives the same puzzle
+     */
+    public static int[][] generate(int box, double blanks, long seed) {
+        Random random = new Random(seed);
+        int size = box * box;
+        int[] digits = shuffled(size, random);
+        int[] rows = lines(box, random);
+        int[] cols = lines(box, random);
+        int[][] board = new int[size][size];
+        for (int i = 0; i < size; ++i) {
+            for (int j = 0; j < size; ++j) {
+                int r = rows[i], c = cols[j];
+                // The standard pattern: each row shifts the last by a block
+                // width, and each band by one more
+                int d = (box * (r % box) + r / box + c) % size;
+                board[i][j] = random.nextDouble() < blanks ? 0 : digits[d] + 1;
+            }
+        }
+        return board;
+    }
+    
+    private static int[] shuffled(int n, Random random) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < n; ++i)
+            list.add(i);
+        Collections.shuffle(list, random);
+        int[] result = new int[n];
+        for (int i = 0; i < n; ++i)
+            result[i] = list.get(i);
+        return result;
+    }
+    
+    /**
+     * A random order of lines that keeps each band together
+     */
+    private static int[] lines(int box, Random random) {
+        int[] bands = shuffled(box, random);
+        int[] order = new int[box * box];
+        for (int b = 0; b < box; ++b) {
+            int[] within = shuffled(box, random);
+            for (int k = 0; k < box; ++k)
+                order[b * box + k] = bands[b] * box + within[k];
+        }
+        return order;
+    }
+    
+    /**
+     * Solve the puzzles of the short test file and report the statistics
+     */
     public static final void benchmark() {
-        Charset charset = Charset.forName("US-ASCII");
-        Path file = FileSystems.getDefault().getPath(".", SHORT_TEST);
+        benchmark(readPuzzles(SHORT_TEST));
+    }
+    
+    /**
+     * Solve generated puzzles of growing size and report the statistics for
+     * each size
+     */
+    public static final void benchmarkSizes() {
+        // Fewer blanks on 36x36: pairwise != propagation gets lost there
+        // long before the smaller boards get hard
+        int[] boxes = {3, 4, 5, 6};
+        double[] blanks = {0.4, 0.4, 0.4, 0.3};
+        int count = 10;
+        for (int b = 0; b < boxes.length; ++b) {
+            int box = boxes[b];
+            List<int[][]> puzzles = new ArrayList<>();
+            for (int k = 0; k < count; ++k)
+                puzzles.add(generate(box, blanks[b], k));
+            System.out.println(String.format("== %dx%d, %d puzzles, %.0f%% of the cells empty",
+                                             box * box, box * box, count, 100 * blanks[b]));
+            benchmark(puzzles);
+        }
+    }
+    
+    /**
+     * Solve the puzzles of the short test file with and without SAC and PC
+     * (on top of the configured settings) and report the search nodes
+     * preprocessing saved, and what it cost in time
+     */
+    public static final void benchmarkPreprocessing() {
+        SolverConfig base = SolverConfig.fromSystemProperty();
+        SolverConfig without = base.toBuilder().sac(false).pc(false).stats(false).build();
+        SolverConfig with = base.toBuilder().sac(true).pc(true).stats(false).build();
+        long nodesWithout = 0, nodesWith = 0;
+        double timeWithout = 0, timeWith = 0;
+        int count = 0;
+        for (int[][] testBoard : readPuzzles(SHORT_TEST)) {
+            Sudoku plain = new Sudoku(testBoard);
+            plain.getSolver().setConfig(without);
+            long before = System.nanoTime();
+            int[][] solution = plain.solve();
+            timeWithout += (System.nanoTime() - before) / 1e6;
+            Sudoku preprocessed = new Sudoku(testBoard);
+            preprocessed.getSolver().setConfig(with);
+            before = System.nanoTime();
+            int[][] other = preprocessed.solve();
+            timeWith += (System.nanoTime() - before) / 1e6;
+            if (!plain.verify(solution) || !preprocessed.verify(other)) {
+                System.out.println("Solution not found for " + format(testBoard));
+                return;
+            }
+            nodesWithout += plain.getNodeCount();
+            nodesWith += preprocessed.getNodeCount();
+            count++;
+        }
+        System.out.println(String.format("%d puzzles", count));
+        System.out.println(String.format("Without SAC/PC: %d nodes in %.0f ms", nodesWithout, timeWithout));
+        System.out.println(String.format("With SAC/PC:    %d nodes in %.0f ms", nodesWith, timeWith));
+        System.out.println(String.format("Nodes saved: %d (%.1f%%)", nodesWithout - nodesWith,
+                                         nodesWithout == 0 ? 0.0 : 100.0 * (nodesWithout - nodesWith) / nodesWithout));
+    }
+    
+    @SuppressWarnings("boxing")
+    public static final void benchmark(List<int[][]> puzzles) {
         List<Integer> nodes = new ArrayList<>();
         List<Integer> constraints = new ArrayList<>();
         List<Double> durations = new ArrayList<>();
         double max = Double.NEGATIVE_INFINITY;
         String hardest = "";
-        try (BufferedReader br = Files.newBufferedReader(file, charset)) {
-            for (String b = br.readLine(); b != null; b = br.readLine()){
-                String[] board = new String[9];
-                for (int i = 0; i < 9; ++i) {
-                    board[i] = b.substring(i * 9, (i + 1) * 9);
-                }
-                int[][] testBoard = transform(board);
-                Sudoku sudoku = new Sudoku(testBoard);
-                long before = System.currentTimeMillis();
-                int[][] solution = sudoku.solve();
-                if (!sudoku.verify(solution)) {
-                    System.out.println("Solution not found for " + b);
-                    break;
-                }
-                double duration = (System.currentTimeMillis() - before) / 1000.0;
-                int exploredNode = sudoku.getNodeCount();
-                int constraintCheck = sudoku.getConstraintCheck();
-                nodes.add(exploredNode);
-                constraints.add(constraintCheck);
-                durations.add(duration);
-                if (duration > max) {
-                    max = duration;
-                    hardest = b;
-                }
+        for (int[][] testBoard : puzzles) {
+            Sudoku sudoku = new Sudoku(testBoard);
+            long before = System.currentTimeMillis();
+            int[][] solution = sudoku.solve();
+            if (!sudoku.verify(solution)) {
+                System.out.println("Solution not found for " + format(testBoard));
+                break;
+            }
+            double duration = (System.currentTimeMillis() - before) / 1000.0;
+            int exploredNode = sudoku.getNodeCount();
+            int constraintCheck = sudoku.getConstraintCheck();
+            nodes.add(exploredNode);
+            constraints.add(constraintCheck);
+            durations.add(duration);
+            if (duration > max) {
+                max = duration;
+                hardest = format(testBoard);
             }
-            double averageNodes = nodes.stream().mapToInt(Integer::intValue).average().getAsDouble();
-            double averageConstraints = constraints.stream().mapToInt(Integer::intValue).average().getAsDouble();
-            double averageDuration = durations.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
-            
-            double varianceNodes = nodes.stream().mapToDouble(i -> (i - averageNodes) * (i - averageNodes))
-                                                 .sum() / nodes.size();
-            double varianceConstraints = constraints.stream().mapToDouble(i -> (i - averageConstraints) * (i - averageConstraints))
-                                                             .sum() / constraints.size();
-            double varianceDuration = durations.stream().mapToDouble(i -> (i - averageDuration) * (i - averageDuration))
-                                                        .sum() / durations.size();
-
-            
-            int maxNodes = nodes.stream().mapToInt(Integer::intValue).max().getAsInt();
-            int maxConstraints = constraints.stream().mapToInt(Integer::intValue).max().getAsInt();
-            double maxDuration = durations.stream().mapToDouble(Double::doubleValue).max().getAsDouble();
-            System.out.println(averageNodes);
-            System.out.println(String.format("Running time: avg %.2f max %.2f variance %.2f", averageDuration, maxDuration, varianceDuration));
-            System.out.println(String.format("Explored nodes: avg %.2f max %d variance %.2f", averageNodes, maxNodes, varianceNodes));
-            System.out.println(String.format("Constraints checked: avg %.2f max %d variance %.2f", averageConstraints, maxConstraints, varianceConstraints));
-            System.out.println("Hardest instance: " + hardest);
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        if (nodes.isEmpty())
+            return;
+        double averageNodes = nodes.stream().mapToInt(Integer::intValue).average().getAsDouble();
+        double averageConstraints = constraints.stream().mapToInt(Integer::intValue).average().getAsDouble();
+        double averageDuration = durations.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+        
+        double varianceNodes = nodes.stream().mapToDouble(i -> (i - averageNodes) * (i - averageNodes))
+                                             .sum() / nodes.size();
+        double varianceConstraints = constraints.stream().mapToDouble(i -> (i - averageConstraints) * (i - averageConstraints))
+                                                         .sum() / constraints.size();
+        double varianceDuration = durations.stream().mapToDouble(i -> (i - averageDuration) * (i - averageDuration))
+                                                    .sum() / durations.size();
+
+        
+        int maxNodes = nodes.stream().mapToInt(Integer::intValue).max().getAsInt();
+        int maxConstraints = constraints.stream().mapToInt(Integer::intValue).max().getAsInt();
+        double maxDuration = durations.stream().mapToDouble(Double::doubleValue).max().getAsDouble();
+        System.out.println(String.format("Running time: avg %.2f max %.2f variance %.2f", averageDuration, maxDuration, varianceDuration));
+        System.out.println(String.format("Explored nodes: avg %.2f max %d variance %.2f", averageNodes, maxNodes, varianceNodes));
+        System.out.println(String.format("Constraints checked: avg %.2f max %d variance %.2f", averageConstraints, maxConstraints, varianceConstraints));
+        System.out.println("Hardest instance: " + hardest);
     }
     
     private static int[][] easyBoard;
@@ -243,13 +490,25 @@ public class Sudoku {
     }
     
     public static final void main(String[] args) {
-        //benchmark();
-        Sudoku sudoku = new Sudoku(mediumBoard);
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            benchmark();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("sizes")) {
+            benchmarkSizes();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("preprocess")) {
+            benchmarkPreprocessing();
+            return;
+        }
+        // Any other argument is a board, in either format of parse
+        Sudoku sudoku = new Sudoku(args.length > 0 ? parse(args[0]) : mediumBoard);
         int[][] solution = sudoku.solve();
         if (!sudoku.verify(solution))
             System.out.println("Solution not found");
         else {
-            for (int i = 0; i < 9; ++i)
+            for (int i = 0; i < solution.length; ++i)
                 System.out.println(Arrays.toString(solution[i]));
         }
     }
@@ -0,0 +1,310 @@
+package csp_solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of Sudoku solutions, shared between threads.
+ *
+ * Puzzles are stored under a canonical form, so a puzzle that is the same
+ * as a cached one up to relabelling the digits, swapping rows within a band,
+ * columns within a stack, whole bands or stacks, or transposing the board
+ * is answered by a lookup. The cached solution is mapped back into the
+ * caller's frame.
+ *
+ * The canonical form orders rows and columns by colours that none of
+ * those symmetries change. Rows or columns with equal colours keep their
+ * original order, so some isomorphic puzzles still get different keys.
+ * That only costs a miss, never a wrong answer.
+ */
+public class SudokuCache {
+    // Marks a puzzle known to have no solution
+    private static final int[][] NO_SOLUTION = new int[0][0];
+    private static final int REFINEMENT_ROUNDS = 3;
+
+    private final Map<String, int[][]> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SudokuCache(final int capacity) {
+      entries = Collections.synchronizedMap(new LinkedHashMap<String, int[][]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[][]> eldest) {
+          if (size() <= capacity)
+            return false;
+          evictions.incrementAndGet();
+          return true;
+        }
+      });
+    }
+
+    /**
+     * Solve a puzzle, from the cache if an equivalent one was seen before
+     * @param board  the puzzle, 0 for an empty cell
+     * @return the solution in the caller's frame, null if there is none
+     */
+    public int[][] solve(int[][] board) {
+      Canonical form = new Canonical(board);
+      int[][] solution = entries.get(form.key);
+      if (solution != null) {
+        hits.incrementAndGet();
+      } else {
+        misses.incrementAndGet();
+        solution = new Sudoku(form.grid).solve();
+        if (solution == null)
+          solution = NO_SOLUTION;
+        entries.put(form.key, solution);
+      }
+      return solution == NO_SOLUTION ? null : form.fromCanonical(solution);
+    }
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+
+    public long getEvictions() {
+      return evictions.get();
+    }
+
+    public double getHitRate() {
+      long total = hits.get() + misses.get();
+      return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public int size() {
+      return entries.size();
+    }
+
+    public void printStats() {
+      System.out.println(String.format("Cache: %d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                                       size(), getHits(), getMisses(), 100 * getHitRate(), getEvictions()));
+    }
+
+    /**
+     * Solve each puzzle of the short test file as given and again relabelled
+     * and transposed: the second round should be all cache hits
+     */
+    public static final void main(String[] args) {
+      SudokuCache cache = new SudokuCache(1024);
+      List<int[][]> puzzles = Sudoku.readPuzzles(Sudoku.SHORT_TEST);
+      for (int[][] board : puzzles)
+        cache.solve(board);
+      long before = System.currentTimeMillis();
+      for (int[][] board : puzzles) {
+        int[][] variant = new int[board.length][board.length];
+        for (int i = 0; i < board.length; ++i)
+          for (int j = 0; j < board.length; ++j)
+            variant[j][i] = board[i][j] == 0 ? 0 : board.length + 1 - board[i][j];
+        Sudoku check = new Sudoku(variant);
+        if (! check.verify(cache.solve(variant)))
+          System.out.println("Wrong cached solution");
+      }
+      double duration = (System.currentTimeMillis() - before) / 1000.0;
+      System.out.println(String.format("Variants answered in %.3f second", duration));
+      cache.printStats();
+    }
+
+    /**
+     * A puzzle rewritten into canonical form, along with the symmetry that
+     * took it there
+     */
+    static final class Canonical {
+      final String key;
+      final int[][] grid;      // the canonical puzzle
+      final boolean transposed;
+      final int[] rows;        // canonical row i is row rows[i] of the (transposed) board
+      final int[] cols;        // likewise for columns
+      final int[] digitOf;     // canonical label -> the caller's digit
+
+      Canonical(int[][] board) {
+        Canonical plain = new Canonical(board, false);
+        Canonical flipped = new Canonical(transpose(board), true);
+        Canonical best = plain.key.compareTo(flipped.key) <= 0 ? plain : flipped;
+        key = best.key;
+        grid = best.grid;
+        transposed = best.transposed;
+        rows = best.rows;
+        cols = best.cols;
+        digitOf = best.digitOf;
+      }
+
+      private Canonical(int[][] board, boolean transposed) {
+        int size = board.length;
+        int box = (int) Math.sqrt(size);
+        this.transposed = transposed;
+
+        // Colour rows, columns and digits by their given counts, then refine
+        // each colour by the colours it meets (like graph colour refinement).
+        // None of the symmetries we quotient by can change a colour.
+        long[] rowColour = new long[size], colColour = new long[size];
+        long[] digitColour = new long[size + 1];
+        for (int i = 0; i < size; ++i) {
+          for (int j = 0; j < size; ++j) {
+            if (board[i][j] != 0) {
+              rowColour[i]++;
+              colColour[j]++;
+              digitColour[board[i][j]]++;
+            }
+          }
+        }
+        for (int round = 0; round < REFINEMENT_ROUNDS; ++round) {
+          long[][] rowSeen = new long[size][], colSeen = new long[size][];
+          long[][] digitSeen = new long[size + 1][];
+          for (int i = 0; i < size; ++i) {
+            rowSeen[i] = new long[size];
+            colSeen[i] = new long[size];
+          }
+          int[] digitCells = new int[size + 1];
+          for (int d = 1; d <= size; ++d)
+            digitSeen[d] = new long[size]; // a digit fills at most one cell per row
+          for (int i = 0; i < size; ++i) {
+            for (int j = 0; j < size; ++j) {
+              int d = board[i][j];
+              if (d == 0)
+                continue;
+              rowSeen[i][j] = mix(colColour[j], digitColour[d]);
+              colSeen[j][i] = mix(rowColour[i], digitColour[d]);
+              digitSeen[d][digitCells[d]++] = mix(rowColour[i], colColour[j]);
+            }
+          }
+          long[] newRow = new long[size], newCol = new long[size];
+          for (int i = 0; i < size; ++i) {
+            newRow[i] = refine(rowColour[i], rowSeen[i]);
+            newCol[i] = refine(colColour[i], colSeen[i]);
+          }
+          for (int d = 1; d <= size; ++d)
+            digitColour[d] = refine(digitColour[d], digitSeen[d]);
+          rowColour = newRow;
+          colColour = newCol;
+        }
+        rows = order(rowColour, box);
+        cols = order(colColour, box);
+
+        // Relabel digits in order of first appearance
+        int[] labelOf = new int[size + 1];
+        digitOf = new int[size + 1];
+        int next = 1;
+        grid = new int[size][size];
+        for (int i = 0; i < size; ++i) {
+          for (int j = 0; j < size; ++j) {
+            int d = board[rows[i]][cols[j]];
+            if (d != 0 && labelOf[d] == 0) {
+              labelOf[d] = next;
+              digitOf[next++] = d;
+            }
+            grid[i][j] = d == 0 ? 0 : labelOf[d];
+          }
+        }
+        for (int d = 1; d <= size; ++d) {
+          if (labelOf[d] == 0) {
+            labelOf[d] = next;
+            digitOf[next++] = d;
+          }
+        }
+
+        StringBuilder sb = new StringBuilder(size * size);
+        for (int[] row : grid)
+          for (int d : row)
+            sb.append((char) ('0' + d));
+        key = size + ":" + sb;
+      }
+
+      /**
+       * Map a solution of the canonical puzzle back to the caller's board
+       */
+      int[][] fromCanonical(int[][] solution) {
+        int size = solution.length;
+        int[][] result = new int[size][size];
+        for (int i = 0; i < size; ++i) {
+          for (int j = 0; j < size; ++j) {
+            int d = digitOf[solution[i][j]];
+            if (transposed)
+              result[cols[j]][rows[i]] = d;
+            else
+              result[rows[i]][cols[j]] = d;
+          }
+        }
+        return result;
+      }
+
+      private static long mix(long a, long b) {
+        long h = a * 0x9E3779B97F4A7C15L + b;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 29);
+      }
+
+      /**
+       * New colour from the old one and the (order-free) multiset seen
+       */
+      private static long refine(long colour, long[] seen) {
+        long[] sorted = seen.clone();
+        Arrays.sort(sorted);
+        long h = colour;
+        for (long v : sorted)
+          h = mix(h, v);
+        return h;
+      }
+
+      /**
+       * Order lines by colour, moving lines only within their band and
+       * bands only as a whole
+       */
+      private static int[] order(final long[] colour, int box) {
+        List<List<Integer>> bands = new ArrayList<List<Integer>>();
+        for (int b = 0; b < box; ++b) {
+          List<Integer> band = new ArrayList<Integer>();
+          for (int k = 0; k < box; ++k)
+            band.add(b * box + k);
+          Collections.sort(band, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+              return Long.compare(colour[a], colour[b]);
+            }
+          });
+          bands.add(band);
+        }
+        Collections.sort(bands, new Comparator<List<Integer>>() {
+          public int compare(List<Integer> a, List<Integer> b) {
+            for (int k = 0; k < a.size(); ++k) {
+              int c = Long.compare(colour[a.get(k)], colour[b.get(k)]);
+              if (c != 0)
+                return c;
+            }
+            return 0;
+          }
+        });
+        int[] order = new int[colour.length];
+        int i = 0;
+        for (List<Integer> band : bands)
+          for (Integer line : band)
+            order[i++] = line;
+        return order;
+      }
+
+      private static int[][] transpose(int[][] board) {
+        int[][] t = new int[board.length][board.length];
+        for (int i = 0; i < board.length; ++i)
+          for (int j = 0; j < board.length; ++j)
+            t[j][i] = board[i][j];
+        return t;
+      }
+
+      @Override
+      public String toString() {
+        return key + " " + Arrays.toString(rows) + " " + Arrays.toString(cols);
+      }
+    }
+}
@@ -0,0 +1,113 @@
+package csp_solver;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline summary of a SearchTrace file: how the search branched at each
+ * depth, where it failed, and which variables it kept coming back to.
+ *
+ * Usage: java csp_solver.TraceSummary trace.bin [top]
+ */
+public class TraceSummary {
+    private final TreeMap<Integer, long[]> byDepth = new TreeMap<Integer, long[]>(); // decisions, failures, backtracks
+    private final Map<Integer, long[]> byVariable = new HashMap<Integer, long[]>();  // decisions, failures
+    private final long[] kinds = new long[SearchTrace.RESTART + 1];
+    private long pruned;
+    private long records;
+    private long written;
+
+    public TraceSummary(String path) throws IOException {
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != SearchTrace.MAGIC)
+          throw new IOException(path + " is not a search trace");
+        if (buffer.getInt(4) != SearchTrace.VERSION)
+          throw new IOException("Unsupported trace version " + buffer.getInt(4));
+        int capacity = buffer.getInt(8);
+        written = buffer.getLong(SearchTrace.WRITTEN_OFFSET);
+
+        // Once the ring has wrapped, the oldest record sits where the next
+        // one would go
+        records = Math.min(written, capacity);
+        long first = written - records;
+        for (long i = first; i < written; i++) {
+          int at = SearchTrace.HEADER_BYTES + (int) (i % capacity) * SearchTrace.RECORD_BYTES;
+          add(buffer.get(at), buffer.getInt(at + 4), buffer.getInt(at + 8), buffer.getInt(at + 12));
+        }
+      }
+    }
+
+    private void add(byte kind, int depth, int variable, int value) {
+      if (kind <= 0 || kind >= kinds.length)
+        return;
+      kinds[kind]++;
+      long[] d = byDepth.computeIfAbsent(depth, k -> new long[3]);
+      switch (kind) {
+        case SearchTrace.DECISION:
+          d[0]++;
+          byVariable.computeIfAbsent(variable, k -> new long[2])[0]++;
+          break;
+        case SearchTrace.FAILURE:
+          d[1]++;
+          byVariable.computeIfAbsent(variable, k -> new long[2])[1]++;
+          break;
+        case SearchTrace.BACKTRACK:
+          d[2]++;
+          break;
+        case SearchTrace.PRUNE:
+          pruned += value;
+          break;
+        default:
+          break;
+      }
+    }
+
+    public void print(int top) {
+      System.out.println(String.format("%d records (%d written, %d lost to the ring)",
+                                       records, written, written - records));
+      System.out.println(String.format("decisions %d, failures %d, backtracks %d, restarts %d, values pruned %d",
+                                       kinds[SearchTrace.DECISION], kinds[SearchTrace.FAILURE],
+                                       kinds[SearchTrace.BACKTRACK], kinds[SearchTrace.RESTART], pruned));
+
+      // Nodes at a depth are the decisions made there; the branching factor
+      // is how many of them each surviving node one level up spawned
+      System.out.println("\ndepth  decisions  failures  backtracks  branching");
+      long parents = 0;
+      for (Map.Entry<Integer, long[]> e : byDepth.entrySet()) {
+        long[] d = e.getValue();
+        String branching = parents > 0 ? String.format("%.2f", (double) d[0] / parents) : "-";
+        System.out.println(String.format("%5d  %9d  %8d  %10d  %9s", e.getKey(), d[0], d[1], d[2], branching));
+        parents = d[0] - d[1];
+      }
+
+      List<Map.Entry<Integer, long[]>> hot = new ArrayList<Map.Entry<Integer, long[]>>(byVariable.entrySet());
+      Collections.sort(hot, (a, b) -> a.getValue()[1] != b.getValue()[1]
+                                      ? Long.compare(b.getValue()[1], a.getValue()[1])
+                                      : Long.compare(b.getValue()[0], a.getValue()[0]));
+      System.out.println("\nvariable  decisions  failures");
+      for (int i = 0; i < Math.min(top, hot.size()); i++) {
+        Map.Entry<Integer, long[]> e = hot.get(i);
+        System.out.println(String.format("%8d  %9d  %8d", e.getKey(), e.getValue()[0], e.getValue()[1]));
+      }
+    }
+
+    public static final void main(String[] args) throws IOException {
+      if (args.length == 0) {
+        System.err.println("Usage: java csp_solver.TraceSummary trace.bin [top]");
+        return;
+      }
+      new TraceSummary(args[0]).print(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+    }
+}
@@ -0,0 +1,136 @@
+package csp_solver;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The undo log of the search: every run of values taken out of a domain,
+ * in the order they went.
+ *
+ * Entries are (variable, low, high) triples in three parallel int arrays,
+ * so recording a removal and undoing it allocate nothing once the arrays
+ * have grown to the deepest search path. A mark is the trail's size; undo
+ * puts back everything removed since a mark. OffHeapTrail keeps the same
+ * entries off the heap.
+ */
+class Trail {
+    private int[] vars;
+    private int[] lows;
+    private int[] highs;
+    private int size;
+    // Entries below this may belong to a live mark and are never extended
+    private int floor;
+
+    Trail() {
+      this(256);
+    }
+
+    /**
+     * A trail with room for that many entries before it grows; 0 for a
+     * subclass that stores them elsewhere
+     */
+    Trail(int capacity) {
+      vars = new int[capacity];
+      lows = new int[capacity];
+      highs = new int[capacity];
+    }
+
+    /**
+     * Record that low..high (both inclusive) left var's domain
+     */
+    void push(int var, int low, int high) {
+      // A value right after the last run of the same variable extends it
+      if (size > floor && var(size - 1) == var && (long) high(size - 1) + 1 == low) {
+        setHigh(size - 1, high);
+        return;
+      }
+      set(size, var, low, high);
+      size++;
+    }
+
+    /**
+     * Record the runs of domain between low and high, before they are cut
+     */
+    void pushRuns(int var, RangeDomain domain, int low, int high) {
+      for (long v = domain.ceiling(low); v <= high; v = domain.ceiling(v + 1)) {
+        int end = Math.min(domain.runEnd((int) v), high);
+        push(var, (int) v, end);
+        v = end;
+      }
+    }
+
+    int mark() {
+      floor = size;
+      return size;
+    }
+
+    /**
+     * Put every value removed since the mark back into its domain
+     */
+    void undo(int mark, Set<Integer>[] domains) {
+      while (size > mark) {
+        size--;
+        Set<Integer> domain = domains[var(size)];
+        int low = low(size), high = high(size);
+        if (domain instanceof RangeDomain) {
+          ((RangeDomain) domain).addRange(low, high);
+        } else {
+          for (long v = low; v <= high; v++)
+            domain.add((int) v);
+        }
+      }
+      floor = size;
+    }
+
+    /**
+     * Forget everything: the removals so far are permanent
+     */
+    void clear() {
+      size = 0;
+      floor = 0;
+    }
+
+    /**
+     * How many values left domains other than except's since the mark
+     */
+    int removedSince(int mark, int except) {
+      int removed = 0;
+      for (int i = mark; i < size; i++) {
+        if (var(i) != except)
+          removed += high(i) - low(i) + 1;
+      }
+      return removed;
+    }
+
+    // Entry i, stored wherever a subclass keeps them
+
+    int var(int i) {
+      return vars[i];
+    }
+
+    int low(int i) {
+      return lows[i];
+    }
+
+    int high(int i) {
+      return highs[i];
+    }
+
+    void setHigh(int i, int high) {
+      highs[i] = high;
+    }
+
+    /**
+     * Write entry i, growing the storage if i is just past its end
+     */
+    void set(int i, int var, int low, int high) {
+      if (i == vars.length) {
+        vars = Arrays.copyOf(vars, Math.max(256, i * 2));
+        lows = Arrays.copyOf(lows, Math.max(256, i * 2));
+        highs = Arrays.copyOf(highs, Math.max(256, i * 2));
+      }
+      vars[i] = var;
+      lows[i] = low;
+      highs[i] = high;
+    }
+}
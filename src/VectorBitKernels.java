@@ -0,0 +1,50 @@
+package csp_solver;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * BitKernels' scans with the Vector API (jdk.incubator.vector on Java
+ * 21), as many words a step as the CPU's widest vectors hold. Only
+ * BitKernels loads this class, and only once it has found the module.
+ */
+final class VectorBitKernels {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    static final int LANES = SPECIES.length();
+
+    private VectorBitKernels() {
+    }
+
+    static int nextCommon(long[] a, long[] b, int from, int to) {
+      int w = from;
+      for (int end = from + SPECIES.loopBound(to - from); w < end; w += LANES) {
+        LongVector common = LongVector.fromArray(SPECIES, a, w).and(LongVector.fromArray(SPECIES, b, w));
+        VectorMask<Long> hit = common.compare(VectorOperators.NE, 0);
+        if (hit.anyTrue())
+          return w + hit.firstTrue();
+      }
+      for (; w < to; w++) {
+        if ((a[w] & b[w]) != 0)
+          return w;
+      }
+      return to;
+    }
+
+    static int nextOutside(long[] a, long[] b, int from, int to) {
+      int w = from;
+      for (int end = from + SPECIES.loopBound(to - from); w < end; w += LANES) {
+        LongVector outside = LongVector.fromArray(SPECIES, a, w)
+            .lanewise(VectorOperators.AND_NOT, LongVector.fromArray(SPECIES, b, w));
+        VectorMask<Long> hit = outside.compare(VectorOperators.NE, 0);
+        if (hit.anyTrue())
+          return w + hit.firstTrue();
+      }
+      for (; w < to; w++) {
+        if ((a[w] & ~b[w]) != 0)
+          return w;
+      }
+      return to;
+    }
+}
@@ -0,0 +1,1119 @@
+package csp_solver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an XCSP3 instance (xcsp.org) into a solver as it streams past,
+ * without building a DOM: each variable and constraint goes to the solver
+ * when its element ends, and the tuples of an extension are parsed chunk
+ * by chunk straight into the packed pairs of a table.
+ *
+ * The solver's constraints are binary, so this covers the part of XCSP3
+ * that is: CSP instances of integer variables and arrays (with <domain
+ * for=...> and as=...), and <extension>, <intension>, <allDifferent>,
+ * <group> and <block> over one or two variables. allDifferent becomes
+ * pairwise not-equal. ne, lt, gt and ne(dist(..), k) become the built-in
+ * relations; other intensions are evaluated as written. Two constraints
+ * on the same pair are conjoined. Anything else is an IOException naming
+ * the element and line.
+ *
+ * Variables are numbered 0, 1, 2... in the order they are declared, the
+ * cells of an array in row-major order.
+ *
+ * Usage: java csp_solver.XcspReader instance.xml [snapshot]
+ * solves the instance and prints the solution as an XCSP3 instantiation;
+ * with a snapshot file it writes the compiled model there first and
+ * solves the model read back from it (see ModelSnapshot).
+ */
+public final class XcspReader {
+    // A * in a tuple: any value
+    static final int STAR = Integer.MIN_VALUE;
+    // Most pairs a table of conflicts is turned into the table of what it
+    // allows for; past this it is checked as written
+    private static final long MAX_COMPLEMENT = 1L << 22;
+
+    private final ConstraintSatisfactionProblem solver;
+    // The domains as declared and narrowed by unary constraints, by id
+    private final List<RangeDomain> domains = new ArrayList<RangeDomain>();
+    // Simple variables' ids, and arrays, by name; and both in the order
+    // they were declared (a String or an Array), for naming the ids
+    private final Map<String, Integer> variables = new HashMap<String, Integer>();
+    private final Map<String, Array> arrays = new HashMap<String, Array>();
+    private final List<Object> declared = new ArrayList<Object>();
+    // The relation added on each pair so far, to conjoin another with
+    private final Map<hashPair, Relation> added = new HashMap<hashPair, Relation>();
+    private XMLStreamReader xml;
+
+    private static final class Array {
+      final String name;
+      final int[] sizes;
+      // The id of every cell in row-major order, -1 for one without a domain
+      final int[] ids;
+
+      Array(String name, int[] sizes) {
+        this.name = name;
+        this.sizes = sizes;
+        long cells = 1;
+        for (int size : sizes)
+          cells *= size;
+        if (cells > Integer.MAX_VALUE)
+          throw new IllegalArgumentException("Array " + name + " is too large");
+        this.ids = new int[(int) cells];
+        Arrays.fill(ids, -1);
+      }
+
+      String cellName(int cell) {
+        StringBuilder sb = new StringBuilder();
+        for (int d = sizes.length - 1; d >= 0; d--) {
+          sb.insert(0, "[" + cell % sizes[d] + "]");
+          cell /= sizes[d];
+        }
+        return name + sb;
+      }
+    }
+
+    /**
+     * A reader adding what it reads to the given solver
+     */
+    public XcspReader(ConstraintSatisfactionProblem solver) {
+      this.solver = solver;
+    }
+
+    /**
+     * Read an instance into the solver
+     */
+    public void read(Path file) throws IOException {
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+        read(in);
+      }
+    }
+
+    public void read(InputStream in) throws IOException {
+      XMLInputFactory factory = XMLInputFactory.newFactory();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      try {
+        xml = factory.createXMLStreamReader(in);
+        while (xml.hasNext()) {
+          if (xml.next() == XMLStreamConstants.START_ELEMENT)
+            element();
+        }
+        xml.close();
+      } catch (XMLStreamException e) {
+        throw new IOException("Malformed XCSP3: " + e.getMessage(), e);
+      } catch (IllegalArgumentException e) {
+        throw error(e.getMessage());
+      } finally {
+        xml = null;
+      }
+    }
+
+    /**
+     * The number of variables read
+     */
+    public int getVariableCount() {
+      return domains.size();
+    }
+
+    /**
+     * The id of a variable by its name, eg "x" or "q[3]", null if there is
+     * none
+     */
+    public Integer idOf(String name) {
+      if (name.contains("..") || name.contains("[]"))
+        return null;
+      try {
+        int[] ids = expand(name);
+        return ids.length == 1 ? ids[0] : null;
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Every variable's name, by id
+     */
+    public List<String> names() {
+      List<String> names = new ArrayList<String>(domains.size());
+      for (Object o : declared) {
+        if (o instanceof String) {
+          names.add((String) o);
+        } else {
+          Array array = (Array) o;
+          for (int cell = 0; cell < array.ids.length; cell++) {
+            if (array.ids[cell] >= 0)
+              names.add(array.cellName(cell));
+          }
+        }
+      }
+      return names;
+    }
+
+    /**
+     * A solution as an XCSP3 instantiation
+     */
+    public String instantiation(Map<Integer, Integer> solution) {
+      List<String> names = names();
+      StringBuilder list = new StringBuilder(), values = new StringBuilder();
+      for (int id = 0; id < names.size(); id++) {
+        list.append(' ').append(names.get(id));
+        values.append(' ').append(solution.get(id));
+      }
+      return "<instantiation>\n  <list>" + list + " </list>\n  <values>" + values + " </values>\n</instantiation>";
+    }
+
+    private IOException error(String message) {
+      return new IOException(xml == null ? message : "Line " + xml.getLocation().getLineNumber() + ": " + message);
+    }
+
+    private void element() throws IOException, XMLStreamException {
+      String name = xml.getLocalName();
+      switch (name) {
+        case "instance":
+          String type = xml.getAttributeValue(null, "type");
+          if (type != null && ! type.equals("CSP"))
+            throw error("Only CSP instances are supported, not " + type);
+          break;
+        case "variables":
+        case "constraints":
+        case "block":
+          // Their children are read as they come
+          break;
+        case "var":
+          variable();
+          break;
+        case "array":
+          array();
+          break;
+        case "extension":
+        case "intension":
+        case "allDifferent":
+          constraint(name);
+          break;
+        case "group":
+          group();
+          break;
+        case "annotations":
+          skip();
+          break;
+        default:
+          throw error("Unsupported XCSP3 element <" + name + ">");
+      }
+    }
+
+    // Variables
+
+    private void variable() throws IOException, XMLStreamException {
+      String name = attribute("id");
+      String as = xml.getAttributeValue(null, "as");
+      String text = text();
+      RangeDomain domain;
+      if (as != null) {
+        Integer other = variables.get(as);
+        if (other == null)
+          throw error("Unknown variable " + as);
+        domain = new RangeDomain(domains.get(other));
+      } else {
+        domain = domain(text);
+      }
+      if (variables.containsKey(name) || arrays.containsKey(name))
+        throw error("Variable " + name + " is declared twice");
+      variables.put(name, declare(domain));
+      declared.add(name);
+    }
+
+    private void array() throws IOException, XMLStreamException {
+      String name = attribute("id");
+      String size = attribute("size");
+      if (variables.containsKey(name) || arrays.containsKey(name))
+        throw error("Variable " + name + " is declared twice");
+      List<Integer> sizes = new ArrayList<Integer>();
+      for (String dim : size.replace("]", "").split("\\[")) {
+        if (! dim.trim().isEmpty())
+          sizes.add(Integer.parseInt(dim.trim()));
+      }
+      int[] dims = new int[sizes.size()];
+      for (int d = 0; d < dims.length; d++)
+        dims[d] = sizes.get(d);
+      Array array = new Array(name, dims);
+      arrays.put(name, array);
+
+      // Either one domain as text, or <domain for="..."> children; the
+      // cells get ids in order once they all have their domain
+      RangeDomain[] cells = new RangeDomain[array.ids.length];
+      StringBuilder text = new StringBuilder();
+      while (true) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.END_ELEMENT)
+          break;
+        if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+            || event == XMLStreamConstants.SPACE) {
+          text.append(xml.getText());
+        } else if (event == XMLStreamConstants.START_ELEMENT) {
+          if (! xml.getLocalName().equals("domain"))
+            throw error("Unsupported XCSP3 element <" + xml.getLocalName() + "> in an array");
+          String of = attribute("for");
+          RangeDomain domain = domain(text());
+          if (of.trim().equals("others")) {
+            for (int c = 0; c < cells.length; c++) {
+              if (cells[c] == null)
+                cells[c] = domain;
+            }
+          } else {
+            for (String token : of.trim().split("\\s+")) {
+              if (! token.startsWith(name + "["))
+                throw error(token + " is not a cell of " + name);
+              for (int c : cells(array, token))
+                cells[c] = domain;
+            }
+          }
+        }
+      }
+      if (! text.toString().trim().isEmpty())
+        Arrays.fill(cells, domain(text.toString()));
+      for (int c = 0; c < cells.length; c++) {
+        if (cells[c] != null)
+          array.ids[c] = declare(new RangeDomain(cells[c]));
+      }
+      declared.add(array);
+    }
+
+    private int declare(RangeDomain domain) {
+      int id = domains.size();
+      domains.add(domain);
+      solver.addVariable(id, domain);
+      return id;
+    }
+
+    /**
+     * A domain written as values and ranges, eg "0..9 12 15"
+     */
+    private RangeDomain domain(String text) {
+      RangeDomain domain = new RangeDomain();
+      for (String token : text.trim().split("\\s+")) {
+        if (token.isEmpty())
+          continue;
+        int dots = token.indexOf("..");
+        if (dots > 0)
+          domain.addRange(Integer.parseInt(token.substring(0, dots)), Integer.parseInt(token.substring(dots + 2)));
+        else
+          domain.add(Integer.parseInt(token));
+      }
+      return domain;
+    }
+
+    /**
+     * The ids a token stands for, eg x, q[3], q[] or m[0..2][]: the cells
+     * without a domain are left out
+     */
+    private int[] expand(String token) {
+      int bracket = token.indexOf('[');
+      if (bracket < 0) {
+        Integer id = variables.get(token);
+        if (id == null)
+          throw new IllegalArgumentException("Unknown variable " + token);
+        return new int[] {id};
+      }
+      Array array = arrays.get(token.substring(0, bracket));
+      if (array == null)
+        throw new IllegalArgumentException("Unknown array " + token.substring(0, bracket));
+      int[] cells = cells(array, token);
+      int n = 0;
+      for (int c : cells) {
+        if (array.ids[c] >= 0)
+          cells[n++] = array.ids[c];
+      }
+      return Arrays.copyOf(cells, n);
+    }
+
+    /**
+     * The cells of an array a token stands for, in row-major order
+     */
+    private static int[] cells(Array array, String token) {
+      String[] parts = token.substring(token.indexOf('[') + 1, token.length() - 1).split("\\]\\[", -1);
+      if (! token.endsWith("]") || parts.length != array.sizes.length)
+        throw new IllegalArgumentException(token + " does not match the " + array.sizes.length
+                                           + " dimensions of " + array.name);
+      int[] low = new int[parts.length], high = new int[parts.length];
+      long count = 1;
+      for (int d = 0; d < parts.length; d++) {
+        String part = parts[d].trim();
+        int dots = part.indexOf("..");
+        if (part.isEmpty()) {
+          low[d] = 0;
+          high[d] = array.sizes[d] - 1;
+        } else if (dots > 0) {
+          low[d] = Integer.parseInt(part.substring(0, dots));
+          high[d] = Integer.parseInt(part.substring(dots + 2));
+        } else {
+          low[d] = high[d] = Integer.parseInt(part);
+        }
+        if (low[d] < 0 || high[d] >= array.sizes[d] || low[d] > high[d])
+          throw new IllegalArgumentException(token + " is outside " + array.name);
+        count *= high[d] - low[d] + 1;
+      }
+      int[] cells = new int[(int) count];
+      int[] at = low.clone();
+      for (int i = 0; i < cells.length; i++) {
+        int cell = 0;
+        for (int d = 0; d < at.length; d++)
+          cell = cell * array.sizes[d] + at[d];
+        cells[i] = cell;
+        // Odometer over the index ranges, last dimension fastest
+        for (int d = at.length - 1; d >= 0 && ++at[d] > high[d]; d--)
+          at[d] = low[d];
+      }
+      return cells;
+    }
+
+    // Constraints
+
+    /**
+     * A constraint element, on its own or as the template of a group
+     */
+    private static final class Template {
+      String kind;
+      // The variables (or parameters %0, %1...) of an extension, or of an
+      // allDifferent
+      String[] list;
+      // An extension's tuples, packed, and whether they are conflicts
+      Tuples tuples;
+      boolean conflicts;
+      // An extension on one variable: its values as a domain
+      RangeDomain values;
+      // An intension's expression
+      Expression expression;
+    }
+
+    private void constraint(String kind) throws IOException, XMLStreamException {
+      post(template(kind), null);
+    }
+
+    private void group() throws IOException, XMLStreamException {
+      Template template = null;
+      while (true) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.END_ELEMENT)
+          break;
+        if (event != XMLStreamConstants.START_ELEMENT)
+          continue;
+        String name = xml.getLocalName();
+        if (name.equals("args")) {
+          if (template == null)
+            throw error("<args> before the constraint of a group");
+          post(template, tokens(text()));
+        } else if (template == null && (name.equals("extension") || name.equals("intension")
+                                        || name.equals("allDifferent"))) {
+          template = template(name);
+        } else {
+          throw error("Unsupported XCSP3 element <" + name + "> in a group");
+        }
+      }
+    }
+
+    private Template template(String kind) throws IOException, XMLStreamException {
+      Template t = new Template();
+      t.kind = kind;
+      if (kind.equals("intension")) {
+        String text = null;
+        StringBuilder direct = new StringBuilder();
+        while (true) {
+          int event = xml.next();
+          if (event == XMLStreamConstants.END_ELEMENT)
+            break;
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            if (! xml.getLocalName().equals("function"))
+              throw error("Unsupported XCSP3 element <" + xml.getLocalName() + "> in an intension");
+            text = text();
+          } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+            direct.append(xml.getText());
+          }
+        }
+        t.expression = Expression.parse(text != null ? text : direct.toString());
+        return t;
+      }
+
+      // An extension or allDifferent: a list, then for an extension its tuples
+      StringBuilder direct = new StringBuilder();
+      while (true) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.END_ELEMENT)
+          break;
+        if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+          direct.append(xml.getText());
+          continue;
+        }
+        if (event != XMLStreamConstants.START_ELEMENT)
+          continue;
+        String name = xml.getLocalName();
+        if (name.equals("list")) {
+          t.list = tokens(text());
+        } else if (kind.equals("extension") && (name.equals("supports") || name.equals("conflicts"))) {
+          t.conflicts = name.equals("conflicts");
+          if (t.list == null)
+            throw error("<" + name + "> before the <list> of an extension");
+          if (t.list.length == 1) {
+            t.values = domain(text());
+          } else {
+            t.tuples = new Tuples();
+            streamTuples(t.tuples);
+          }
+        } else {
+          throw error("Unsupported XCSP3 element <" + name + "> in <" + kind + ">");
+        }
+      }
+      if (t.list == null)
+        t.list = tokens(direct.toString());
+      if (kind.equals("extension") && t.tuples == null && t.values == null)
+        throw error("An extension without tuples");
+      return t;
+    }
+
+    /**
+     * Post a constraint, replacing the template's %i by args[i] if it is
+     * part of a group
+     */
+    private void post(Template t, String[] args) {
+      if (t.kind.equals("intension")) {
+        intension(t.expression, args);
+        return;
+      }
+      List<Integer> scope = new ArrayList<Integer>();
+      for (String token : t.list) {
+        for (String arg : substitute(token, args)) {
+          for (int id : expand(arg))
+            scope.add(id);
+        }
+      }
+      if (t.kind.equals("allDifferent")) {
+        for (int i = 0; i < scope.size(); i++) {
+          for (int j = i + 1; j < scope.size(); j++)
+            constrain(scope.get(i), scope.get(j), Relation.notEqual());
+        }
+        return;
+      }
+      if (t.values != null) {
+        if (scope.size() != 1)
+          throw new IllegalArgumentException("Extension tuples do not match a scope of " + scope.size());
+        restrict(scope.get(0), v -> t.values.contains(v) != t.conflicts);
+        return;
+      }
+      if (scope.size() != 2)
+        throw new IllegalArgumentException("Only unary and binary constraints are supported, not arity "
+                                           + scope.size());
+      int x = scope.get(0), y = scope.get(1);
+      constrain(x, y, table(t, domains.get(x), domains.get(y)));
+    }
+
+    /**
+     * The relation an extension's tuples give between two domains, a * in
+     * them standing for any value of its domain
+     */
+    private static Relation table(Template t, RangeDomain xs, RangeDomain ys) {
+      Relation.Table given = t.tuples.table;
+      if (given == null) {
+        long[] pairs = new long[Math.max(16, t.tuples.count)];
+        int count = 0;
+        for (int i = 0; i < t.tuples.count; i++) {
+          int x = (int) (t.tuples.pairs[i] >> 32), y = (int) t.tuples.pairs[i];
+          for (long a = x == STAR ? xs.ceiling(Integer.MIN_VALUE) : x; a != RangeDomain.NONE;
+               a = x == STAR ? xs.ceiling(a + 1) : RangeDomain.NONE) {
+            for (long b = y == STAR ? ys.ceiling(Integer.MIN_VALUE) : y; b != RangeDomain.NONE;
+                 b = y == STAR ? ys.ceiling(b + 1) : RangeDomain.NONE) {
+              if (count == pairs.length)
+                pairs = Arrays.copyOf(pairs, count * 2);
+              pairs[count++] = Relation.Table.pack((int) a, (int) b);
+            }
+          }
+        }
+        given = new Relation.Table(pairs, count);
+        // Without a * the table is the same for every scope of a group
+        if (! t.tuples.starred)
+          t.tuples.table = given;
+      }
+      if (! t.conflicts)
+        return given;
+      Relation.Table conflicts = given;
+      if ((long) xs.size() * ys.size() > MAX_COMPLEMENT)
+        return (x, y) -> ! conflicts.allows(x, y);
+      long[] pairs = new long[16];
+      int count = 0;
+      for (long a = xs.ceiling(Integer.MIN_VALUE); a != RangeDomain.NONE; a = xs.ceiling(a + 1)) {
+        for (long b = ys.ceiling(Integer.MIN_VALUE); b != RangeDomain.NONE; b = ys.ceiling(b + 1)) {
+          if (! conflicts.allows((int) a, (int) b)) {
+            if (count == pairs.length)
+              pairs = Arrays.copyOf(pairs, count * 2);
+            pairs[count++] = Relation.Table.pack((int) a, (int) b);
+          }
+        }
+      }
+      return new Relation.Table(pairs, count);
+    }
+
+    private void intension(Expression e, String[] args) {
+      // What each parameter of the expression is bound to: a variable's
+      // slot (0 or 1) or, for an integer, its value
+      int n = e.parameters.size();
+      int[] slot = new int[n];
+      long[] constant = new long[n];
+      int[] scope = new int[2];
+      int arity = 0;
+      for (int p = 0; p < n; p++) {
+        String[] bound = substitute(e.parameters.get(p), args);
+        if (bound.length != 1)
+          throw new IllegalArgumentException("Parameter " + e.parameters.get(p) + " is not one value");
+        String token = bound[0];
+        if (isInteger(token)) {
+          slot[p] = -1;
+          constant[p] = Long.parseLong(token);
+          continue;
+        }
+        int[] ids = expand(token);
+        if (ids.length != 1)
+          throw new IllegalArgumentException(token + " is not one variable");
+        int s = 0;
+        while (s < arity && scope[s] != ids[0])
+          s++;
+        if (s == arity) {
+          if (arity == 2)
+            throw new IllegalArgumentException("Only unary and binary constraints are supported");
+          scope[arity++] = ids[0];
+        }
+        slot[p] = s;
+      }
+      Binding b = new Binding(slot, constant);
+      if (arity == 0)
+        throw new IllegalArgumentException("An intension without variables");
+      if (arity == 1) {
+        restrict(scope[0], v -> e.root.holds(v, v, b));
+        return;
+      }
+      Node root = e.root;
+      // The relations the engine knows how to propagate directly
+      if (root.op == Node.NE && b.slotOf(root.args[0]) == 0 && b.slotOf(root.args[1]) == 1) {
+        constrain(scope[0], scope[1], Relation.notEqual());
+      } else if (root.op == Node.LT && b.slotOf(root.args[0]) == 0 && b.slotOf(root.args[1]) == 1) {
+        constrain(scope[0], scope[1], Relation.lessThan());
+      } else if (root.op == Node.GT && b.slotOf(root.args[0]) == 0 && b.slotOf(root.args[1]) == 1) {
+        constrain(scope[1], scope[0], Relation.lessThan());
+      } else if (root.op == Node.NE && b.distance(root) != null) {
+        constrain(scope[0], scope[1], new DistanceNot(b.distance(root)));
+      } else {
+        constrain(scope[0], scope[1], (x, y) -> root.holds(x, y, b));
+      }
+    }
+
+    private interface ValueTest {
+      boolean keep(int value);
+    }
+
+    /**
+     * Take every value that fails the test out of a variable's domain
+     */
+    private void restrict(int id, ValueTest test) {
+      RangeDomain domain = domains.get(id);
+      List<Integer> out = new ArrayList<Integer>();
+      for (long v = domain.ceiling(Integer.MIN_VALUE); v != RangeDomain.NONE; v = domain.ceiling(v + 1)) {
+        if (! test.keep((int) v))
+          out.add((int) v);
+      }
+      for (int v : out) {
+        domain.remove(v);
+        solver.removeValue(id, v);
+      }
+    }
+
+    /**
+     * Add a relation between two variables, conjoined with what is on the
+     * pair already (either way round)
+     */
+    private void constrain(int x, int y, Relation relation) {
+      if (x == y) {
+        restrict(x, v -> relation.allows(v, v));
+        return;
+      }
+      hashPair scope = new hashPair(x, y);
+      Relation before = added.get(scope), after = relation;
+      if (before == null && added.containsKey(new hashPair(y, x))) {
+        scope = new hashPair(y, x);
+        after = relation.reverse();
+        before = added.get(scope);
+      }
+      if (before != null)
+        after = both(before, after);
+      added.put(scope, after);
+      solver.addConstraint(scope.getX(), scope.getY(), after);
+    }
+
+    /**
+     * Both relations at once, still a built-in one where there is one
+     */
+    private static Relation both(Relation a, Relation b) {
+      if (a instanceof Relation.NotEqual && b instanceof DistanceNot)
+        return Relation.distanceNotEqual(((DistanceNot) b).distance);
+      if (b instanceof Relation.NotEqual && a instanceof DistanceNot)
+        return Relation.distanceNotEqual(((DistanceNot) a).distance);
+      if (a instanceof Relation.NotEqual && (b instanceof Relation.NotEqual || b instanceof Relation.DistanceNotEqual))
+        return b;
+      if (b instanceof Relation.NotEqual && a instanceof Relation.DistanceNotEqual)
+        return a;
+      if (a instanceof Relation.Table && b instanceof Relation.Table) {
+        long[] p = ((Relation.Table) a).packed(), q = ((Relation.Table) b).packed();
+        long[] common = new long[Math.min(p.length, q.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < p.length && j < q.length; ) {
+          if (p[i] < q[j]) {
+            i++;
+          } else if (p[i] > q[j]) {
+            j++;
+          } else {
+            common[n++] = p[i];
+            i++;
+            j++;
+          }
+        }
+        return new Relation.Table(common, n);
+      }
+      return (x, y) -> a.allows(x, y) && b.allows(x, y);
+    }
+
+    /**
+     * |x - y| != distance, which becomes Relation.distanceNotEqual once it
+     * meets an x != y on the same pair (as in N-Queens)
+     */
+    private static final class DistanceNot implements Relation {
+      final int distance;
+
+      DistanceNot(int distance) {
+        this.distance = distance;
+      }
+
+      public boolean allows(int x, int y) {
+        return Math.abs((long) x - y) != distance;
+      }
+
+      public Relation reverse() {
+        return this;
+      }
+    }
+
+    // Expressions
+
+    /**
+     * An intension's expression, parsed once: its variables (or %i) are
+     * its parameters, numbered in the order they first appear
+     */
+    private static final class Expression {
+      final Node root;
+      final List<String> parameters;
+
+      private Expression(Node root, List<String> parameters) {
+        this.root = root;
+        this.parameters = parameters;
+      }
+
+      static Expression parse(String text) {
+        Map<String, Integer> parameters = new LinkedHashMap<String, Integer>();
+        int[] at = {0};
+        Node root = Node.parse(text, at, parameters);
+        skipSpace(text, at);
+        if (at[0] != text.length())
+          throw new IllegalArgumentException("Unexpected text after the expression: " + text.substring(at[0]).trim());
+        return new Expression(root, new ArrayList<String>(parameters.keySet()));
+      }
+    }
+
+    /**
+     * What an expression's parameters are bound to in one constraint
+     */
+    private static final class Binding {
+      final int[] slot;
+      final long[] constant;
+
+      Binding(int[] slot, long[] constant) {
+        this.slot = slot;
+        this.constant = constant;
+      }
+
+      /**
+       * The slot a node reads, -1 if it is not a parameter bound to a
+       * variable
+       */
+      int slotOf(Node node) {
+        return node.op == Node.PARAMETER ? slot[(int) node.value] : -1;
+      }
+
+      /**
+       * k if node is ne(dist(x, y), k) or ne(k, dist(x, y)) over both slots
+       */
+      Integer distance(Node ne) {
+        for (int side = 0; side < 2; side++) {
+          Node dist = ne.args[side], k = ne.args[1 - side];
+          if (dist.op == Node.DIST && slotOf(dist.args[0]) + slotOf(dist.args[1]) == 1
+              && slotOf(dist.args[0]) >= 0 && slotOf(dist.args[1]) >= 0) {
+            Long value = k.op == Node.CONSTANT ? Long.valueOf(k.value)
+                         : k.op == Node.PARAMETER && slot[(int) k.value] < 0 ? constant[(int) k.value] : null;
+            if (value != null && value >= 0 && value <= Integer.MAX_VALUE)
+              return value.intValue();
+          }
+        }
+        return null;
+      }
+    }
+
+    private static final class Node {
+      static final int CONSTANT = 0, PARAMETER = 1;
+      static final int NEG = 2, ABS = 3, ADD = 4, SUB = 5, MUL = 6, DIV = 7, MOD = 8, SQR = 9, POW = 10,
+                       MIN = 11, MAX = 12, DIST = 13, LT = 14, LE = 15, GE = 16, GT = 17, NE = 18, EQ = 19,
+                       AND = 20, OR = 21, XOR = 22, IFF = 23, IMP = 24, NOT = 25, IF = 26;
+      private static final String[] NAMES = {null, null, "neg", "abs", "add", "sub", "mul", "div", "mod", "sqr",
+                                             "pow", "min", "max", "dist", "lt", "le", "ge", "gt", "ne", "eq",
+                                             "and", "or", "xor", "iff", "imp", "not", "if"};
+      // Fixed arities, 0 for any number from two on
+      private static final int[] ARITY = {0, 0, 1, 1, 0, 2, 0, 2, 2, 1, 2, 0, 0, 2, 2, 2, 2, 2, 2, 0,
+                                          0, 0, 0, 0, 2, 1, 3};
+
+      final int op;
+      // A constant's value, or a parameter's number
+      final long value;
+      final Node[] args;
+
+      private Node(int op, long value, Node[] args) {
+        this.op = op;
+        this.value = value;
+        this.args = args;
+      }
+
+      static Node parse(String text, int[] at, Map<String, Integer> parameters) {
+        skipSpace(text, at);
+        int start = at[0];
+        while (at[0] < text.length() && "(),".indexOf(text.charAt(at[0])) < 0
+               && ! Character.isWhitespace(text.charAt(at[0])))
+          at[0]++;
+        String token = text.substring(start, at[0]);
+        if (token.isEmpty())
+          throw new IllegalArgumentException("Expected a value in " + text);
+        skipSpace(text, at);
+        if (at[0] == text.length() || text.charAt(at[0]) != '(') {
+          if (isInteger(token))
+            return new Node(CONSTANT, Long.parseLong(token), null);
+          if (token.equals("true") || token.equals("false"))
+            return new Node(CONSTANT, token.equals("true") ? 1 : 0, null);
+          Integer p = parameters.get(token);
+          if (p == null) {
+            p = parameters.size();
+            parameters.put(token, p);
+          }
+          return new Node(PARAMETER, p, null);
+        }
+        int op = Arrays.asList(NAMES).indexOf(token);
+        if (op < 0)
+          throw new IllegalArgumentException("Unsupported operator " + token);
+        at[0]++;
+        List<Node> args = new ArrayList<Node>();
+        while (true) {
+          args.add(parse(text, at, parameters));
+          skipSpace(text, at);
+          if (at[0] == text.length())
+            throw new IllegalArgumentException("Unclosed " + token + "(");
+          char c = text.charAt(at[0]++);
+          if (c == ')')
+            break;
+          if (c != ',')
+            throw new IllegalArgumentException("Unexpected '" + c + "' in " + token + "(");
+        }
+        if (ARITY[op] == 0 ? args.size() < (op == EQ || op >= AND ? 1 : 2) : args.size() != ARITY[op])
+          throw new IllegalArgumentException(token + " does not take " + args.size() + " arguments");
+        return new Node(op, 0, args.toArray(new Node[0]));
+      }
+
+      boolean holds(int x, int y, Binding b) {
+        try {
+          return eval(x, y, b) != 0;
+        } catch (ArithmeticException e) {
+          // Division by zero: no such pair
+          return false;
+        }
+      }
+
+      long eval(int x, int y, Binding b) {
+        switch (op) {
+          case CONSTANT:
+            return value;
+          case PARAMETER:
+            int s = b.slot[(int) value];
+            return s == 0 ? x : s == 1 ? y : b.constant[(int) value];
+          case NEG:
+            return -arg(0, x, y, b);
+          case ABS:
+            return Math.abs(arg(0, x, y, b));
+          case SUB:
+            return arg(0, x, y, b) - arg(1, x, y, b);
+          case DIV:
+            return arg(0, x, y, b) / arg(1, x, y, b);
+          case MOD:
+            return arg(0, x, y, b) % arg(1, x, y, b);
+          case SQR: {
+            long v = arg(0, x, y, b);
+            return v * v;
+          }
+          case POW: {
+            long base = arg(0, x, y, b), power = arg(1, x, y, b), result = 1;
+            for (long i = 0; i < power; i++)
+              result *= base;
+            return result;
+          }
+          case DIST:
+            return Math.abs(arg(0, x, y, b) - arg(1, x, y, b));
+          case LT:
+            return arg(0, x, y, b) < arg(1, x, y, b) ? 1 : 0;
+          case LE:
+            return arg(0, x, y, b) <= arg(1, x, y, b) ? 1 : 0;
+          case GE:
+            return arg(0, x, y, b) >= arg(1, x, y, b) ? 1 : 0;
+          case GT:
+            return arg(0, x, y, b) > arg(1, x, y, b) ? 1 : 0;
+          case NE:
+            return arg(0, x, y, b) != arg(1, x, y, b) ? 1 : 0;
+          case IMP:
+            return arg(0, x, y, b) == 0 || arg(1, x, y, b) != 0 ? 1 : 0;
+          case NOT:
+            return arg(0, x, y, b) == 0 ? 1 : 0;
+          case IF:
+            return arg(0, x, y, b) != 0 ? arg(1, x, y, b) : arg(2, x, y, b);
+          default:
+            return fold(x, y, b);
+        }
+      }
+
+      /**
+       * The operators over any number of arguments
+       */
+      private long fold(int x, int y, Binding b) {
+        long first = arg(0, x, y, b), result = first;
+        for (int i = 1; i < args.length; i++) {
+          long v = arg(i, x, y, b);
+          switch (op) {
+            case ADD: result += v; break;
+            case MUL: result *= v; break;
+            case MIN: result = Math.min(result, v); break;
+            case MAX: result = Math.max(result, v); break;
+            case EQ:
+              if (v != first)
+                return 0;
+              break;
+            case AND: result = result != 0 && v != 0 ? 1 : 0; break;
+            case OR: result = result != 0 || v != 0 ? 1 : 0; break;
+            case XOR: result = (result != 0) != (v != 0) ? 1 : 0; break;
+            case IFF: result = (result != 0) == (v != 0) ? 1 : 0; break;
+            default: throw new IllegalStateException("Operator " + op);
+          }
+        }
+        if (op == EQ)
+          return 1;
+        return args.length == 1 && op >= AND ? (result != 0 ? 1 : 0) : result;
+      }
+
+      private long arg(int i, int x, int y, Binding b) {
+        return args[i].eval(x, y, b);
+      }
+    }
+
+    private static void skipSpace(String text, int[] at) {
+      while (at[0] < text.length() && Character.isWhitespace(text.charAt(at[0])))
+        at[0]++;
+    }
+
+    private static boolean isInteger(String token) {
+      int start = token.startsWith("-") || token.startsWith("+") ? 1 : 0;
+      if (start == token.length())
+        return false;
+      for (int i = start; i < token.length(); i++) {
+        if (! Character.isDigit(token.charAt(i)))
+          return false;
+      }
+      return true;
+    }
+
+    // Text
+
+    /**
+     * The tuples of a binary extension, eg "(0,1)(1,*)", parsed a chunk
+     * of text at a time into pairs packed as (x << 32 | y), a * as STAR
+     */
+    private static final class Tuples {
+      long[] pairs = new long[64];
+      int count;
+      boolean starred;
+      // Built for the first scope, and kept when it fits all of them
+      Relation.Table table;
+      private final int[] tuple = new int[2];
+      // Values read in the open tuple, -1 outside one
+      private int filled = -1;
+      private long number;
+      private boolean negative, digits, star, ended;
+
+      void feed(char[] text, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+          char c = text[i];
+          if (c >= '0' && c <= '9') {
+            if (ended || star)
+              throw new IllegalArgumentException("Malformed tuple");
+            number = number * 10 + (c - '0');
+            digits = true;
+            if (number > 1L << 31)
+              throw new IllegalArgumentException("Value out of range in a tuple");
+          } else if (c == '(') {
+            if (filled >= 0)
+              throw new IllegalArgumentException("Nested tuple");
+            filled = 0;
+          } else if (c == ',' || c == ')') {
+            value();
+            if (c == ')') {
+              if (filled != 2)
+                throw new IllegalArgumentException("Only pairs are supported in a binary extension");
+              if (count == pairs.length)
+                pairs = Arrays.copyOf(pairs, count * 2);
+              pairs[count++] = Relation.Table.pack(tuple[0], tuple[1]);
+              filled = -1;
+            }
+          } else if (Character.isWhitespace(c)) {
+            ended = digits || star;
+          } else if (c == '-' && ! digits && ! negative) {
+            negative = true;
+          } else if (c == '*' && ! digits && ! star) {
+            star = true;
+          } else {
+            throw new IllegalArgumentException("Unexpected '" + c + "' in tuples");
+          }
+        }
+      }
+
+      private void value() {
+        if (filled < 0 || filled == 2 || ! (digits || star))
+          throw new IllegalArgumentException("Malformed tuple");
+        long v = negative ? -number : number;
+        if (! star && (v < Integer.MIN_VALUE + 1 || v > Integer.MAX_VALUE))
+          throw new IllegalArgumentException("Value out of range in a tuple");
+        tuple[filled++] = star ? STAR : (int) v;
+        starred |= star;
+        number = 0;
+        negative = digits = star = ended = false;
+      }
+
+      void end() {
+        if (filled >= 0 || digits || star)
+          throw new IllegalArgumentException("Unclosed tuple");
+      }
+    }
+
+    private void streamTuples(Tuples tuples) throws IOException, XMLStreamException {
+      while (true) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.END_ELEMENT)
+          break;
+        if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+            || event == XMLStreamConstants.SPACE)
+          tuples.feed(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+        else if (event == XMLStreamConstants.START_ELEMENT)
+          throw error("Unexpected <" + xml.getLocalName() + "> in tuples");
+      }
+      tuples.end();
+    }
+
+    /**
+     * The text of the current element, which must have no children
+     */
+    private String text() throws IOException, XMLStreamException {
+      StringBuilder text = new StringBuilder();
+      while (true) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.END_ELEMENT)
+          return text.toString();
+        if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+            || event == XMLStreamConstants.SPACE)
+          text.append(xml.getText());
+        else if (event == XMLStreamConstants.START_ELEMENT)
+          throw error("Unexpected <" + xml.getLocalName() + ">");
+      }
+    }
+
+    private void skip() throws XMLStreamException {
+      for (int depth = 1; depth > 0; ) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.START_ELEMENT)
+          depth++;
+        else if (event == XMLStreamConstants.END_ELEMENT)
+          depth--;
+      }
+    }
+
+    private String attribute(String name) throws IOException {
+      String value = xml.getAttributeValue(null, name);
+      if (value == null)
+        throw error("<" + xml.getLocalName() + "> without " + name + "=");
+      return value;
+    }
+
+    private static String[] tokens(String text) {
+      String trimmed = text.trim();
+      return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * A token with a group's %i replaced: by args[i], or by all of the
+     * args for %...
+     */
+    private static String[] substitute(String token, String[] args) {
+      if (args == null || ! token.startsWith("%"))
+        return new String[] {token};
+      if (token.equals("%..."))
+        return args;
+      int i = Integer.parseInt(token.substring(1));
+      if (i >= args.length)
+        throw new IllegalArgumentException("No argument for " + token);
+      return new String[] {args[i]};
+    }
+
+    public static final void main(String[] args) throws IOException {
+      if (args.length < 1) {
+        System.err.println("Usage: java csp_solver.XcspReader instance.xml [snapshot]");
+        System.exit(2);
+      }
+      long start = System.nanoTime();
+      ConstraintSatisfactionProblem solver = new ConstraintSatisfactionProblem();
+      XcspReader reader = new XcspReader(solver);
+      reader.read(Paths.get(args[0]));
+      CompiledModel model = solver.compile();
+      System.out.println(String.format("Read %d variables and %d constraints in %.1f ms",
+                                       model.getVariableCount(), model.getConstraintCount(),
+                                       (System.nanoTime() - start) / 1e6));
+      if (args.length > 1) {
+        Path snapshot = Paths.get(args[1]);
+        start = System.nanoTime();
+        ModelSnapshot.write(model, snapshot);
+        System.out.println(String.format("Wrote %s (%d bytes) in %.1f ms", snapshot, Files.size(snapshot),
+                                         (System.nanoTime() - start) / 1e6));
+        start = System.nanoTime();
+        model = ModelSnapshot.read(snapshot);
+        System.out.println(String.format("Read it back in %.1f ms", (System.nanoTime() - start) / 1e6));
+      }
+      Map<Integer, Integer> solution = new ConstraintSatisfactionProblem(model).solve();
+      System.out.println(solution == null ? "No solution" : reader.instantiation(solution));
+    }
+}
@@ -1,40 +1,43 @@
 package csp_solver;
 
-import javafx.util.Pair;
     /**
-     * A Pair class that will hash correctly
+     * A pair of ints that will hash correctly
      *
      */
     public class hashPair {
-      private Pair<Integer, Integer> p;
+      private final int x;
+      private final int y;
 
-      public hashPair(Integer x, Integer y) {
-        p = new Pair<Integer, Integer>(x, y);
+      public hashPair(int x, int y) {
+        this.x = x;
+        this.y = y;
       }
 
       public Integer getX() {
-        return p.getKey();
+        return x;
       }
 
       public Integer getY() {
-        return p.getValue();
+        return y;
       }
 
       public int hashCode() {
-        int x = getX();
-        int y = getY();
-        return (x * 100) + y;
+        // Spread both halves over all 32 bits, so pairs of large values
+        // (eg cells of a big board) do not pile up in a few buckets
+        int h = x * 0x9E3779B9 + y;
+        return h ^ (h >>> 16);
       }
 
       public boolean equals(Object o) {
         if (! (o instanceof hashPair) )
           return false;
 
-        return (getX() == ((hashPair)o).getX() && getY() == ((hashPair)o).getY());
+        hashPair other = (hashPair) o;
+        return x == other.x && y == other.y;
       }
       
       @Override
       public String toString() {
-        return "(" + getX() + ", " + getY() + ")";
+        return "(" + x + ", " + y + ")";
       }
     }